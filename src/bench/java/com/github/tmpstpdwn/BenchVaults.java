@@ -0,0 +1,65 @@
+package com.github.tmpstpdwn;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+import javax.crypto.SecretKey;
+
+// Generated vaults for the storage benchmarks, in temp SQLite or log files or
+// in memory. Row i holds target "host-i", username "user-i" and a 24 character
+// password.
+class BenchVaults {
+
+    static DataBase create(Path dir, int rows, SecretKey key) throws Exception {
+        return create(store("sqlite", dir), rows, key);
+    }
+
+    // "memory" leaves SQLite out, so what remains is the crypto layer;
+    // "sqlite-legacy" is SQLite with the settings of a bare connection.
+    static CredentialStore store(String name, Path dir) {
+        return switch (name) {
+            case "sqlite" -> new SqliteCredentialStore(dir.resolve("vault.db"), SqliteCredentialStore.Tuning.DEFAULT);
+            case "sqlite-legacy" -> new SqliteCredentialStore(dir.resolve("vault.db"), SqliteCredentialStore.Tuning.LEGACY);
+            case "log" -> new LogCredentialStore(dir.resolve("vault.log"));
+            case "memory" -> new MemoryCredentialStore();
+            default -> throw new IllegalArgumentException("Unknown store " + name);
+        };
+    }
+
+    static DataBase create(CredentialStore store, int rows, SecretKey key) throws Exception {
+        DataBase db = new DataBase(store);
+        db.connect();
+        db.createTables();
+        db.setMetadata(metadata(key));
+
+        int[] next = {0};
+        db.importCredentials(() -> next[0] < rows ? new CredentialTransfer.Entry(credential(next[0]++), 0) : null, key, (done, total) -> {});
+        return db;
+    }
+
+    static DataBase.CredentialData credential(int i) {
+        return new DataBase.CredentialData(0, "host-" + i, "user-" + i, "pw-%021d".formatted(i));
+    }
+
+    // Random bytes in the shape of real metadata; nothing here is ever unlocked.
+    static DataBase.Metadata metadata(SecretKey key) throws Exception {
+        return new DataBase.Metadata(
+            Vault.generateBytes(Vault.BytesType.KEY_BYTES),
+            Vault.generateBytes(Vault.BytesType.SALT_BYTES),
+            Vault.generateBytes(Vault.BytesType.SALT_BYTES),
+            Vault.wrapKey(key, Vault.generateKey()),
+            Vault.DEFAULT_KDF
+        );
+    }
+
+    static void delete(Path dir) throws IOException {
+        try (Stream<Path> paths = Files.walk(dir)) {
+            for (Path path : paths.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(path);
+            }
+        }
+    }
+}
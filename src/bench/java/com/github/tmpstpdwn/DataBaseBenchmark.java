@@ -0,0 +1,96 @@
+package com.github.tmpstpdwn;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.SecretKey;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+// Storage hot paths against generated vaults. listAll is the --export scan (the
+// old getAllCredentials), listMetadata the one behind --list --mask;
+// insertCredentialUnique grows the vault by one row per call, which is noise
+// next to the generated rows; updateCredential is the read, merge and
+// compare-and-swap behind --update; audit is the parallel decrypting pass
+// behind --audit. The memory store takes storage out of the
+// picture; the difference between it and the others is the cost of storage.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DataBaseBenchmark {
+
+    @Param({"1000", "10000", "100000"})
+    public int rows;
+
+    @Param({"sqlite", "log", "memory"})
+    public String store;
+
+    private Path dir;
+    private DataBase db;
+    private SecretKey key;
+    private int nextLookup;
+    private int nextInsert;
+    private int nextUpdate;
+
+    @Setup
+    public void setup() throws Exception {
+        dir = Files.createTempDirectory("hashvault-bench");
+        key = Vault.generateKey();
+        db = BenchVaults.create(BenchVaults.store(store, dir), rows, key);
+        nextInsert = rows;
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        db.close();
+        BenchVaults.delete(dir);
+    }
+
+    @Benchmark
+    public int listAll(Blackhole blackhole) throws Exception {
+        return db.forEachCredential(key, blackhole::consume);
+    }
+
+    @Benchmark
+    public int listMetadata(Blackhole blackhole) throws Exception {
+        return db.forEachCredential(key, -1, 0, false, blackhole::consume);
+    }
+
+    @Benchmark
+    public VaultAudit.Report audit() throws Exception {
+        return VaultAudit.run(db, key, VaultAudit.DEFAULT_STALE_DAYS);
+    }
+
+    @Benchmark
+    public String getPassword() throws Exception {
+        nextLookup = (nextLookup + 7919) % rows;
+        return db.getPassword(BenchVaults.credential(nextLookup), key);
+    }
+
+    @Benchmark
+    public void insertCredentialUnique() throws Exception {
+        db.insertCredentialUnique(BenchVaults.credential(nextInsert++), key);
+    }
+
+    @Benchmark
+    public void updateCredential() throws Exception {
+        nextUpdate = (nextUpdate + 7919) % rows;
+        db.updateCredential(new DataBase.CredentialData(nextUpdate + 1, "_", "_", "pw-" + nextUpdate), key);
+    }
+}
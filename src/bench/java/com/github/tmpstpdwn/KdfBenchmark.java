@@ -0,0 +1,41 @@
+package com.github.tmpstpdwn;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// One PBKDF2 run, the bulk of unlocking. 100000 is the --calibrate floor and
+// the other value the default work factor.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 3, time = 5)
+@Fork(1)
+public class KdfBenchmark {
+
+    @Param({"100000", "696969"})
+    public int iterations;
+
+    private byte[] salt;
+
+    @Setup
+    public void setup() {
+        salt = Vault.generateBytes(Vault.BytesType.SALT_BYTES);
+    }
+
+    @Benchmark
+    public byte[] getKeyBytes() throws Exception {
+        return Vault.getKeyBytes("correct horse battery staple", salt, Vault.KDF_ALGORITHM, iterations);
+    }
+}
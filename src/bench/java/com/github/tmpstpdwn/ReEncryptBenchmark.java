@@ -0,0 +1,61 @@
+package com.github.tmpstpdwn;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.SecretKey;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Whole-vault re-encryption as done by --rotate. One call takes seconds on the
+// largest vault, so this runs fewer, longer iterations than the other
+// benchmarks. Each call moves the rows to a fresh key.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MINUTES)
+@Warmup(iterations = 1, time = 10)
+@Measurement(iterations = 3, time = 10)
+@Fork(1)
+public class ReEncryptBenchmark {
+
+    @Param({"1000", "10000", "100000"})
+    public int rows;
+
+    private Path dir;
+    private DataBase db;
+    private SecretKey key;
+    private DataBase.Metadata metadata;
+
+    @Setup
+    public void setup() throws Exception {
+        dir = Files.createTempDirectory("hashvault-bench");
+        key = Vault.generateKey();
+        db = BenchVaults.create(dir, rows, key);
+        metadata = BenchVaults.metadata(key);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        db.close();
+        BenchVaults.delete(dir);
+    }
+
+    @Benchmark
+    public void reEncryptDatabase() throws Exception {
+        SecretKey newKey = Vault.generateKey();
+        db.reEncryptDatabase(key, newKey, metadata, (done, total) -> {});
+        key = newKey;
+    }
+}
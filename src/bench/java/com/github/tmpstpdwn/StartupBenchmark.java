@@ -0,0 +1,152 @@
+package com.github.tmpstpdwn;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.SecretKey;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Time from launching a fresh HashVault JVM to its first byte of output, per
+// command, with and without the AppCDS archive of the cds profile. The vault
+// is a generated one behind an agent running in the benchmark JVM, since
+// nothing here can type a master password: getpass, list, search and audit
+// are answered by the agent, and prompt opens the same vault with --db, which
+// runs locally and stops where it would ask for the password (with no
+// console, its first output is that error). help parses arguments and exits.
+// The jar is target/HashVault-1.0.jar, or -Dhashvault.jar; build it together
+// with the benchmarks, mvn -Pbench,cds package.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 15)
+@Fork(1)
+public class StartupBenchmark {
+
+    private static final int ROWS = 1000;
+
+    @Param({"help", "prompt", "getpass", "list", "list-jsonl", "search", "audit"})
+    public String command;
+
+    @Param({"none", "cds"})
+    public String archive;
+
+    private Path home;
+    private DataBase db;
+    private Thread agent;
+    private ProcessBuilder launcher;
+    private Process process;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        // Read once by DataBase and Agent, which are not loaded yet.
+        home = Files.createTempDirectory("hashvault-startup");
+        System.setProperty("user.home", home.toString());
+
+        SecretKey key = Vault.generateKey();
+        db = BenchVaults.create(BenchVaults.store("sqlite", DataBase.DEFAULT_PATH.getParent()), ROWS, key);
+        startAgent(key);
+
+        launcher = new ProcessBuilder(commandLine()).redirectErrorStream(true);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        ArgumentParser stop = new ArgumentParser();
+        stop.parseArgs(new String[] {"--stop-agent"});
+        Agent.forward(stop.getParsedArg(), new String[] {"--stop-agent"}, new PrintStream(OutputStream.nullOutputStream()));
+        agent.join();
+        db.close();
+        BenchVaults.delete(home);
+    }
+
+    @Benchmark
+    public int firstOutput() throws IOException {
+        process = launcher.start();
+        return process.getInputStream().read();
+    }
+
+    // Untimed: the rest of the output and the JVM shutting down.
+    @TearDown(Level.Invocation)
+    public void finish() throws Exception {
+        try (InputStream in = process.getInputStream()) {
+            in.transferTo(OutputStream.nullOutputStream());
+        }
+        process.waitFor();
+    }
+
+    private void startAgent(SecretKey key) throws Exception {
+        ArgumentParser parser = new ArgumentParser();
+        parser.parseArgs(new String[] {"--agent"});
+        PrintStream out = new PrintStream(OutputStream.nullOutputStream());
+
+        agent = new Thread(() -> {
+            try {
+                Agent.serve(parser.getParsedArg(), db, key, Agent.DEFAULT_IDLE_MINUTES, out);
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        agent.setDaemon(true);
+        agent.start();
+
+        while (!Agent.isRunning()) {
+            if (!agent.isAlive()) {
+                throw new IllegalStateException("Agent failed to start");
+            }
+            Thread.sleep(10);
+        }
+    }
+
+    private List<String> commandLine() {
+        Path jar = Path.of(System.getProperty("hashvault.jar", "target/HashVault-1.0.jar")).toAbsolutePath();
+        if (!Files.exists(jar)) {
+            throw new IllegalStateException(jar + " not found, build it with mvn -Pbench,cds package");
+        }
+
+        List<String> line = new ArrayList<>();
+        line.add(Path.of(System.getProperty("java.home"), "bin", "java").toString());
+        if (archive.equals("cds")) {
+            Path jsa = jar.resolveSibling(jar.getFileName().toString().replaceFirst("\\.jar$", ".jsa"));
+            if (!Files.exists(jsa)) {
+                throw new IllegalStateException(jsa + " not found, build with the cds profile");
+            }
+            line.add("-XX:SharedArchiveFile=" + jsa);
+        }
+        line.add("-Duser.home=" + home);
+        line.add("-jar");
+        line.add(jar.toString());
+
+        line.addAll(switch (command) {
+            case "help" -> List.of("--help");
+            case "prompt" -> List.of("--getpass", "host-1", "user-1", "--db", DataBase.DEFAULT_PATH.toString());
+            case "getpass" -> List.of("--getpass", "host-1", "user-1");
+            case "list" -> List.of("--list", "--limit", "50");
+            case "list-jsonl" -> List.of("--list", "--limit", "50", "--format", "jsonl");
+            case "search" -> List.of("--search", "host-1");
+            case "audit" -> List.of("--audit");
+            default -> throw new IllegalArgumentException("Unknown command " + command);
+        });
+        return line;
+    }
+}
@@ -0,0 +1,88 @@
+package com.github.tmpstpdwn;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Per-row cost of Vault.encrypt/decrypt. The legacy* methods keep the original
+// implementation (Cipher.getInstance per call, IV and ciphertext copied out of
+// the blob) as the baseline; run with -prof gc and compare gc.alloc.rate.norm.
+// 96 characters is about one typical credential record.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class VaultBenchmark {
+
+    @Param({"96", "1024", "16384"})
+    public int payloadSize;
+
+    private String payload;
+    private SecretKey key;
+    private byte[] blob;
+
+    @Setup
+    public void setup() throws Exception {
+        payload = "x".repeat(payloadSize);
+        key = Vault.generateKey();
+        blob = Vault.encrypt(payload, key);
+    }
+
+    @Benchmark
+    public byte[] encrypt() throws Exception {
+        return Vault.encrypt(payload, key);
+    }
+
+    @Benchmark
+    public String decrypt() throws Exception {
+        return Vault.decrypt(blob, key);
+    }
+
+    @Benchmark
+    public byte[] decryptBytes() throws Exception {
+        return Vault.decryptBytes(blob, key);
+    }
+
+    @Benchmark
+    public byte[] legacyEncrypt() throws Exception {
+        byte[] iv = Vault.generateBytes(Vault.BytesType.IV_BYTES);
+
+        Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+        cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(128, iv));
+        byte[] ciphertext = cipher.doFinal(payload.getBytes(StandardCharsets.UTF_8));
+
+        byte[] result = new byte[iv.length + ciphertext.length];
+        System.arraycopy(iv, 0, result, 0, iv.length);
+        System.arraycopy(ciphertext, 0, result, iv.length, ciphertext.length);
+        return result;
+    }
+
+    @Benchmark
+    public String legacyDecrypt() throws Exception {
+        byte[] iv = new byte[Vault.BytesType.IV_BYTES.getValue()];
+        byte[] ciphertext = new byte[blob.length - iv.length];
+        System.arraycopy(blob, 0, iv, 0, iv.length);
+        System.arraycopy(blob, iv.length, ciphertext, 0, ciphertext.length);
+
+        Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+        cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(128, iv));
+        return new String(cipher.doFinal(ciphertext), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,86 @@
+package com.github.tmpstpdwn;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.SecretKey;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// The lookup snapshot of the agent, --batch and HashVaultClient. load is what
+// the first lookup after unlock costs with the file current: one read, one
+// decrypt and a check of the change counter. getPassword is a lookup after
+// that, against DataBaseBenchmark.getPassword through the blind index;
+// updateThenGetPassword adds the incremental refresh one changed row costs.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class VaultSnapshotBenchmark {
+
+    @Param({"1000", "10000", "100000"})
+    public int rows;
+
+    @Param({"sqlite", "log"})
+    public String store;
+
+    private Path dir;
+    private Path file;
+    private SecretKey key;
+    private DataBase db;
+    private int nextLookup = 0;
+    private int nextUpdate = 0;
+
+    @Setup
+    public void setup() throws Exception {
+        dir = Files.createTempDirectory("hashvault-bench");
+        key = Vault.generateKey();
+        db = BenchVaults.create(BenchVaults.store(store, dir), rows, key);
+
+        file = dir.resolve("vault.snapshot");
+        VaultSnapshot snapshot = VaultSnapshot.load(file, key);
+        snapshot.refresh(db);
+        snapshot.save();
+        db.useSnapshot(file);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        db.close();
+        BenchVaults.delete(dir);
+    }
+
+    @Benchmark
+    public VaultSnapshot load() throws Exception {
+        VaultSnapshot snapshot = VaultSnapshot.load(file, key);
+        snapshot.refresh(db);
+        return snapshot;
+    }
+
+    @Benchmark
+    public String getPassword() throws Exception {
+        nextLookup = (nextLookup + 7919) % rows;
+        return db.getPassword(BenchVaults.credential(nextLookup), key);
+    }
+
+    @Benchmark
+    public String updateThenGetPassword() throws Exception {
+        nextUpdate = (nextUpdate + 7919) % rows;
+        db.updateCredential(new DataBase.CredentialData(nextUpdate + 1, "_", "_", "pw-" + nextUpdate), key);
+        return db.getPassword(BenchVaults.credential(nextUpdate), key);
+    }
+}
@@ -0,0 +1,24 @@
+#!/bin/sh
+# Builds the benchmarks and runs them with the GC profiler, saving the results
+# as JSON named after the current commit so runs can be compared later.
+#
+#   src/bench/run.sh                      # everything
+#   src/bench/run.sh DataBaseBenchmark -p rows=10000
+#
+# Any arguments are passed to JMH (benchmark regex, -p, -f, ...).
+set -e
+
+cd "$(dirname "$0")/../.."
+
+mvn -B -q -Pbench,cds -DskipTests package
+
+results=bench-results
+mkdir -p "$results"
+commit=$(git rev-parse --short HEAD 2>/dev/null || echo unknown)
+if ! git diff --quiet HEAD 2>/dev/null; then
+    commit="$commit-dirty"
+fi
+out="$results/$commit-$(date +%Y%m%d-%H%M%S).json"
+
+java -jar target/benchmarks.jar -prof gc -rf json -rff "$out" "$@"
+echo "Results written to $out"
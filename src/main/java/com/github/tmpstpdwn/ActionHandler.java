@@ -1,10 +1,31 @@
 package com.github.tmpstpdwn;
 
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.Console;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import javax.crypto.SecretKey;
 
+import com.github.freva.asciitable.AsciiTable;
+import com.github.freva.asciitable.Column;
+import com.github.freva.asciitable.HorizontalAlign;
+
 public class ActionHandler {
 
+    static final int DEFAULT_SEARCH_RESULTS = 10;
+
     private static String tipsForGoodPassword = """
     Tips for a good password (Not enforced):
     
@@ -24,17 +45,52 @@ public class ActionHandler {
         UPDATE,
         GETPASS,
         DELETE,
-        NEWPASS
+        NEWPASS,
+        ROTATE,
+        MIGRATE,
+        AGENT,
+        STOPAGENT,
+        IMPORT,
+        EXPORT,
+        SEARCH,
+        BATCH,
+        CONVERT,
+        BACKUP,
+        RESTORE,
+        AUDITBREACH,
+        AUDIT
     }
 
     public static void handleActions(ArgumentParser.ParsedArg parsedArg, DataBase db, SecretKey key) throws Exception {
+        handleActions(parsedArg, db, key, System.out);
+    }
+
+    // out receives everything the action prints; the agent passes a buffer that
+    // is sent back to the client. The JVM loads a class when code using it first
+    // runs, so ascii-table and org.json, which only the action methods here and
+    // the printers they call refer to, stay unloaded for actions that print
+    // neither; keep it that way, e.g. no static fields of their types.
+    public static void handleActions(ArgumentParser.ParsedArg parsedArg, DataBase db, SecretKey key, PrintStream out) throws Exception {
         switch (parsedArg.action()) {
             case ADD -> actionADD( parsedArg.data(), db, key);
-            case LIST -> actionLIST(db, key);
+            case LIST -> actionLIST(parsedArg, db, key, out);
             case UPDATE -> actionUPDATE(parsedArg.data(), db, key);
-            case GETPASS -> actionGETPASS(parsedArg.data(), db, key);
+            case GETPASS -> actionGETPASS(parsedArg.data(), db, key, out);
             case DELETE -> actionDELETE(parsedArg.data(), db);
-            case NEWPASS -> actionNEWPASS(db, key);
+            case NEWPASS -> actionNEWPASS(parsedArg, db, key, out);
+            case ROTATE -> actionROTATE(parsedArg, db, key, out);
+            case MIGRATE -> actionMIGRATE(db, key, out);
+            case AGENT -> actionAGENT(parsedArg, db, key, out);
+            case STOPAGENT -> throw new Exception("No agent running");
+            case IMPORT -> actionIMPORT(parsedArg, db, key, out);
+            case EXPORT -> actionEXPORT(parsedArg, db, key, out);
+            case SEARCH -> actionSEARCH(parsedArg, db, key, out);
+            case BATCH -> actionBATCH(parsedArg, db, key, out);
+            case CONVERT -> actionCONVERT(parsedArg, db, out);
+            case BACKUP -> actionBACKUP(parsedArg, db, key, out);
+            case RESTORE -> actionRESTORE(parsedArg, db, out);
+            case AUDITBREACH -> actionAUDITBREACH(parsedArg, db, key, out);
+            case AUDIT -> actionAUDIT(parsedArg, db, key, out);
         }
     }
 
@@ -42,44 +98,370 @@ public class ActionHandler {
         db.insertCredentialUnique(data, key);
     }
 
-    private static void actionLIST(DataBase db, SecretKey key) throws Exception {
-        System.out.println(db.getCredentialTable(key));
+    // Rows are decrypted and printed one page at a time, so only the table
+    // format holds more than one credential in memory. With --mask passwords
+    // are not decrypted at all.
+    private static void actionLIST(ArgumentParser.ParsedArg parsedArg, DataBase db, SecretKey key, PrintStream out) throws Exception {
+        int limit = parsedArg.intOption("--limit", -1);
+        int offset = parsedArg.intOption("--offset", 0);
+        CredentialPrinter.Format format = CredentialPrinter.Format.of(parsedArg.option("--format", "table"));
+        boolean mask = parsedArg.options().containsKey("--mask");
+
+        CredentialPrinter printer = new CredentialPrinter(format,
+            mask ? CredentialPrinter.Passwords.MASK : CredentialPrinter.Passwords.SHOW, out);
+        int listed = db.forEachCredential(key, limit, offset, !mask, printer);
+        printer.finish();
+
+        if (listed == 0 && format == CredentialPrinter.Format.TABLE) {
+            throw new Exception(limit < 0 && offset == 0 ? "Database empty" : "No credentials in the requested range");
+        }
     }
 
     private static void actionUPDATE(DataBase.CredentialData data, DataBase db, SecretKey key) throws Exception {
         db.updateCredential(data, key);
     }
 
-    private static void actionGETPASS(DataBase.CredentialData data, DataBase db, SecretKey key) throws Exception {
-        System.out.println(db.getPassword(data, key));
+    private static void actionGETPASS(DataBase.CredentialData data, DataBase db, SecretKey key, PrintStream out) throws Exception {
+        out.println(db.getPassword(data, key));
     }
 
     private static void actionDELETE(DataBase.CredentialData data, DataBase db) throws Exception {
         db.deleteCredential(data);
     }
 
-    private static void actionNEWPASS(DataBase db, SecretKey oldKey) throws Exception {
-        System.out.println("\n" + tipsForGoodPassword + "\n");
+    // Only the wrapped data key is replaced, so changing the password costs the
+    // same however many credentials the vault holds.
+    private static void actionNEWPASS(ArgumentParser.ParsedArg parsedArg, DataBase db, SecretKey dataKey, PrintStream out) throws Exception {
+        String master = readNewMasterPassword();
+        Vault.KdfParams kdf = chooseKdf(parsedArg, db, out);
 
-        Console console = System.console();
-        if (console == null) {
-            throw new Exception("No console available");
+        if (!db.metaTableExists()) {
+            db.createTables();
+            dataKey = Vault.generateKey();
         }
-        char[] passwordChars = console.readPassword("Enter a new master password: ");
-        String master = new String(passwordChars);
 
-        byte[] loginSalt = Vault.generateBytes(Vault.BytesType.SALT_BYTES);
-        byte[] encryptionSalt = Vault.generateBytes(Vault.BytesType.SALT_BYTES);
+        db.setMetadata(Authenticator.createMetadata(master, dataKey, kdf));
+    }
 
-        byte[] masterKey = Vault.getKeyBytes(master, loginSalt);
-        
-        if (!db.metaTableExists()) {
-            db.createTables();
+    // Sets a new master password like NEWPASS, but also replaces the data key
+    // itself and re-encrypts every credential with it.
+    private static void actionROTATE(ArgumentParser.ParsedArg parsedArg, DataBase db, SecretKey oldKey, PrintStream out) throws Exception {
+        String master = readNewMasterPassword();
+        Vault.KdfParams kdf = chooseKdf(parsedArg, db, out);
+        SecretKey newKey = Vault.generateKey();
+
+        db.reEncryptDatabase(oldKey, newKey, Authenticator.createMetadata(master, newKey, kdf),
+            (done, total) -> out.print("\rRe-encrypted " + done + "/" + total + " credentials"));
+        out.println();
+    }
+
+    private static void actionMIGRATE(DataBase db, SecretKey key, PrintStream out) throws Exception {
+        int migrated = db.migrateRecords(key,
+            (done, total) -> out.print("\rChecked " + done + "/" + total + " credentials"));
+        out.println();
+        out.println("Converted " + migrated + " credentials to the current record format");
+    }
+
+    private static void actionAGENT(ArgumentParser.ParsedArg parsedArg, DataBase db, SecretKey key, PrintStream out) throws Exception {
+        int idleMinutes = parsedArg.intOption("--idle-timeout", Agent.DEFAULT_IDLE_MINUTES);
+        Agent.serve(parsedArg, db, key, idleMinutes, out);
+    }
+
+    // With --calibrate the work factor is measured on this machine; otherwise a
+    // vault keeps the one it already has.
+    private static Vault.KdfParams chooseKdf(ArgumentParser.ParsedArg parsedArg, DataBase db, PrintStream out) throws Exception {
+        if (parsedArg.options().containsKey("--calibrate")) {
+            int targetMillis = parsedArg.intOption("--calibrate", 0);
+            out.println("Calibrating key derivation for " + targetMillis + " ms per unlock...");
+
+            Vault.KdfParams kdf = Vault.calibrate(targetMillis);
+            out.println("Using " + kdf.iterations() + " iterations of " + kdf.algorithm());
+            return kdf;
+        }
+
+        DataBase.Metadata metadata = db.metaTableExists() ? db.getMetadata() : null;
+        return metadata == null ? Vault.DEFAULT_KDF : Authenticator.currentScheme(metadata.kdf());
+    }
+
+    // "-" reads from stdin.
+    private static void actionIMPORT(ArgumentParser.ParsedArg parsedArg, DataBase db, SecretKey key, PrintStream out) throws Exception {
+        String file = parsedArg.option(ArgumentParser.FILE_OPTION, "-");
+        CredentialTransfer.Format format = CredentialTransfer.Format.of(parsedArg.option("--format", null), file);
+
+        DataBase.ImportResult result;
+        try (BufferedReader in = "-".equals(file)
+                ? new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8))
+                : Files.newBufferedReader(Path.of(file), StandardCharsets.UTF_8)) {
+            result = db.importCredentials(CredentialTransfer.reader(format, in), key,
+                (done, total) -> out.print("\rRead " + done + " credentials"));
+        }
+
+        out.println();
+        out.println("Imported " + result.imported() + " credentials, skipped " + result.duplicates() + " duplicates");
+    }
+
+    // "-" writes to stdout. The export holds every password in plain text, so a
+    // new file is created readable by its owner only.
+    private static void actionEXPORT(ArgumentParser.ParsedArg parsedArg, DataBase db, SecretKey key, PrintStream out) throws Exception {
+        String file = parsedArg.option(ArgumentParser.FILE_OPTION, "-");
+        CredentialTransfer.Format format = CredentialTransfer.Format.of(parsedArg.option("--format", null), file);
+
+        if ("-".equals(file)) {
+            Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+            db.exportCredentials(key, CredentialTransfer.writer(format, writer));
+            writer.flush();
+            return;
+        }
+
+        // Written to a new owner-only file next to the target and moved over
+        // it once complete, so the passwords never land in a file someone else
+        // can read, even when the target exists with a looser mode.
+        Path path = Path.of(file);
+        Path partial = Files.createTempFile(path.toAbsolutePath().getParent(), path.getFileName() + ".", ".partial",
+            PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+        int exported;
+        try {
+            try (Writer writer = Files.newBufferedWriter(partial, StandardCharsets.UTF_8, StandardOpenOption.TRUNCATE_EXISTING)) {
+                exported = db.exportCredentials(key, CredentialTransfer.writer(format, writer));
+            }
+            Files.move(partial, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(partial);
+        }
+
+        out.println("Exported " + exported + " credentials to " + path);
+    }
+
+    // "-" reads the commands from stdin.
+    private static void actionBATCH(ArgumentParser.ParsedArg parsedArg, DataBase db, SecretKey key, PrintStream out) throws Exception {
+        String file = parsedArg.option(ArgumentParser.FILE_OPTION, "-");
+        db.useSnapshot(VaultSnapshot.pathFor(parsedArg.vaultPath()));
+
+        try (BufferedReader in = "-".equals(file)
+                ? new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8))
+                : Files.newBufferedReader(Path.of(file), StandardCharsets.UTF_8)) {
+            BatchRunner.run(in, db, key, out);
+        }
+    }
+
+    // Copies the vault into a file of the other engine next to it, then swaps
+    // the two; the old file stays behind with a .bak suffix. The rows are
+    // copied still encrypted.
+    private static void actionCONVERT(ArgumentParser.ParsedArg parsedArg, DataBase db, PrintStream out) throws Exception {
+        CredentialStore.Engine engine = CredentialStore.Engine.of(parsedArg.option(ArgumentParser.ENGINE_OPTION, ""));
+        Path path = parsedArg.vaultPath();
+
+        if (db.isReadOnly()) {
+            throw new Exception("Vault is opened read-only");
+        }
+        if (CredentialStore.Engine.detect(path) == engine) {
+            throw new Exception("Vault already uses the " + engine.name().toLowerCase() + " engine");
+        }
+        // The agent would keep writing to the old file.
+        if (path.equals(DataBase.DEFAULT_PATH) && Agent.isRunning()) {
+            throw new Exception("Stop the agent before converting the vault");
+        }
+
+        Path converted = path.resolveSibling(path.getFileName() + ".converting");
+        Path backup = path.resolveSibling(path.getFileName() + ".bak");
+        Files.deleteIfExists(converted);
+
+        CredentialStore target = engine.store(converted);
+        DataBase.CopyResult copy;
+        try {
+            copy = db.copyTo(target, (done, total) -> out.print("\rCopied " + done + "/" + total + " credentials"));
+        } catch (Exception e) {
+            Files.deleteIfExists(converted);
+            throw e;
+        } finally {
+            target.close();
+        }
+        out.println();
+
+        // A write that got in after the copy would only be in the .bak. The
+        // vault has to be closed before it is moved, so it is opened once more
+        // to check, right before the move.
+        db.close();
+        if (!isAt(path, copy.position())) {
+            Files.deleteIfExists(converted);
+            Files.deleteIfExists(converted.resolveSibling(converted.getFileName() + ".lock"));
+            throw new Exception("Vault changed while it was converted, run --convert again");
+        }
+        Files.move(path, backup, StandardCopyOption.REPLACE_EXISTING);
+        Files.move(converted, path, StandardCopyOption.ATOMIC_MOVE);
+        Files.deleteIfExists(converted.resolveSibling(converted.getFileName() + ".lock"));
+
+        out.println("Converted " + copy.rows() + " credentials to the " + engine.name().toLowerCase()
+            + " engine, the old vault is kept as " + backup);
+    }
+
+    private static boolean isAt(Path path, CredentialStore.ChangePosition position) throws Exception {
+        CredentialStore store = CredentialStore.Engine.detect(path).store(path);
+        try {
+            store.open();
+            CredentialStore.ChangePosition current = store.changePosition();
+            return current.count() == position.count() && Arrays.equals(current.lineage(), position.lineage());
+        } finally {
+            store.close();
+        }
+    }
+
+    // Adds a segment to the backup directory holding what changed since the
+    // last one, or every credential for the first.
+    private static void actionBACKUP(ArgumentParser.ParsedArg parsedArg, DataBase db, SecretKey key, PrintStream out) throws Exception {
+        Path directory = Path.of(parsedArg.option(ArgumentParser.FILE_OPTION, ""));
+        Backup.Result result = Backup.backup(db, key, directory);
+
+        if (result == null) {
+            out.println("Backup is up to date");
+        } else if (result.full()) {
+            out.println("Backed up " + result.rows() + " credentials to " + result.segment());
+        } else {
+            out.println("Backed up " + result.rows() + " changed and " + result.deleted() + " deleted credentials to "
+                + result.segment());
+        }
+    }
+
+    // Builds the vault in a file next to its path and moves it into place once
+    // complete. It is unlocked with the master password the vault had at the
+    // last backup, and --engine picks the engine of the new file.
+    private static void actionRESTORE(ArgumentParser.ParsedArg parsedArg, DataBase db, PrintStream out) throws Exception {
+        Path directory = Path.of(parsedArg.option(ArgumentParser.FILE_OPTION, ""));
+        Path path = parsedArg.vaultPath();
+        CredentialStore.Engine engine = CredentialStore.Engine.of(parsedArg.option("--engine", "sqlite"));
+
+        if (db.metaTableExists()) {
+            throw new Exception("A vault already exists at " + path + ", restore into a new one with --db or --vault");
+        }
+
+        Backup.Snapshot snapshot = Backup.restore(directory, Authenticator::readMasterPassword);
+
+        Path restoring = path.resolveSibling(path.getFileName() + ".restoring");
+        Files.deleteIfExists(restoring);
+        DataBase restored = new DataBase(engine.store(restoring));
+        try {
+            restored.connect();
+            restored.restore(snapshot.metadata(), snapshot.rows(),
+                (done, total) -> out.print("\rRestored " + done + "/" + total + " credentials"));
+        } catch (Exception e) {
+            restored.close();
+            Files.deleteIfExists(restoring);
+            throw e;
+        }
+        restored.close();
+        out.println();
+
+        db.close();
+        Files.move(restoring, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        Files.deleteIfExists(restoring.resolveSibling(restoring.getFileName() + ".lock"));
+
+        out.println("Restored " + snapshot.rows().size() + " credentials from " + snapshot.segments()
+            + " backup segments into " + path);
+    }
+
+    // The corpus is converted on first use, or when it is newer than its
+    // converted form; --no-bloom leaves the Bloom filter out of a conversion.
+    private static void actionAUDITBREACH(ArgumentParser.ParsedArg parsedArg, DataBase db, SecretKey key, PrintStream out) throws Exception {
+        Path corpusPath = Path.of(parsedArg.option(ArgumentParser.FILE_OPTION, ""));
+
+        if (BreachCorpus.needsConversion(corpusPath)) {
+            out.println("Converting " + corpusPath + " to " + BreachCorpus.convertedPath(corpusPath) + ", once");
+            BreachCorpus.convert(corpusPath, !parsedArg.options().containsKey("--no-bloom"),
+                (done, total) -> out.print("\rSorted " + done + " hashes"));
+            out.println();
+        }
+
+        List<DataBase.CredentialData> credentials = new ArrayList<>();
+        db.forEachCredential(key, credentials::add);
+
+        List<BreachCorpus.Hit> hits;
+        try (BreachCorpus corpus = BreachCorpus.open(corpusPath)) {
+            hits = corpus.check(credentials);
+        }
+
+        if (hits.isEmpty()) {
+            out.println("None of " + credentials.size() + " passwords is in the breach corpus");
+            return;
+        }
+
+        out.println(AsciiTable.getTable(hits, List.of(
+            new Column().header("ID").headerAlign(HorizontalAlign.CENTER).dataAlign(HorizontalAlign.CENTER).with(hit -> String.valueOf(hit.credential().id())),
+            new Column().header("Target").headerAlign(HorizontalAlign.CENTER).dataAlign(HorizontalAlign.CENTER).with(hit -> hit.credential().target()),
+            new Column().header("Username").headerAlign(HorizontalAlign.CENTER).dataAlign(HorizontalAlign.CENTER).with(hit -> hit.credential().username()),
+            new Column().header("Times seen").headerAlign(HorizontalAlign.CENTER).dataAlign(HorizontalAlign.CENTER).with(hit -> String.valueOf(hit.count()))
+        )));
+        out.println(hits.size() + " of " + credentials.size() + " passwords are in the breach corpus");
+    }
+
+    private static void actionAUDIT(ArgumentParser.ParsedArg parsedArg, DataBase db, SecretKey key, PrintStream out) throws Exception {
+        int staleDays = parsedArg.intOption("--stale-days", VaultAudit.DEFAULT_STALE_DAYS);
+        String format = parsedArg.option("--format", "table");
+        if (!format.equals("table") && !format.equals("json")) {
+            throw new Exception("Unknown format '" + format + "', use table or json");
+        }
+
+        VaultAudit.Report report = VaultAudit.run(db, key, staleDays);
+        if (format.equals("json")) {
+            out.println(VaultAudit.toJson(report, staleDays).toString(2));
         } else {
-            SecretKey newKey = Vault.getAESKey(master, encryptionSalt);
-            db.reEncryptDatabase(oldKey, newKey);
+            VaultAudit.printTable(report, staleDays, out);
+        }
+    }
+
+    // The index is built once; in interactive mode every line read from stdin is
+    // another query against it, until an empty line or end of input.
+    private static void actionSEARCH(ArgumentParser.ParsedArg parsedArg, DataBase db, SecretKey key, PrintStream out) throws Exception {
+        int limit = parsedArg.intOption("--limit", DEFAULT_SEARCH_RESULTS);
+        CredentialPrinter.Format format = CredentialPrinter.Format.of(parsedArg.option("--format", "table"));
+        SearchIndex index = SearchIndex.build(db, key);
+
+        if (!parsedArg.options().containsKey("--interactive")) {
+            CredentialPrinter printer = new CredentialPrinter(format, CredentialPrinter.Passwords.OMIT, out);
+            if (printMatches(index, parsedArg.option(ArgumentParser.QUERY_OPTION, ""), limit, printer) == 0) {
+                throw new Exception("No matches");
+            }
+            return;
+        }
+
+        out.println("Indexed " + index.size() + " credentials, empty line to quit");
+        CredentialPrinter printer = new CredentialPrinter(format, CredentialPrinter.Passwords.OMIT, out);
+        BufferedReader in = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
+        String query = parsedArg.option(ArgumentParser.QUERY_OPTION, null);
+
+        while (true) {
+            if (query == null) {
+                out.print("search> ");
+                out.flush();
+                query = in.readLine();
+            }
+            if (query == null || query.isBlank()) {
+                break;
+            }
+
+            if (printMatches(index, query, limit, printer) == 0) {
+                out.println("No matches");
+            }
+            query = null;
         }
+    }
 
-        db.setMetadata(new DataBase.Metadata(masterKey, loginSalt, encryptionSalt));            
+    private static int printMatches(SearchIndex index, String query, int limit, CredentialPrinter printer) throws Exception {
+        List<SearchIndex.Match> matches = index.search(query, limit);
+        for (SearchIndex.Match match : matches) {
+            printer.visit(new DataBase.CredentialData(match.id(), match.target(), match.username(), null));
+        }
+        printer.finish();
+        return matches.size();
+    }
+
+    private static String readNewMasterPassword() throws Exception {
+        System.out.println("\n" + tipsForGoodPassword + "\n");
+
+        Console console = System.console();
+        if (console == null) {
+            throw new Exception("No console available");
+        }
+        char[] passwordChars = console.readPassword("Enter a new master password: ");
+        return new String(passwordChars);
     }
 }
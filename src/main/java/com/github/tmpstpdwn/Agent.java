@@ -0,0 +1,334 @@
+package com.github.tmpstpdwn;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.SecretKey;
+
+// Long-lived process that unlocks the vault once and then runs actions for
+// other HashVault invocations over a Unix domain socket, so they skip the JVM
+// side of unlocking (PBKDF2 and opening the database) entirely.
+//
+// Protocol, one request per connection:
+//   request:  int argc, argc * UTF string (the original command line)
+//   response: byte status, int length, UTF-8 bytes (action output or error message)
+// Connections are served one at a time; one that does not send its request
+// within REQUEST_TIMEOUT_NANOS, or stops taking in the response, is closed.
+class Agent {
+
+    static final int DEFAULT_IDLE_MINUTES = 15;
+
+    private static final byte STATUS_OK = 0;
+    private static final byte STATUS_ERROR = 1;
+
+    private static final int MAX_ARGS = 64;
+    private static final int REQUEST_BUFFER_BYTES = 4096;
+    private static final int MAX_REQUEST_BYTES = 1 << 20;
+    // How long a client may take to send its request, or to take in any of
+    // the response, before it is dropped.
+    private static final long REQUEST_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(5);
+
+    private static final Path socketPath = Paths.get(System.getProperty("user.home"), ".hashvault", "agent.sock");
+
+    // Actions that need a console (new master password) always run locally, as
+    // does anything reading the user's stdin.
+    private static final Set<ActionHandler.ActionType> servedActions = EnumSet.of(
+        ActionHandler.ActionType.ADD,
+        ActionHandler.ActionType.LIST,
+        ActionHandler.ActionType.UPDATE,
+        ActionHandler.ActionType.GETPASS,
+        ActionHandler.ActionType.DELETE,
+        ActionHandler.ActionType.MIGRATE,
+        ActionHandler.ActionType.SEARCH,
+        ActionHandler.ActionType.AUDIT
+    );
+
+    // Sends the command line to a running agent and prints its output. Returns
+    // false when the action has to run locally or no agent is listening.
+    public static boolean forward(ArgumentParser.ParsedArg parsedArg, String[] args, PrintStream out) throws Exception {
+        boolean stop = parsedArg.action() == ActionHandler.ActionType.STOPAGENT;
+        if (!stop && !isServed(parsedArg)) {
+            return false;
+        }
+
+        SocketChannel channel = connect();
+        if (channel == null) {
+            if (stop) {
+                throw new Exception("No agent running");
+            }
+            return false;
+        }
+
+        try (channel) {
+            DataOutputStream request = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+            request.writeInt(args.length);
+            for (String arg : args) {
+                request.writeUTF(arg);
+            }
+            request.flush();
+
+            DataInputStream response = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+            byte status = response.readByte();
+            String body = readString(response);
+
+            if (status != STATUS_OK) {
+                throw new Exception(body);
+            }
+
+            out.print(body);
+            out.flush();
+            return true;
+        } catch (IOException e) {
+            throw new Exception("Lost connection to the agent", e);
+        }
+    }
+
+    public static void serve(ArgumentParser.ParsedArg parsedArg, DataBase db, SecretKey key, int idleMinutes, PrintStream out) throws Exception {
+        if (!servesVault(parsedArg)) {
+            throw new Exception("The agent only serves the default vault, without --read-only");
+        }
+
+        SocketChannel existing = connect();
+        if (existing != null) {
+            existing.close();
+            throw new Exception("Agent already running");
+        }
+
+        // Only the owner can reach anything inside the vault directory, which
+        // covers the window between bind and chmod of the socket itself.
+        Files.setPosixFilePermissions(socketPath.getParent(), PosixFilePermissions.fromString("rwx------"));
+        Files.deleteIfExists(socketPath);
+
+        // Lookups are answered from memory; see DataBase.useSnapshot.
+        db.useSnapshot(VaultSnapshot.pathFor(parsedArg.vaultPath()));
+
+        // A password change re-wraps the data key and a rotation replaces it;
+        // either way the key held here may be stale, so the agent stops.
+        byte[] wrappedKey = db.getMetadata().wrappedKey();
+
+        Thread cleanup = new Thread(() -> {
+            try {
+                Files.deleteIfExists(socketPath);
+            } catch (IOException e) {
+                // Nothing left to do while the JVM is going down.
+            }
+        });
+        Runtime.getRuntime().addShutdownHook(cleanup);
+
+        try (
+            ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+            Selector selector = Selector.open()
+        ) {
+            server.bind(UnixDomainSocketAddress.of(socketPath));
+            Files.setPosixFilePermissions(socketPath, PosixFilePermissions.fromString("rw-------"));
+
+            server.configureBlocking(false);
+            server.register(selector, SelectionKey.OP_ACCEPT);
+
+            out.println("Agent listening on " + socketPath);
+            out.flush();
+
+            boolean running = true;
+            while (running) {
+                if (selector.select(idleMinutes * 60_000L) == 0) {
+                    out.println("Agent idle for " + idleMinutes + " minutes, exiting");
+                    break;
+                }
+                selector.selectedKeys().clear();
+
+                SocketChannel client = server.accept();
+                if (client == null) {
+                    continue;
+                }
+
+                // Requests are served one at a time, so a client that stalls
+                // is dropped after a deadline rather than holding up the rest.
+                try (client; Selector clientSelector = Selector.open()) {
+                    client.configureBlocking(false);
+                    SelectionKey clientKey = client.register(clientSelector, 0);
+
+                    String[] args = readRequest(client, clientKey, System.nanoTime() + REQUEST_TIMEOUT_NANOS);
+                    ByteArrayOutputStream response = new ByteArrayOutputStream();
+                    running = handle(args, db, key, wrappedKey, new DataOutputStream(response));
+                    writeResponse(client, clientKey, ByteBuffer.wrap(response.toByteArray()));
+                } catch (IOException e) {
+                    // The client went away, stalled or sent garbage; keep
+                    // serving others.
+                }
+            }
+        } finally {
+            Files.deleteIfExists(socketPath);
+            Runtime.getRuntime().removeShutdownHook(cleanup);
+        }
+    }
+
+    // Reads the request as it arrives, without blocking, until it is complete.
+    // The whole request has to be in by deadline; it is a few hundred bytes.
+    private static String[] readRequest(SocketChannel client, SelectionKey clientKey, long deadline) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(REQUEST_BUFFER_BYTES);
+        clientKey.interestOps(SelectionKey.OP_READ);
+        while (true) {
+            if (client.read(buffer) < 0) {
+                throw new IOException("Connection closed mid-request");
+            }
+
+            String[] args = parseRequest(buffer.array(), buffer.position());
+            if (args != null) {
+                return args;
+            }
+            if (!buffer.hasRemaining()) {
+                if (buffer.capacity() >= MAX_REQUEST_BYTES) {
+                    throw new IOException("Request too large");
+                }
+                buffer = ByteBuffer.allocate(buffer.capacity() * 2).put(buffer.flip());
+            }
+
+            long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            if (remaining <= 0 || clientKey.selector().select(remaining) == 0) {
+                throw new IOException("Request timed out");
+            }
+            clientKey.selector().selectedKeys().clear();
+        }
+    }
+
+    // null while the request is still incomplete.
+    private static String[] parseRequest(byte[] bytes, int length) throws IOException {
+        DataInputStream request = new DataInputStream(new ByteArrayInputStream(bytes, 0, length));
+        try {
+            int argc = request.readInt();
+            if (argc < 0 || argc > MAX_ARGS) {
+                throw new IOException("Malformed request");
+            }
+
+            String[] args = new String[argc];
+            for (int i = 0; i < argc; i++) {
+                args[i] = request.readUTF();
+            }
+            return args;
+        } catch (EOFException e) {
+            return null;
+        }
+    }
+
+    // A large --list takes the client a while to read, so the timeout only
+    // runs while nothing can be written.
+    private static void writeResponse(SocketChannel client, SelectionKey clientKey, ByteBuffer response) throws IOException {
+        clientKey.interestOps(SelectionKey.OP_WRITE);
+        while (response.hasRemaining()) {
+            if (client.write(response) == 0) {
+                if (clientKey.selector().select(TimeUnit.NANOSECONDS.toMillis(REQUEST_TIMEOUT_NANOS)) == 0) {
+                    throw new IOException("Response timed out");
+                }
+                clientKey.selector().selectedKeys().clear();
+            }
+        }
+    }
+
+    // Runs one request, writes its response and returns whether the agent
+    // should keep serving.
+    private static boolean handle(String[] args, DataBase db, SecretKey key, byte[] wrappedKey, DataOutputStream response) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        byte status = STATUS_OK;
+        String body;
+        boolean keepRunning = true;
+
+        try {
+            ArgumentParser parser = new ArgumentParser();
+            parser.parseArgs(args);
+            ArgumentParser.ParsedArg parsedArg = parser.getParsedArg();
+
+            if (parsedArg.action() == ActionHandler.ActionType.STOPAGENT) {
+                keepRunning = false;
+                body = "Agent stopped\n";
+            } else if (!isServed(parsedArg)) {
+                throw new Exception("Action not served by the agent");
+            } else {
+                if (!Arrays.equals(db.getMetadata().wrappedKey(), wrappedKey)) {
+                    keepRunning = false;
+                    throw new Exception("Master password changed, agent stopped");
+                }
+
+                PrintStream out = new PrintStream(buffer, true, StandardCharsets.UTF_8);
+                ActionHandler.handleActions(parsedArg, db, key, out);
+                body = buffer.toString(StandardCharsets.UTF_8);
+            }
+        } catch (Exception e) {
+            status = STATUS_ERROR;
+            body = e.getMessage() != null ? e.getMessage() : e.toString();
+        }
+
+        response.writeByte(status);
+        writeString(response, body);
+        response.flush();
+
+        return keepRunning;
+    }
+
+    // The agent holds the default vault; any other one is opened locally.
+    private static boolean isServed(ArgumentParser.ParsedArg parsedArg) {
+        return servedActions.contains(parsedArg.action()) && !parsedArg.options().containsKey("--interactive")
+            && servesVault(parsedArg);
+    }
+
+    public static boolean isRunning() throws IOException {
+        SocketChannel channel = connect();
+        if (channel == null) {
+            return false;
+        }
+        channel.close();
+        return true;
+    }
+
+    private static boolean servesVault(ArgumentParser.ParsedArg parsedArg) {
+        return !parsedArg.options().containsKey("--db") && !parsedArg.options().containsKey("--vault")
+            && !parsedArg.options().containsKey("--read-only");
+    }
+
+    private static SocketChannel connect() {
+        if (!Files.exists(socketPath)) {
+            return null;
+        }
+
+        try {
+            return SocketChannel.open(UnixDomainSocketAddress.of(socketPath));
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
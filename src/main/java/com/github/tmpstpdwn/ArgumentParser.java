@@ -1,21 +1,99 @@
 package com.github.tmpstpdwn;
 
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
 public class ArgumentParser {
-    public static record ParsedArg(ActionHandler.ActionType action, DataBase.CredentialData data) {}
+    public static record ParsedArg(ActionHandler.ActionType action, DataBase.CredentialData data, Map<String, String> options) {
+
+        public ParsedArg(ActionHandler.ActionType action, DataBase.CredentialData data) {
+            this(action, data, Map.of());
+        }
+
+        public String option(String name, String defaultValue) {
+            return options.getOrDefault(name, defaultValue);
+        }
+
+        // --db, the vault named by --vault, or the default vault.
+        public Path vaultPath() {
+            String db = options.get("--db");
+            if (db != null) {
+                return Path.of(db);
+            }
+            String vault = options.get("--vault");
+            return vault == null ? DataBase.DEFAULT_PATH : DataBase.vaultPath(vault);
+        }
+
+        // The names given to --vault; "all" stands for every vault there is.
+        public List<String> vaultNames() {
+            String vault = options.get("--vault");
+            return vault == null ? List.of() : Arrays.stream(vault.split(",")).distinct().toList();
+        }
+
+        // --getpass and --search can look in several vaults at once.
+        public boolean acrossVaults() {
+            List<String> names = vaultNames();
+            return names.size() > 1 || names.contains(ALL_VAULTS);
+        }
+
+        // Options are validated while parsing, so numeric ones always parse here.
+        public int intOption(String name, int defaultValue) {
+            String value = options.get(name);
+            return value == null ? defaultValue : Integer.parseInt(value);
+        }
+    }
+
+    // Options that take a value and may appear before or after the action.
+    private static final Set<String> numericOptions = Set.of("--idle-timeout", "--calibrate", "--limit", "--offset", "--stale-days");
+    private static final Set<String> valueOptions = Set.of("--format", "--db", "--engine", "--vault");
+    // Options without a value; they are stored as "true" when present.
+    private static final Set<String> flagOptions = Set.of("--mask", "--interactive", "--stats", "--read-only", "--no-bloom");
+
+    // Key under which --import, --export, --batch, --backup, --restore and
+    // --audit-breach keep their file or directory argument.
+    public static final String FILE_OPTION = "file";
+    // Key under which --search keeps its query.
+    public static final String QUERY_OPTION = "query";
+    // Key under which --convert keeps the engine to convert to.
+    public static final String ENGINE_OPTION = "engine";
+
+    public static final String ALL_VAULTS = "all";
+    // Vault names become file names, so they stay to this.
+    private static final Pattern VAULT_NAME = Pattern.compile("[A-Za-z0-9][A-Za-z0-9_.-]{0,63}");
 
     private ParsedArg parsedArg = null;
+    private final Map<String, String> options = new HashMap<>();
 
     private static final String helpText = """
-    Usage: HashVault <action> <args>
+    Usage: HashVault <action> <args> [--db path | --vault name] [--engine sqlite|log] [--read-only] [--stats]
 
     <action>   | <args>
     -------------------
     --add      | target username password
     --update   | id target username password
     --delete   | id
-    --list     | <NO ARGS>
-    --getpass  | target username
-    --newpass  | <NO ARGS>
+    --list     | [--limit n] [--offset n] [--format table|tsv|jsonl] [--mask]
+    --getpass  | target username [--vault name,name...|all]
+    --newpass  | [--calibrate ms]
+    --rotate   | [--calibrate ms]
+    --migrate  | <NO ARGS>
+    --agent    | [--idle-timeout minutes]
+    --stop-agent | <NO ARGS>
+    --import   | file|- [--format csv|jsonl]
+    --export   | file|- [--format csv|jsonl]
+    --search   | query [--limit k] [--format table|tsv|jsonl] [--vault name,name...|all]
+               | [query] --interactive
+    --batch    | file|-
+    --convert  | sqlite|log
+    --backup   | directory
+    --restore  | directory [--engine sqlite|log]
+    --audit-breach | corpus [--no-bloom]
+    --audit    | [--stale-days n] [--format table|json]
     """;
 
     public ParsedArg getParsedArg() {
@@ -26,6 +104,24 @@ public class ArgumentParser {
         int i = 0;
         while (i < args.length) {
 
+            if (numericOptions.contains(args[i])) {
+                i = parseNumericOption(args, i);
+                i++;
+                continue;
+            }
+
+            if (valueOptions.contains(args[i])) {
+                i = parseValueOption(args, i);
+                i++;
+                continue;
+            }
+
+            if (flagOptions.contains(args[i])) {
+                options.put(args[i], "true");
+                i++;
+                continue;
+            }
+
             if (parsedArg != null) {
                 throw new Exception("Only one action is allowed per execution.");
             }
@@ -37,6 +133,19 @@ public class ArgumentParser {
                 case "--list" -> { parseLIST(); i++; }
                 case "--getpass" -> { i = parseGETPASS(args, i); i++; }
                 case "--newpass" -> { parseNEWPASS(); i++; } 
+                case "--rotate" -> { parseROTATE(); i++; }
+                case "--migrate" -> { parseMIGRATE(); i++; }
+                case "--agent" -> { parseAGENT(); i++; }
+                case "--stop-agent" -> { parseSTOPAGENT(); i++; }
+                case "--import" -> { i = parseIMPORT(args, i); i++; }
+                case "--export" -> { i = parseEXPORT(args, i); i++; }
+                case "--search" -> { i = parseSEARCH(args, i); i++; }
+                case "--batch" -> { i = parseBATCH(args, i); i++; }
+                case "--convert" -> { i = parseCONVERT(args, i); i++; }
+                case "--backup" -> { i = parseBACKUP(args, i); i++; }
+                case "--restore" -> { i = parseRESTORE(args, i); i++; }
+                case "--audit-breach" -> { i = parseAUDITBREACH(args, i); i++; }
+                case "--audit" -> { parseAUDIT(); i++; }
                 case "--help" -> {
                     System.out.println(helpText);
                     System.exit(0);
@@ -48,6 +157,72 @@ public class ArgumentParser {
         if (parsedArg == null) {
             throw new Exception(helpText);
         }
+
+        if (parsedArg.action() == ActionHandler.ActionType.SEARCH
+            && !options.containsKey(QUERY_OPTION) && !options.containsKey("--interactive")) {
+            throw new Exception("Not enough arguments for 'search' action");
+        }
+
+        checkVaults();
+
+        parsedArg = new ParsedArg(parsedArg.action(), parsedArg.data(), Map.copyOf(options));
+    }
+
+    private void checkVaults() throws Exception {
+        String vault = options.get("--vault");
+        if (vault == null) {
+            return;
+        }
+        if (options.containsKey("--db")) {
+            throw new Exception("Use either --db or --vault");
+        }
+
+        String[] names = vault.split(",", -1);
+        for (String name : names) {
+            if (names.length > 1 && name.equals(ALL_VAULTS)) {
+                throw new Exception("'" + ALL_VAULTS + "' already names every vault");
+            }
+            if (!VAULT_NAME.matcher(name).matches()) {
+                throw new Exception("Invalid vault name '" + name + "'");
+            }
+        }
+
+        boolean across = names.length > 1 || vault.equals(ALL_VAULTS);
+        boolean searches = parsedArg.action() == ActionHandler.ActionType.GETPASS
+            || (parsedArg.action() == ActionHandler.ActionType.SEARCH && !options.containsKey("--interactive"));
+        if (across && !searches) {
+            throw new Exception("Only --getpass and non-interactive --search work across vaults");
+        }
+    }
+
+    private int parseValueOption(String[] args, int i) throws Exception {
+        if (args.length - i - 1 < 1) {
+            throw new Exception("Missing value for '" + args[i] + "'");
+        }
+
+        options.put(args[i], args[i + 1]);
+        return i + 1;
+    }
+
+    private int parseNumericOption(String[] args, int i) throws Exception {
+        if (args.length - i - 1 < 1) {
+            throw new Exception("Missing value for '" + args[i] + "'");
+        }
+
+        // Skipping nothing is a valid offset; every other count must be positive.
+        int minimum = args[i].equals("--offset") ? 0 : 1;
+
+        try {
+            int value = Integer.parseInt(args[i + 1]);
+            if (value < minimum) {
+                throw new NumberFormatException();
+            }
+        } catch (NumberFormatException e) {
+            throw new Exception("Invalid input for '" + args[i] + "'");
+        }
+
+        options.put(args[i], args[i + 1]);
+        return i + 1;
     }
 
     private int parseADD(String[] args, int i) throws Exception {
@@ -117,4 +292,106 @@ public class ArgumentParser {
         parsedArg = new ParsedArg(ActionHandler.ActionType.NEWPASS, null);
     }
 
+    private void parseROTATE() {
+        parsedArg = new ParsedArg(ActionHandler.ActionType.ROTATE, null);
+    }
+
+    private void parseMIGRATE() {
+        parsedArg = new ParsedArg(ActionHandler.ActionType.MIGRATE, null);
+    }
+
+    private void parseAGENT() {
+        parsedArg = new ParsedArg(ActionHandler.ActionType.AGENT, null);
+    }
+
+    private void parseSTOPAGENT() {
+        parsedArg = new ParsedArg(ActionHandler.ActionType.STOPAGENT, null);
+    }
+
+    private int parseIMPORT(String[] args, int i) throws Exception {
+        if (args.length - i - 1 < 1) {
+            throw new Exception("Not enough arguments for 'import' action");
+        }
+
+        options.put(FILE_OPTION, args[i + 1]);
+        parsedArg = new ParsedArg(ActionHandler.ActionType.IMPORT, null);
+        return i + 1;
+    }
+
+    private int parseEXPORT(String[] args, int i) throws Exception {
+        if (args.length - i - 1 < 1) {
+            throw new Exception("Not enough arguments for 'export' action");
+        }
+
+        options.put(FILE_OPTION, args[i + 1]);
+        parsedArg = new ParsedArg(ActionHandler.ActionType.EXPORT, null);
+        return i + 1;
+    }
+
+    private int parseBATCH(String[] args, int i) throws Exception {
+        if (args.length - i - 1 < 1) {
+            throw new Exception("Not enough arguments for 'batch' action");
+        }
+
+        options.put(FILE_OPTION, args[i + 1]);
+        parsedArg = new ParsedArg(ActionHandler.ActionType.BATCH, null);
+        return i + 1;
+    }
+
+    private int parseCONVERT(String[] args, int i) throws Exception {
+        if (args.length - i - 1 < 1) {
+            throw new Exception("Not enough arguments for 'convert' action");
+        }
+
+        CredentialStore.Engine.of(args[i + 1]);
+        options.put(ENGINE_OPTION, args[i + 1]);
+        parsedArg = new ParsedArg(ActionHandler.ActionType.CONVERT, null);
+        return i + 1;
+    }
+
+    private int parseBACKUP(String[] args, int i) throws Exception {
+        if (args.length - i - 1 < 1) {
+            throw new Exception("Not enough arguments for 'backup' action");
+        }
+
+        options.put(FILE_OPTION, args[i + 1]);
+        parsedArg = new ParsedArg(ActionHandler.ActionType.BACKUP, null);
+        return i + 1;
+    }
+
+    private int parseRESTORE(String[] args, int i) throws Exception {
+        if (args.length - i - 1 < 1) {
+            throw new Exception("Not enough arguments for 'restore' action");
+        }
+
+        options.put(FILE_OPTION, args[i + 1]);
+        parsedArg = new ParsedArg(ActionHandler.ActionType.RESTORE, null);
+        return i + 1;
+    }
+
+    private int parseAUDITBREACH(String[] args, int i) throws Exception {
+        if (args.length - i - 1 < 1) {
+            throw new Exception("Not enough arguments for 'audit-breach' action");
+        }
+
+        options.put(FILE_OPTION, args[i + 1]);
+        parsedArg = new ParsedArg(ActionHandler.ActionType.AUDITBREACH, null);
+        return i + 1;
+    }
+
+    private void parseAUDIT() {
+        parsedArg = new ParsedArg(ActionHandler.ActionType.AUDIT, null);
+    }
+
+    // The query is optional with --interactive, which may come after it.
+    private int parseSEARCH(String[] args, int i) {
+        parsedArg = new ParsedArg(ActionHandler.ActionType.SEARCH, null);
+
+        if (i + 1 < args.length && !args[i + 1].startsWith("--")) {
+            options.put(QUERY_OPTION, args[i + 1]);
+            return i + 1;
+        }
+        return i;
+    }
+
 }
@@ -4,25 +4,123 @@ import java.io.Console;
 import javax.crypto.SecretKey;
 
 import java.security.MessageDigest;
+import java.util.Arrays;
 
 public class Authenticator {
 
   public static SecretKey authenticate(DataBase dataBase) throws Exception {
+      SecretKey dataKey = tryUnlock(dataBase, readMasterPassword());
+      if (dataKey == null) {
+          throw new Exception("Wrong password");
+      }
+      return dataKey;
+  }
+
+  // Unlocks an open vault with master, or returns null if it is not the
+  // vault's password. Safe to call for several vaults at once.
+  public static SecretKey tryUnlock(DataBase dataBase, String master) throws Exception {
+      char[] chars = master.toCharArray();
+      try {
+          return tryUnlock(dataBase, chars);
+      } finally {
+          Arrays.fill(chars, '\0');
+      }
+  }
+
+  // For callers that hold the password in an array they clear themselves,
+  // so it is never copied into a String.
+  @SuppressWarnings("try")
+  public static SecretKey tryUnlock(DataBase dataBase, char[] master) throws Exception {
+      DataBase.Metadata metadata = dataBase.getMetadata();
+      SecretKey dataKey = tryUnlock(master, metadata);
+      if (dataKey == null) {
+          return null;
+      }
+
+      // Moving an older vault to the current scheme costs one more KDF run, once.
+      // The vault keeps its algorithm and work factor. A read-only vault waits
+      // until it is next opened for writing.
+      if ((metadata.wrappedKey() == null || metadata.kdf().version() != Vault.KDF_VERSION) && !dataBase.isReadOnly()) {
+          try (Stats.Phase phase = Stats.phase("kdf-upgrade")) {
+              dataBase.setMetadata(createMetadata(master, dataKey, currentScheme(metadata.kdf())));
+          }
+      }
+
+      return dataKey;
+  }
+
+  public static String readMasterPassword() throws Exception {
+      return readMasterPassword("Enter the master password: ");
+  }
+
+  @SuppressWarnings("try")
+  public static String readMasterPassword(String prompt) throws Exception {
       Console console = System.console();
       if (console == null) {
           throw new Exception("No console available");
       }
-      char[] passwordChars = console.readPassword("Enter the master password: ");
-      String master = new String(passwordChars);
-
-      DataBase.Metadata metadata = dataBase.getMetadata();
-      byte[] masterKey = Vault.getKeyBytes(master, metadata.loginSalt());
+      try (Stats.Phase phase = Stats.phase("prompt")) {
+          return new String(console.readPassword(prompt));
+      }
+  }
 
-      if (!MessageDigest.isEqual(masterKey, metadata.masterKey())) {
+  // Checks master against the metadata of a vault, or of a backup of one, and
+  // returns the data key it unlocks.
+  public static SecretKey unlock(String master, DataBase.Metadata metadata) throws Exception {
+      char[] chars = master.toCharArray();
+      SecretKey dataKey;
+      try {
+          dataKey = tryUnlock(chars, metadata);
+      } finally {
+          Arrays.fill(chars, '\0');
+      }
+      if (dataKey == null) {
           throw new Exception("Wrong password");
       }
+      return dataKey;
+  }
+
+  @SuppressWarnings("try")
+  private static SecretKey tryUnlock(char[] master, DataBase.Metadata metadata) throws Exception {
+      Vault.DerivedKeys keys;
+      try (Stats.Phase phase = Stats.phase("kdf")) {
+          keys = Vault.deriveKeys(master, metadata.loginSalt(), metadata.encryptionSalt(), metadata.kdf());
+      }
+
+      if (!MessageDigest.isEqual(keys.verifier(), metadata.masterKey())) {
+          return null;
+      }
+
+      // Vaults created before envelope encryption have every row encrypted with
+      // the password-derived key. That key is kept as the data key, so no row
+      // has to be rewritten.
+      return metadata.wrappedKey() == null
+          ? keys.wrappingKey()
+          : Vault.unwrapKey(metadata.wrappedKey(), keys.wrappingKey());
+  }
+
+  // Fresh salts, verifier and wrapped data key for the given master password.
+  public static DataBase.Metadata createMetadata(String master, SecretKey dataKey, Vault.KdfParams kdf) throws Exception {
+      char[] chars = master.toCharArray();
+      try {
+          return createMetadata(chars, dataKey, kdf);
+      } finally {
+          Arrays.fill(chars, '\0');
+      }
+  }
+
+  public static DataBase.Metadata createMetadata(char[] master, SecretKey dataKey, Vault.KdfParams kdf) throws Exception {
+      byte[] loginSalt = Vault.generateBytes(Vault.BytesType.SALT_BYTES);
+      byte[] encryptionSalt = Vault.generateBytes(Vault.BytesType.SALT_BYTES);
 
-      return Vault.getAESKey(master, metadata.encryptionSalt());
+      Vault.DerivedKeys keys = Vault.deriveKeys(master, loginSalt, encryptionSalt, kdf);
+      byte[] wrappedKey = Vault.wrapKey(dataKey, keys.wrappingKey());
+
+      return new DataBase.Metadata(keys.verifier(), loginSalt, encryptionSalt, wrappedKey, kdf);
+  }
+
+  public static Vault.KdfParams currentScheme(Vault.KdfParams kdf) {
+      return new Vault.KdfParams(Vault.KDF_VERSION, kdf.algorithm(), kdf.iterations());
   }
-  
+
 }
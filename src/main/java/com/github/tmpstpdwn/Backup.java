@@ -0,0 +1,367 @@
+package com.github.tmpstpdwn;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.stream.Stream;
+
+import javax.crypto.SecretKey;
+
+// --backup and --restore. A backup is a directory of numbered segment files.
+// A base segment holds every row of the vault; a delta holds the rows written
+// and the ids deleted since the segment before it, found through the change
+// counter of the store, so a backup costs what changed rather than what the
+// vault holds. Restoring replays the latest base and the deltas after it.
+//
+// Segment layout, big-endian:
+//
+//   header   magic, number, kind, lineage, since, upto, SHA-256 of the
+//            previous segment, fingerprint of the data key, vault metadata
+//   payload  length, then the rows and deleted ids, AES-GCM encrypted under a
+//            key derived from the data key with the header as associated data;
+//            rows of format 1 segments have no modification time, and those
+//            of format 2 no password change time
+//   trailer  SHA-256 of everything before it
+//
+// The metadata is stored in the clear, as it is in the vault: it is what the
+// master password unlocks. Rows stay encrypted under the data key inside the
+// payload as well. A new base is taken when the vault file was replaced or the
+// data key rotated, since then neither the change numbers nor the rows carry
+// over.
+class Backup {
+
+    // rows and deleted are what the segment holds; for a base, every row.
+    public static record Result(Path segment, boolean full, int rows, int deleted) {}
+
+    // What a restore puts into the new vault.
+    public static record Snapshot(DataBase.Metadata metadata, List<CredentialStore.EncryptedRow> rows, int segments) {}
+
+    private static record Header(int format, int number, boolean full, byte[] lineage, long since, long upto, byte[] previous,
+                                 byte[] fingerprint, DataBase.Metadata metadata, byte[] bytes) {}
+
+    private static record Segment(Path path, Header header, byte[] payload, byte[] digest) {}
+
+    // The last byte of the magic is the format.
+    private static final byte[] MAGIC = {'H', 'V', 'B', 'A', 'K', 0, 0, 3};
+    private static final byte BASE = 0;
+    private static final byte DELTA = 1;
+    private static final int DIGEST_BYTES = 32;
+    private static final String PREFIX = "segment-";
+    private static final String SUFFIX = ".hvbak";
+    private static final int HEADER_READ = 64 * 1024;
+
+    // Returns null when nothing changed since the last segment.
+    public static Result backup(DataBase db, SecretKey key, Path directory) throws Exception {
+        Files.createDirectories(directory);
+        List<Path> segments = segments(directory);
+        byte[] fingerprint = Vault.keyFingerprint(key);
+
+        Header last = null;
+        byte[] lastDigest = new byte[DIGEST_BYTES];
+        if (!segments.isEmpty()) {
+            Path lastPath = segments.get(segments.size() - 1);
+            last = readHeader(lastPath);
+            lastDigest = readTrailer(lastPath);
+        }
+
+        boolean sameKey = last != null && MessageDigest.isEqual(last.fingerprint(), fingerprint);
+        DataBase.ChangeSet changes = sameKey
+            ? db.changesSince(last.lineage(), last.upto())
+            : db.changesSince(null, -1);
+        if (!changes.full() && changes.position().count() == last.upto()) {
+            return null;
+        }
+
+        int number = last == null ? 1 : last.number() + 1;
+        byte[] lineage = changes.position().lineage() == null ? new byte[16] : changes.position().lineage();
+        byte[] header = header(number, changes.full(), lineage, changes.full() ? -1 : last.upto(),
+            changes.position().count(), lastDigest, fingerprint, changes.metadata());
+        byte[] payload = Vault.encryptBytes(payload(changes), header, Vault.getBackupKey(key));
+
+        Path segment = directory.resolve(String.format("%s%06d%s", PREFIX, number, SUFFIX));
+        write(segment, header, payload);
+        return new Result(segment, changes.full(), changes.rows().size(), changes.deleted().size());
+    }
+
+    // Reads and checks the segments from the latest base on, then decrypts and
+    // replays them; the master password is asked for against the metadata of
+    // the newest segment.
+    public static Snapshot restore(Path directory, PasswordSource passwords) throws Exception {
+        List<Path> paths = segments(directory);
+        if (paths.isEmpty()) {
+            throw new Exception("No backup found in " + directory);
+        }
+
+        int base = paths.size() - 1;
+        while (base > 0 && !readHeader(paths.get(base)).full()) {
+            base--;
+        }
+
+        List<Segment> chain = new ArrayList<>();
+        for (Path path : paths.subList(base, paths.size())) {
+            Segment segment = readSegment(path);
+            if (chain.isEmpty()) {
+                if (!segment.header().full()) {
+                    throw new Exception("Backup has no base segment");
+                }
+            } else {
+                checkFollows(chain.get(chain.size() - 1), segment);
+            }
+            chain.add(segment);
+        }
+
+        Header newest = chain.get(chain.size() - 1).header();
+        SecretKey key = Authenticator.unlock(passwords.read(), newest.metadata());
+        SecretKey backupKey = Vault.getBackupKey(key);
+        byte[] fingerprint = Vault.keyFingerprint(key);
+
+        TreeMap<Integer, CredentialStore.EncryptedRow> rows = new TreeMap<>();
+        for (Segment segment : chain) {
+            if (!MessageDigest.isEqual(segment.header().fingerprint(), fingerprint)) {
+                throw new Exception("Backup segment " + segment.path().getFileName() + " belongs to another data key");
+            }
+            byte[] plain = Vault.decryptBytes(segment.payload(), segment.header().bytes(), backupKey);
+            replay(ByteBuffer.wrap(plain), segment.header().format(), rows);
+        }
+
+        return new Snapshot(newest.metadata(), new ArrayList<>(rows.values()), chain.size());
+    }
+
+    public interface PasswordSource {
+        String read() throws Exception;
+    }
+
+    private static void checkFollows(Segment previous, Segment segment) throws Exception {
+        Header before = previous.header();
+        Header header = segment.header();
+        String name = segment.path().getFileName().toString();
+
+        if (header.number() != before.number() + 1 || !MessageDigest.isEqual(header.previous(), previous.digest())) {
+            throw new Exception("Backup segment " + name + " does not follow the one before it");
+        }
+        if (!header.full() && (!Arrays.equals(header.lineage(), before.lineage()) || header.since() != before.upto())) {
+            throw new Exception("Backup segment " + name + " does not continue the one before it");
+        }
+    }
+
+    private static void replay(ByteBuffer plain, int format, TreeMap<Integer, CredentialStore.EncryptedRow> rows) {
+        int count = plain.getInt();
+        for (int i = 0; i < count; i++) {
+            int id = plain.getInt();
+            int version = plain.getInt();
+            byte[] data = readBlob(plain);
+            byte[] secret = readBlob(plain);
+            byte[] lookup = readBlob(plain);
+            long modified = format >= 2 ? plain.getLong() : 0;
+            long passwordChanged = format >= 3 ? plain.getLong() : modified;
+            rows.put(id, new CredentialStore.EncryptedRow(id, data, secret, lookup, version, modified, passwordChanged));
+        }
+        int deleted = plain.getInt();
+        for (int i = 0; i < deleted; i++) {
+            rows.remove(plain.getInt());
+        }
+    }
+
+    private static byte[] payload(DataBase.ChangeSet changes) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(changes.rows().size());
+        for (CredentialStore.EncryptedRow row : changes.rows()) {
+            out.writeInt(row.id());
+            out.writeInt(row.version());
+            writeBlob(out, row.data());
+            writeBlob(out, row.secret());
+            writeBlob(out, row.lookup());
+            out.writeLong(row.modified());
+            out.writeLong(row.passwordChanged());
+        }
+        out.writeInt(changes.deleted().size());
+        for (int id : changes.deleted()) {
+            out.writeInt(id);
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private static byte[] header(int number, boolean full, byte[] lineage, long since, long upto, byte[] previous,
+                                 byte[] fingerprint, DataBase.Metadata metadata) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.write(MAGIC);
+        out.writeInt(number);
+        out.writeByte(full ? BASE : DELTA);
+        out.write(lineage);
+        out.writeLong(since);
+        out.writeLong(upto);
+        out.write(previous);
+        out.write(fingerprint);
+        writeBlob(out, metadata.masterKey());
+        writeBlob(out, metadata.loginSalt());
+        writeBlob(out, metadata.encryptionSalt());
+        writeBlob(out, metadata.wrappedKey());
+        out.writeInt(metadata.kdf().version());
+        writeBlob(out, metadata.kdf().algorithm().getBytes(StandardCharsets.UTF_8));
+        out.writeInt(metadata.kdf().iterations());
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    // Only the owner can read a segment, and it only appears under its final
+    // name once complete.
+    private static void write(Path segment, byte[] header, byte[] payload) throws Exception {
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        digest.update(header);
+        byte[] length = ByteBuffer.allocate(4).putInt(payload.length).array();
+        digest.update(length);
+        digest.update(payload);
+
+        Path partial = segment.resolveSibling(segment.getFileName() + ".partial");
+        Files.deleteIfExists(partial);
+        Files.createFile(partial, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+        try (FileChannel out = FileChannel.open(partial, StandardOpenOption.WRITE)) {
+            for (byte[] part : List.of(header, length, payload, digest.digest())) {
+                ByteBuffer buffer = ByteBuffer.wrap(part);
+                while (buffer.hasRemaining()) {
+                    out.write(buffer);
+                }
+            }
+            out.force(true);
+        }
+
+        try {
+            Files.move(partial, segment, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            Files.deleteIfExists(partial);
+            throw new Exception("Failed to write backup segment " + segment, e);
+        }
+    }
+
+    private static List<Path> segments(Path directory) throws Exception {
+        if (!Files.isDirectory(directory)) {
+            return List.of();
+        }
+        try (Stream<Path> files = Files.list(directory)) {
+            return files
+                .filter(path -> {
+                    String name = path.getFileName().toString();
+                    return name.startsWith(PREFIX) && name.endsWith(SUFFIX);
+                })
+                .sorted()
+                .toList();
+        }
+    }
+
+    // Headers are small; only the start of the file is read, however large
+    // the payload behind it is.
+    private static Header readHeader(Path path) throws Exception {
+        try (FileChannel in = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer start = ByteBuffer.allocate((int) Math.min(in.size(), HEADER_READ));
+            while (start.hasRemaining() && in.read(start) >= 0) {
+            }
+            return readHeader(start.flip(), path);
+        }
+    }
+
+    private static Header readHeader(ByteBuffer in, Path path) throws Exception {
+        try {
+            byte[] magic = new byte[MAGIC.length];
+            in.get(magic);
+            int format = magic[MAGIC.length - 1];
+            if (!Arrays.equals(magic, 0, MAGIC.length - 1, MAGIC, 0, MAGIC.length - 1)) {
+                throw new Exception("Not a HashVault backup segment: " + path);
+            }
+            if (format < 1 || format > MAGIC[MAGIC.length - 1]) {
+                throw new Exception("Backup segment " + path.getFileName() + " is from a newer version");
+            }
+            int number = in.getInt();
+            boolean full = in.get() == BASE;
+            byte[] lineage = readBytes(in, 16);
+            long since = in.getLong();
+            long upto = in.getLong();
+            byte[] previous = readBytes(in, DIGEST_BYTES);
+            byte[] fingerprint = readBytes(in, 16);
+            byte[] masterKey = readBlob(in);
+            byte[] loginSalt = readBlob(in);
+            byte[] encryptionSalt = readBlob(in);
+            byte[] wrappedKey = readBlob(in);
+            int version = in.getInt();
+            String algorithm = new String(readBlob(in), StandardCharsets.UTF_8);
+            int iterations = in.getInt();
+
+            DataBase.Metadata metadata = new DataBase.Metadata(masterKey, loginSalt, encryptionSalt, wrappedKey,
+                new Vault.KdfParams(version, algorithm, iterations));
+            byte[] bytes = Arrays.copyOfRange(in.array(), 0, in.position());
+            return new Header(format, number, full, lineage, since, upto, previous, fingerprint, metadata, bytes);
+        } catch (BufferUnderflowException | IllegalArgumentException | NullPointerException e) {
+            throw new Exception("Corrupt backup segment " + path.getFileName());
+        }
+    }
+
+    private static Segment readSegment(Path path) throws Exception {
+        byte[] bytes = Files.readAllBytes(path);
+        if (bytes.length < DIGEST_BYTES) {
+            throw new Exception("Corrupt backup segment " + path.getFileName());
+        }
+
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        digest.update(bytes, 0, bytes.length - DIGEST_BYTES);
+        byte[] expected = Arrays.copyOfRange(bytes, bytes.length - DIGEST_BYTES, bytes.length);
+        if (!MessageDigest.isEqual(digest.digest(), expected)) {
+            throw new Exception("Backup segment " + path.getFileName() + " fails its checksum");
+        }
+
+        ByteBuffer in = ByteBuffer.wrap(bytes, 0, bytes.length - DIGEST_BYTES);
+        Header header = readHeader(in, path);
+        try {
+            byte[] payload = readBytes(in, in.getInt());
+            return new Segment(path, header, payload, expected);
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            throw new Exception("Corrupt backup segment " + path.getFileName());
+        }
+    }
+
+    private static byte[] readTrailer(Path path) throws IOException {
+        try (FileChannel in = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer trailer = ByteBuffer.allocate(DIGEST_BYTES);
+            in.read(trailer, in.size() - DIGEST_BYTES);
+            return trailer.array();
+        }
+    }
+
+    private static void writeBlob(DataOutputStream out, byte[] blob) throws IOException {
+        if (blob == null) {
+            out.writeInt(-1);
+        } else {
+            out.writeInt(blob.length);
+            out.write(blob);
+        }
+    }
+
+    private static byte[] readBlob(ByteBuffer in) {
+        int length = in.getInt();
+        return length < 0 ? null : readBytes(in, length);
+    }
+
+    private static byte[] readBytes(ByteBuffer in, int length) {
+        if (length > in.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        return bytes;
+    }
+}
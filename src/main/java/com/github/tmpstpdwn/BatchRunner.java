@@ -0,0 +1,181 @@
+package com.github.tmpstpdwn;
+
+import java.io.BufferedReader;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.crypto.SecretKey;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+// --batch: runs one command per input line against an already unlocked vault,
+// all inside a single transaction. Lines use the command line syntax, with the
+// leading "--" of the action optional and shell-style quoting:
+//
+//   add web01 deploy 'p4ss word'
+//   --getpass web01 deploy
+//   # comments and blank lines are skipped
+//
+// Every command prints one JSON object on its own line, followed by a final
+// status line. The first failing command stops the batch and rolls back every
+// change made by the ones before it.
+class BatchRunner {
+
+    private static final Set<ActionHandler.ActionType> batchActions = EnumSet.of(
+        ActionHandler.ActionType.ADD,
+        ActionHandler.ActionType.UPDATE,
+        ActionHandler.ActionType.DELETE,
+        ActionHandler.ActionType.GETPASS,
+        ActionHandler.ActionType.LIST
+    );
+
+    // Every line runs against the vault the batch was started on, so options
+    // that pick or open a vault are refused rather than silently ignored.
+    private static final List<String> vaultOptions = List.of("--db", "--vault", "--engine", "--read-only");
+
+    public static void run(BufferedReader in, DataBase db, SecretKey key, PrintStream out) throws Exception {
+        int lineNumber = 0;
+        int commands = 0;
+
+        try (DataBase.Transaction tx = db.transaction()) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                lineNumber++;
+                if (line.isBlank() || line.strip().startsWith("#")) {
+                    continue;
+                }
+
+                JSONObject result = new JSONObject();
+                result.put("line", lineNumber);
+                runLine(line, db, key, result);
+                result.put("status", "ok");
+                out.println(result);
+                commands++;
+            }
+
+            tx.commit();
+        } catch (Exception e) {
+            String message = e.getMessage() != null ? e.getMessage() : e.toString();
+            out.println(new JSONObject()
+                .put("line", lineNumber)
+                .put("status", "error")
+                .put("message", message));
+            out.println(new JSONObject().put("status", "rolled_back"));
+            throw new Exception("Batch failed at line " + lineNumber + ", no changes were saved");
+        }
+
+        out.println(new JSONObject().put("status", "committed").put("commands", commands));
+    }
+
+    private static void runLine(String line, DataBase db, SecretKey key, JSONObject result) throws Exception {
+        List<String> args = tokenize(line);
+        if (!args.get(0).startsWith("--")) {
+            args.set(0, "--" + args.get(0));
+        }
+        if (args.get(0).equals("--help")) {
+            throw new Exception("'--help' is not allowed in a batch");
+        }
+
+        ArgumentParser parser = new ArgumentParser();
+        parser.parseArgs(args.toArray(new String[0]));
+        ArgumentParser.ParsedArg parsedArg = parser.getParsedArg();
+
+        if (!batchActions.contains(parsedArg.action())) {
+            throw new Exception("'" + args.get(0) + "' is not allowed in a batch");
+        }
+        for (String option : vaultOptions) {
+            if (parsedArg.options().containsKey(option)) {
+                throw new Exception("'" + option + "' is not allowed on a batch line, pass it to --batch instead");
+            }
+        }
+
+        DataBase.CredentialData data = parsedArg.data();
+        result.put("action", parsedArg.action().name().toLowerCase());
+
+        switch (parsedArg.action()) {
+            case ADD -> db.insertCredentialUnique(data, key);
+            case UPDATE -> {
+                db.updateCredential(data, key);
+                result.put("id", data.id());
+            }
+            case DELETE -> {
+                db.deleteCredential(data);
+                result.put("id", data.id());
+            }
+            case GETPASS -> result.put("password", db.getPassword(data, key));
+            case LIST -> {
+                boolean mask = parsedArg.options().containsKey("--mask");
+                JSONArray credentials = new JSONArray();
+                db.forEachCredential(key, parsedArg.intOption("--limit", -1), parsedArg.intOption("--offset", 0), !mask, cred -> {
+                    JSONObject json = new JSONObject();
+                    json.put("id", cred.id());
+                    json.put("target", cred.target());
+                    json.put("username", cred.username());
+                    if (!mask) {
+                        json.put("password", cred.password());
+                    }
+                    credentials.put(json);
+                });
+                result.put("credentials", credentials);
+            }
+            default -> throw new IllegalStateException();
+        }
+    }
+
+    // Splits on unquoted whitespace. Single quotes keep everything literally;
+    // inside double quotes and outside quotes a backslash escapes the next char.
+    static List<String> tokenize(String line) throws Exception {
+        List<String> tokens = new ArrayList<>();
+        StringBuilder token = new StringBuilder();
+        boolean inToken = false;
+        char quote = 0;
+
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+
+            if (quote == '\'') {
+                if (c == '\'') {
+                    quote = 0;
+                } else {
+                    token.append(c);
+                }
+            } else if (c == '\\') {
+                if (++i == line.length()) {
+                    throw new Exception("Trailing backslash");
+                }
+                token.append(line.charAt(i));
+                inToken = true;
+            } else if (quote == '"') {
+                if (c == '"') {
+                    quote = 0;
+                } else {
+                    token.append(c);
+                }
+            } else if (c == '\'' || c == '"') {
+                quote = c;
+                inToken = true;
+            } else if (Character.isWhitespace(c)) {
+                if (inToken) {
+                    tokens.add(token.toString());
+                    token.setLength(0);
+                    inToken = false;
+                }
+            } else {
+                token.append(c);
+                inToken = true;
+            }
+        }
+
+        if (quote != 0) {
+            throw new Exception("Unterminated quote");
+        }
+        if (inToken) {
+            tokens.add(token.toString());
+        }
+        return tokens;
+    }
+}
@@ -0,0 +1,532 @@
+package com.github.tmpstpdwn;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+// --audit-breach: looks the SHA-1 of every vault password up in a local corpus
+// of breached password hashes, one "HASH" or "HASH:COUNT" line each as the
+// Pwned Passwords downloads have them. Such a corpus runs to tens of GB, so it
+// is converted once into a file next to it that is searched in place:
+//
+//   header   magic, number of hashes, Bloom filter size in bits, hashes per key
+//   bloom    optional Bloom filter over all hashes, ~8 bits per hash
+//   records  24 bytes each, SHA-1 then count, sorted by SHA-1 without duplicates
+//
+// Both parts are memory-mapped, never read onto the heap. A password that
+// misses the Bloom filter costs a handful of reads of it; one that passes is
+// found by binary search over the records. Converting sorts the corpus in
+// chunks that fit in memory and merges the sorted runs, so it works on corpora
+// of any order and size.
+class BreachCorpus implements AutoCloseable {
+
+    public static record Hit(DataBase.CredentialData credential, int count) {}
+
+    private static final byte[] MAGIC = {'H', 'V', 'B', 'R', 'E', 'A', 'C', 'H'};
+    private static final int HEADER = 32;
+    private static final int HASH = 20;
+    private static final int RECORD = HASH + 4;
+    private static final String SUFFIX = ".hvbreach";
+
+    // Mappings are limited to 2 GiB each; regions hold whole records.
+    private static final long REGION = 1L << 30;
+    private static final long RECORDS_PER_REGION = REGION / RECORD;
+
+    // 8 bits and 6 probes per hash give about 2% false positives.
+    private static final int BLOOM_BITS_PER_HASH = 8;
+    private static final int BLOOM_HASHES = 6;
+
+    // Hashes sorted in memory at a time while converting: 48 MiB.
+    private static final int CHUNK_RECORDS = 1 << 21;
+    private static final int INSERTION_SORT = 16;
+    private static final int MERGE_BUFFER = 64 * 1024;
+    private static final int LINE_LIMIT = 256;
+
+    private static final ThreadLocal<MessageDigest> SHA1 = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (Exception e) {
+            throw new IllegalStateException("SHA-1 unavailable", e);
+        }
+    });
+
+    private final FileChannel channel;
+    private final long count;
+    private final long bloomBits;
+    private final int bloomHashes;
+    private final MappedByteBuffer[] bloom;
+    private final MappedByteBuffer[] records;
+
+    private BreachCorpus(Path path) throws Exception {
+        channel = FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            ByteBuffer header = ByteBuffer.allocate(HEADER);
+            while (header.hasRemaining() && channel.read(header) >= 0) {
+            }
+            header.flip();
+            if (header.remaining() < HEADER || !Arrays.equals(header.array(), 0, MAGIC.length, MAGIC, 0, MAGIC.length)) {
+                throw new Exception("Not a converted breach corpus: " + path);
+            }
+            header.position(MAGIC.length);
+            count = header.getLong();
+            bloomBits = header.getLong();
+            bloomHashes = header.getInt();
+
+            long bloomBytes = bloomBits / 8;
+            if (channel.size() < HEADER + bloomBytes + count * RECORD) {
+                throw new Exception("Converted breach corpus is cut short: " + path);
+            }
+            bloom = map(channel, FileChannel.MapMode.READ_ONLY, HEADER, bloomBytes, REGION);
+            records = map(channel, FileChannel.MapMode.READ_ONLY, HEADER + bloomBytes, count * RECORD, RECORDS_PER_REGION * RECORD);
+        } catch (Exception e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    // Where the converted form of a corpus is kept.
+    public static Path convertedPath(Path corpus) {
+        return corpus.resolveSibling(corpus.getFileName() + SUFFIX);
+    }
+
+    // Whether the corpus has no converted form yet, or one older than itself.
+    public static boolean needsConversion(Path corpus) throws IOException {
+        Path converted = convertedPath(corpus);
+        if (!Files.exists(corpus)) {
+            throw new IOException("No breach corpus at " + corpus);
+        }
+        return !Files.exists(converted)
+            || Files.getLastModifiedTime(converted).compareTo(Files.getLastModifiedTime(corpus)) < 0;
+    }
+
+    public static BreachCorpus open(Path corpus) throws Exception {
+        return new BreachCorpus(convertedPath(corpus));
+    }
+
+    public long size() {
+        return count;
+    }
+
+    // Hashes the passwords in parallel and returns the credentials whose
+    // password is in the corpus, in the order given.
+    public List<Hit> check(List<DataBase.CredentialData> credentials) {
+        return credentials.parallelStream()
+            .map(cred -> new Hit(cred, occurrences(sha1(cred.password()))))
+            .filter(hit -> hit.count() > 0)
+            .toList();
+    }
+
+    // How often the corpus says the password with this SHA-1 was seen; 0 when
+    // it is not in the corpus. Safe to call from several threads.
+    public int occurrences(byte[] hash) {
+        if (bloomBits > 0 && !mightContain(hash)) {
+            return 0;
+        }
+
+        long low = 0;
+        long high = count - 1;
+        while (low <= high) {
+            long middle = (low + high) >>> 1;
+            int order = compareAt(middle, hash);
+            if (order < 0) {
+                low = middle + 1;
+            } else if (order > 0) {
+                high = middle - 1;
+            } else {
+                MappedByteBuffer region = records[(int) (middle / RECORDS_PER_REGION)];
+                return region.getInt((int) (middle % RECORDS_PER_REGION) * RECORD + HASH);
+            }
+        }
+        return 0;
+    }
+
+    public static byte[] sha1(String password) {
+        return SHA1.get().digest(password.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private int compareAt(long index, byte[] hash) {
+        MappedByteBuffer region = records[(int) (index / RECORDS_PER_REGION)];
+        int base = (int) (index % RECORDS_PER_REGION) * RECORD;
+        for (int i = 0; i < HASH; i++) {
+            int order = Byte.compareUnsigned(region.get(base + i), hash[i]);
+            if (order != 0) {
+                return order;
+            }
+        }
+        return 0;
+    }
+
+    private boolean mightContain(byte[] hash) {
+        long h1 = ByteBuffer.wrap(hash, 0, 8).getLong();
+        long h2 = ByteBuffer.wrap(hash, 8, 8).getLong() | 1;
+        for (int i = 0; i < bloomHashes; i++) {
+            long bit = Long.remainderUnsigned(h1 + i * h2, bloomBits);
+            MappedByteBuffer region = bloom[(int) ((bit >>> 3) / REGION)];
+            if ((region.get((int) ((bit >>> 3) % REGION)) & (1 << (bit & 7))) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Maps length bytes from offset on in regions of at most regionSize bytes.
+    private static MappedByteBuffer[] map(FileChannel channel, FileChannel.MapMode mode, long offset, long length, long regionSize) throws IOException {
+        MappedByteBuffer[] regions = new MappedByteBuffer[(int) ((length + regionSize - 1) / regionSize)];
+        for (int i = 0; i < regions.length; i++) {
+            long start = i * regionSize;
+            regions[i] = channel.map(mode, offset + start, Math.min(regionSize, length - start));
+        }
+        return regions;
+    }
+
+    // Sorts the corpus into runs of CHUNK_RECORDS hashes, then merges the runs
+    // into the converted file, dropping duplicates and filling the Bloom filter
+    // on the way. The file only gets its final name once complete.
+    public static void convert(Path corpus, boolean withBloom, DataBase.ProgressListener progress) throws Exception {
+        Path converted = convertedPath(corpus);
+        Path partial = converted.resolveSibling(converted.getFileName() + ".partial");
+        List<Path> runs = new ArrayList<>();
+
+        try {
+            long total = sortRuns(corpus, converted, runs, progress);
+            long bloomBits = withBloom ? Math.max(64, (total * BLOOM_BITS_PER_HASH + 63) / 64 * 64) : 0;
+
+            long written;
+            try (FileChannel out = FileChannel.open(partial,
+                    StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                MappedByteBuffer[] bloom = map(out, FileChannel.MapMode.READ_WRITE, HEADER, bloomBits / 8, REGION);
+                written = merge(runs, out, HEADER + bloomBits / 8, bloom, bloomBits);
+
+                ByteBuffer header = ByteBuffer.allocate(HEADER);
+                header.put(MAGIC).putLong(written).putLong(bloomBits).putInt(withBloom ? BLOOM_HASHES : 0);
+                out.write(header.flip(), 0);
+                for (MappedByteBuffer region : bloom) {
+                    region.force();
+                }
+                out.force(true);
+            }
+            Files.move(partial, converted, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            for (Path run : runs) {
+                Files.deleteIfExists(run);
+            }
+            Files.deleteIfExists(partial);
+        }
+    }
+
+    // Returns how many hashes the corpus holds, duplicates included.
+    private static long sortRuns(Path corpus, Path converted, List<Path> runs, DataBase.ProgressListener progress) throws Exception {
+        byte[] chunk = new byte[CHUNK_RECORDS * RECORD];
+        byte[] line = new byte[LINE_LIMIT];
+        long total = 0;
+        long lineNumber = 0;
+        int filled = 0;
+
+        try (LineReader in = new LineReader(Files.newInputStream(corpus))) {
+            while (true) {
+                int length = in.readLine(line);
+                if (length < 0) {
+                    break;
+                }
+                lineNumber++;
+                if (!parseLine(line, length, chunk, filled * RECORD)) {
+                    if (isBlank(line, length)) {
+                        continue;
+                    }
+                    throw new Exception("Invalid hash on line " + lineNumber + " of " + corpus);
+                }
+
+                filled++;
+                total++;
+                if (filled == CHUNK_RECORDS) {
+                    runs.add(writeRun(converted, chunk, filled));
+                    filled = 0;
+                    progress.onProgress((int) Math.min(Integer.MAX_VALUE, total), -1);
+                }
+            }
+        }
+        if (filled > 0 || runs.isEmpty()) {
+            runs.add(writeRun(converted, chunk, filled));
+            progress.onProgress((int) Math.min(Integer.MAX_VALUE, total), -1);
+        }
+        return total;
+    }
+
+    // Splits the corpus into lines straight from a large buffer; going through
+    // a BufferedInputStream a byte at a time costs more than the sorting.
+    private static class LineReader implements AutoCloseable {
+        private final InputStream in;
+        private final byte[] buffer = new byte[1 << 20];
+        private int position;
+        private int limit;
+
+        LineReader(InputStream in) {
+            this.in = in;
+        }
+
+        // Copies the next line into line and returns its length, or -1 at the
+        // end of input. Lines longer than line fail.
+        int readLine(byte[] line) throws Exception {
+            int length = 0;
+            while (true) {
+                if (position == limit) {
+                    limit = in.read(buffer);
+                    position = 0;
+                    if (limit <= 0) {
+                        limit = 0;
+                        return length > 0 ? length : -1;
+                    }
+                }
+
+                int start = position;
+                while (position < limit && buffer[position] != '\n') {
+                    position++;
+                }
+                int chunk = position - start;
+                if (length + chunk > line.length) {
+                    throw new Exception("Line too long in breach corpus");
+                }
+                System.arraycopy(buffer, start, line, length, chunk);
+                length += chunk;
+
+                if (position < limit) {
+                    position++;
+                    return length;
+                }
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    // "HASH" or "HASH:COUNT" with a hex SHA-1, into a record at offset. A hash
+    // without a count, or with an empty or zero one, counts once: it is listed,
+    // so it was seen.
+    private static boolean parseLine(byte[] line, int length, byte[] into, int offset) {
+        while (length > 0 && (line[length - 1] == '\r' || line[length - 1] == ' ')) {
+            length--;
+        }
+        if (length < 2 * HASH || (length > 2 * HASH && line[2 * HASH] != ':')) {
+            return false;
+        }
+
+        for (int i = 0; i < HASH; i++) {
+            int high = Character.digit(line[2 * i], 16);
+            int low = Character.digit(line[2 * i + 1], 16);
+            if (high < 0 || low < 0) {
+                return false;
+            }
+            into[offset + i] = (byte) (high << 4 | low);
+        }
+
+        long count = 0;
+        for (int i = 2 * HASH + 1; i < length; i++) {
+            int digit = Character.digit(line[i], 10);
+            if (digit < 0) {
+                return false;
+            }
+            count = Math.min(Integer.MAX_VALUE, count * 10 + digit);
+        }
+        ByteBuffer.wrap(into, offset + HASH, 4).putInt((int) Math.max(1, count));
+        return true;
+    }
+
+    private static boolean isBlank(byte[] line, int length) {
+        for (int i = 0; i < length; i++) {
+            if (!Character.isWhitespace(line[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static Path writeRun(Path converted, byte[] chunk, int records) throws IOException {
+        sort(chunk, 0, records, new byte[HASH], new byte[RECORD]);
+        Path run = Files.createTempFile(converted.toAbsolutePath().getParent(), converted.getFileName() + ".", ".run");
+        try (FileChannel out = FileChannel.open(run, StandardOpenOption.WRITE)) {
+            ByteBuffer buffer = ByteBuffer.wrap(chunk, 0, records * RECORD);
+            while (buffer.hasRemaining()) {
+                out.write(buffer);
+            }
+        }
+        return run;
+    }
+
+    // Quicksort of the records in [low, high) by hash, in place.
+    private static void sort(byte[] records, int low, int high, byte[] pivot, byte[] swap) {
+        while (high - low > INSERTION_SORT) {
+            int middle = (low + high) >>> 1;
+            System.arraycopy(records, median(records, low, middle, high - 1) * RECORD, pivot, 0, HASH);
+
+            int i = low;
+            int j = high - 1;
+            while (i <= j) {
+                while (compare(records, i, pivot) < 0) {
+                    i++;
+                }
+                while (compare(records, j, pivot) > 0) {
+                    j--;
+                }
+                if (i <= j) {
+                    swap(records, i++, j--, swap);
+                }
+            }
+
+            // Recursing into the smaller side bounds the stack depth.
+            if (j + 1 - low < high - i) {
+                sort(records, low, j + 1, pivot, swap);
+                low = i;
+            } else {
+                sort(records, i, high, pivot, swap);
+                high = j + 1;
+            }
+        }
+
+        for (int i = low + 1; i < high; i++) {
+            for (int j = i; j > low && Arrays.compareUnsigned(records, (j - 1) * RECORD, (j - 1) * RECORD + HASH,
+                    records, j * RECORD, j * RECORD + HASH) > 0; j--) {
+                swap(records, j - 1, j, swap);
+            }
+        }
+    }
+
+    private static int median(byte[] records, int a, int b, int c) {
+        if (compareRecords(records, a, b) > 0) {
+            int t = a;
+            a = b;
+            b = t;
+        }
+        if (compareRecords(records, b, c) > 0) {
+            b = compareRecords(records, a, c) > 0 ? a : c;
+        }
+        return b;
+    }
+
+    private static int compare(byte[] records, int index, byte[] hash) {
+        return Arrays.compareUnsigned(records, index * RECORD, index * RECORD + HASH, hash, 0, HASH);
+    }
+
+    private static int compareRecords(byte[] records, int a, int b) {
+        return Arrays.compareUnsigned(records, a * RECORD, a * RECORD + HASH, records, b * RECORD, b * RECORD + HASH);
+    }
+
+    private static void swap(byte[] records, int a, int b, byte[] swap) {
+        System.arraycopy(records, a * RECORD, swap, 0, RECORD);
+        System.arraycopy(records, b * RECORD, records, a * RECORD, RECORD);
+        System.arraycopy(swap, 0, records, b * RECORD, RECORD);
+    }
+
+    // One sorted run being merged, positioned on its smallest unmerged record.
+    private static class Run {
+        final InputStream in;
+        final byte[] record = new byte[RECORD];
+
+        Run(Path path) throws IOException {
+            in = new BufferedInputStream(Files.newInputStream(path), MERGE_BUFFER);
+        }
+
+        boolean advance() throws IOException {
+            return in.readNBytes(record, 0, RECORD) == RECORD;
+        }
+    }
+
+    // Writes the merged records from offset on and returns how many there are.
+    // Equal hashes become one record with their counts added up.
+    private static long merge(List<Path> paths, FileChannel out, long offset, MappedByteBuffer[] bloom, long bloomBits) throws IOException {
+        PriorityQueue<Run> queue = new PriorityQueue<>(Math.max(1, paths.size()),
+            Comparator.comparing((Run run) -> run.record, (a, b) -> Arrays.compareUnsigned(a, 0, HASH, b, 0, HASH)));
+        List<Run> open = new ArrayList<>();
+        try {
+            for (Path path : paths) {
+                Run run = new Run(path);
+                open.add(run);
+                if (run.advance()) {
+                    queue.add(run);
+                }
+            }
+
+            ByteBuffer buffer = ByteBuffer.allocate(MERGE_BUFFER / RECORD * RECORD);
+            byte[] pending = new byte[RECORD];
+            boolean hasPending = false;
+            long written = 0;
+            out.position(offset);
+
+            while (!queue.isEmpty()) {
+                Run run = queue.poll();
+                if (hasPending && Arrays.equals(pending, 0, HASH, run.record, 0, HASH)) {
+                    ByteBuffer counts = ByteBuffer.wrap(pending);
+                    long sum = (long) counts.getInt(HASH) + ByteBuffer.wrap(run.record).getInt(HASH);
+                    counts.putInt(HASH, (int) Math.min(Integer.MAX_VALUE, sum));
+                } else {
+                    if (hasPending) {
+                        buffer = emit(out, buffer, pending, bloom, bloomBits);
+                        written++;
+                    }
+                    System.arraycopy(run.record, 0, pending, 0, RECORD);
+                    hasPending = true;
+                }
+                if (run.advance()) {
+                    queue.add(run);
+                }
+            }
+            if (hasPending) {
+                buffer = emit(out, buffer, pending, bloom, bloomBits);
+                written++;
+            }
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                out.write(buffer);
+            }
+            return written;
+        } finally {
+            for (Run run : open) {
+                run.in.close();
+            }
+        }
+    }
+
+    private static ByteBuffer emit(FileChannel out, ByteBuffer buffer, byte[] record, MappedByteBuffer[] bloom, long bloomBits) throws IOException {
+        if (bloomBits > 0) {
+            long h1 = ByteBuffer.wrap(record, 0, 8).getLong();
+            long h2 = ByteBuffer.wrap(record, 8, 8).getLong() | 1;
+            for (int i = 0; i < BLOOM_HASHES; i++) {
+                long bit = Long.remainderUnsigned(h1 + i * h2, bloomBits);
+                MappedByteBuffer region = bloom[(int) ((bit >>> 3) / REGION)];
+                int index = (int) ((bit >>> 3) % REGION);
+                region.put(index, (byte) (region.get(index) | (1 << (bit & 7))));
+            }
+        }
+
+        if (!buffer.hasRemaining()) {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                out.write(buffer);
+            }
+            buffer.clear();
+        }
+        buffer.put(record);
+        return buffer;
+    }
+}
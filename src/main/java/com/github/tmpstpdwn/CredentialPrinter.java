@@ -0,0 +1,127 @@
+package com.github.tmpstpdwn;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.json.JSONObject;
+
+import com.github.freva.asciitable.AsciiTable;
+import com.github.freva.asciitable.Column;
+import com.github.freva.asciitable.ColumnData;
+import com.github.freva.asciitable.HorizontalAlign;
+
+// Output of --list and --search. TSV and JSON Lines are written as each row is
+// decrypted; the table needs every row for its column widths, so it buffers the
+// page it shows (use --limit to bound it). Results from several vaults carry
+// the vault's name in a first column.
+class CredentialPrinter implements DataBase.CredentialVisitor {
+
+    public enum Format {
+        TABLE,
+        TSV,
+        JSONL;
+
+        public static Format of(String name) throws Exception {
+            return switch (name.toLowerCase()) {
+                case "table" -> TABLE;
+                case "tsv" -> TSV;
+                case "jsonl" -> JSONL;
+                default -> throw new Exception("Unknown format '" + name + "', use table, tsv or jsonl");
+            };
+        }
+    }
+
+    // OMIT drops the password column altogether, for output that never had one.
+    public enum Passwords {
+        SHOW,
+        MASK,
+        OMIT
+    }
+
+    private static final String MASK = "********";
+
+    private final Format format;
+    private final Passwords passwords;
+    private final PrintStream out;
+    private final boolean withVault;
+    private final List<Row> tableRows = new ArrayList<>();
+
+    private record Row(String vault, DataBase.CredentialData cred) {}
+
+    CredentialPrinter(Format format, Passwords passwords, PrintStream out) {
+        this(format, passwords, out, false);
+    }
+
+    CredentialPrinter(Format format, Passwords passwords, PrintStream out, boolean withVault) {
+        this.format = format;
+        this.passwords = passwords;
+        this.out = out;
+        this.withVault = withVault;
+
+        if (format == Format.TSV) {
+            out.println((withVault ? "vault\t" : "")
+                + (passwords == Passwords.OMIT ? "id\ttarget\tusername" : "id\ttarget\tusername\tpassword"));
+        }
+    }
+
+    @Override
+    public void visit(DataBase.CredentialData cred) {
+        visit(null, cred);
+    }
+
+    public void visit(String vault, DataBase.CredentialData cred) {
+        String password = switch (passwords) {
+            case SHOW -> cred.password();
+            case MASK -> MASK;
+            case OMIT -> null;
+        };
+
+        switch (format) {
+            case TABLE -> tableRows.add(new Row(vault, new DataBase.CredentialData(cred.id(), cred.target(), cred.username(), password)));
+            case TSV -> out.println((withVault ? escapeTsv(vault) + "\t" : "") + cred.id() + "\t" + escapeTsv(cred.target()) + "\t" + escapeTsv(cred.username())
+                + (password != null ? "\t" + escapeTsv(password) : ""));
+            case JSONL -> {
+                JSONObject json = new JSONObject();
+                if (withVault) {
+                    json.put("vault", vault);
+                }
+                json.put("id", cred.id());
+                json.put("target", cred.target());
+                json.put("username", cred.username());
+                if (password != null) {
+                    json.put("password", password);
+                }
+                out.println(json);
+            }
+        }
+    }
+
+    // Prints whatever was buffered; only the table format buffers anything. The
+    // printer can be used again afterwards, as interactive search does.
+    public void finish() {
+        if (format != Format.TABLE || tableRows.isEmpty()) {
+            return;
+        }
+
+        List<ColumnData<Row>> columns = new ArrayList<>();
+        if (withVault) {
+            columns.add(new Column().header("Vault").headerAlign(HorizontalAlign.CENTER).dataAlign(HorizontalAlign.CENTER).with(Row::vault));
+        }
+        columns.addAll(List.of(
+            new Column().header("ID").headerAlign(HorizontalAlign.CENTER).dataAlign(HorizontalAlign.CENTER).with(row -> String.valueOf(row.cred().id())),
+            new Column().header("Target").headerAlign(HorizontalAlign.CENTER).dataAlign(HorizontalAlign.CENTER).with(row -> row.cred().target()),
+            new Column().header("Username").headerAlign(HorizontalAlign.CENTER).dataAlign(HorizontalAlign.CENTER).with(row -> row.cred().username())
+        ));
+        if (passwords != Passwords.OMIT) {
+            columns.add(new Column().header("Password").headerAlign(HorizontalAlign.CENTER).dataAlign(HorizontalAlign.CENTER).with(row -> row.cred().password()));
+        }
+
+        out.println(AsciiTable.getTable(tableRows, columns));
+        tableRows.clear();
+    }
+
+    private static String escapeTsv(String value) {
+        return value.replace("\\", "\\\\").replace("\t", "\\t").replace("\n", "\\n").replace("\r", "\\r");
+    }
+}
@@ -0,0 +1,116 @@
+package com.github.tmpstpdwn;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+
+import org.json.JSONObject;
+
+// Plaintext layout of a credential before it is encrypted:
+//
+//   version 2 (metadata):  version (1 byte) | len target | target | len username | username
+//   version 1 (combined):  version (1 byte) | len target | target | len username | username | len password | password
+//
+// Current rows store version 2 in the data column and the password, encrypted on
+// its own, in the secret column; version 1 rows hold all three fields in one
+// blob. Lengths are unsigned LEB128 varints and strings are UTF-8. Rows written
+// before either format existed hold a JSON object instead; those start with '{',
+// which is never a valid version byte, so all of them are read transparently.
+class CredentialRecord {
+
+    static final byte COMBINED_VERSION = 1;
+    static final byte METADATA_VERSION = 2;
+
+    private static final byte JSON_START = '{';
+
+    static byte[] encodeMetadata(String target, String username) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(
+            1 + target.length() + username.length() + 4);
+        out.write(METADATA_VERSION);
+        writeString(out, target);
+        writeString(out, username);
+        return out.toByteArray();
+    }
+
+    // The password of a version 2 record is not part of it, so it comes back null.
+    static DataBase.CredentialData decode(int id, byte[] plaintext) throws Exception {
+        if (isLegacy(plaintext)) {
+            return decodeJson(id, plaintext);
+        }
+
+        if (plaintext.length == 0 || (plaintext[0] != COMBINED_VERSION && plaintext[0] != METADATA_VERSION)) {
+            throw new Exception("Unsupported record version");
+        }
+
+        Reader reader = new Reader(plaintext, 1);
+        String target = reader.readString();
+        String username = reader.readString();
+        String password = plaintext[0] == COMBINED_VERSION ? reader.readString() : null;
+
+        return new DataBase.CredentialData(id, target, username, password);
+    }
+
+    private static boolean isLegacy(byte[] plaintext) {
+        return plaintext.length > 0 && plaintext[0] == JSON_START;
+    }
+
+    // Kept apart so that org.json is only loaded for vaults that still hold JSON rows.
+    private static DataBase.CredentialData decodeJson(int id, byte[] plaintext) {
+        JSONObject json = new JSONObject(new String(plaintext, StandardCharsets.UTF_8));
+
+        return new DataBase.CredentialData(
+            id,
+            json.getString("target"),
+            json.getString("username"),
+            json.getString("password")
+        );
+    }
+
+    private static void writeString(ByteArrayOutputStream out, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+
+        int length = bytes.length;
+        while ((length & ~0x7F) != 0) {
+            out.write((length & 0x7F) | 0x80);
+            length >>>= 7;
+        }
+        out.write(length);
+
+        out.write(bytes, 0, bytes.length);
+    }
+
+    private static class Reader {
+        private final byte[] buffer;
+        private int position;
+
+        Reader(byte[] buffer, int position) {
+            this.buffer = buffer;
+            this.position = position;
+        }
+
+        String readString() throws Exception {
+            int length = readLength();
+            if (length < 0 || length > buffer.length - position) {
+                throw new Exception("Corrupt credential record");
+            }
+
+            String value = new String(buffer, position, length, StandardCharsets.UTF_8);
+            position += length;
+            return value;
+        }
+
+        private int readLength() throws Exception {
+            int length = 0;
+            for (int shift = 0; shift < 32; shift += 7) {
+                if (position >= buffer.length) {
+                    throw new Exception("Corrupt credential record");
+                }
+                byte b = buffer[position++];
+                length |= (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return length;
+                }
+            }
+            throw new Exception("Corrupt credential record");
+        }
+    }
+}
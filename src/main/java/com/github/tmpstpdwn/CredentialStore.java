@@ -0,0 +1,198 @@
+package com.github.tmpstpdwn;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.SecureRandom;
+import java.util.List;
+import java.util.Set;
+
+// Where a vault keeps its rows and metadata. A store only ever sees encrypted
+// blobs and blind indexes; RecordCipher turns them into credentials and
+// DataBase combines the two into the operations the actions use.
+//
+//   SqliteCredentialStore    the vault file, ~/.hashvault/vault.db unless --db
+//   LogCredentialStore       the same in an append-only, memory-mapped log
+//   MemoryCredentialStore    nothing on disk, for benchmarks and scratch vaults
+//   SnapshotCredentialStore  a read-only copy of another store, for --read-only
+interface CredentialStore {
+
+    // How a vault file is laid out. An existing file is recognised by its
+    // header, so the engine is a property of the vault; --engine only picks
+    // one for a new vault and --convert switches an existing one.
+    public enum Engine {
+        SQLITE,
+        LOG;
+
+        public static Engine of(String name) throws Exception {
+            return switch (name.toLowerCase()) {
+                case "sqlite" -> SQLITE;
+                case "log" -> LOG;
+                default -> throw new Exception("Unknown engine '" + name + "', use sqlite or log");
+            };
+        }
+
+        // null when there is no vault at path yet.
+        public static Engine detect(Path path) throws IOException {
+            if (!Files.exists(path) || Files.size(path) == 0) {
+                return null;
+            }
+            return LogCredentialStore.isLogFile(path) ? LOG : SQLITE;
+        }
+
+        public CredentialStore store(Path path) {
+            return switch (this) {
+                case SQLITE -> new SqliteCredentialStore(path);
+                case LOG -> new LogCredentialStore(path);
+            };
+        }
+    }
+
+    // data holds the encrypted target and username, secret the encrypted password.
+    // secret is null for rows written before the two were split; their data holds
+    // all three fields. lookup is the blind index of target and username, null
+    // for rows not indexed yet. version counts the writes to the row since it
+    // was inserted; stores set it themselves and only compare it in the
+    // compareAndUpdate calls.
+    //
+    // modified is when the credential was last added or changed, in epoch
+    // milliseconds, or 0 for rows written before it was kept. Stores set it
+    // too: insert, insertAll, update and the compareAndUpdate calls stamp the
+    // current time, while updateAll and setLookup, which only re-encrypt or
+    // index a row, keep it.
+    //
+    // passwordChanged is when the password was last set, in the same unit, or
+    // 0 when not known. Renames bump modified but not this. Stores keep what
+    // the caller passes unless it is 0: insert and insertAll then stamp the
+    // current time, and update and the compareAndUpdate calls keep the stored
+    // value. updateAll and setLookup always keep it.
+    public static record EncryptedRow(int id, byte[] data, byte[] secret, byte[] lookup, int version, long modified,
+            long passwordChanged) {
+
+        public EncryptedRow(int id, byte[] data, byte[] secret, byte[] lookup, int version, long modified) {
+            this(id, data, secret, lookup, version, modified, 0);
+        }
+
+        public EncryptedRow(int id, byte[] data, byte[] secret, byte[] lookup, int version) {
+            this(id, data, secret, lookup, version, 0, 0);
+        }
+
+        public EncryptedRow(int id, byte[] data, byte[] secret, byte[] lookup) {
+            this(id, data, secret, lookup, 0, 0, 0);
+        }
+
+        public EncryptedRow withVersion(int version) {
+            return new EncryptedRow(id, data, secret, lookup, version, modified, passwordChanged);
+        }
+
+        public EncryptedRow withPasswordChanged(long passwordChanged) {
+            return new EncryptedRow(id, data, secret, lookup, version, modified, passwordChanged);
+        }
+    }
+
+    public interface RowVisitor {
+        void visit(EncryptedRow row) throws Exception;
+    }
+
+    // Every committed write to a row or to the metadata takes the next value of
+    // a counter kept in the vault; count is the last value taken. lineage
+    // names the counter: each new vault file, including one written by
+    // --convert or a restore, starts its own, so two counts only compare when
+    // their lineage is the same.
+    public static record ChangePosition(byte[] lineage, long count) {
+
+        public static byte[] newLineage() {
+            byte[] lineage = new byte[16];
+            new SecureRandom().nextBytes(lineage);
+            return lineage;
+        }
+    }
+
+    void open() throws Exception;
+
+    // Whether the vault has been created, i.e. has a place for its metadata.
+    boolean isInitialized();
+
+    void initialize() throws Exception;
+
+    // Brings the layout of an older vault up to date; runs before unlock.
+    void upgrade() throws Exception;
+
+    boolean isReadOnly();
+
+    DataBase.Metadata getMetadata() throws Exception;
+
+    void setMetadata(DataBase.Metadata metadata) throws Exception;
+
+    // Returns the row with the given id or blind index, or null.
+    EncryptedRow get(int id) throws Exception;
+
+    EncryptedRow findByLookup(byte[] lookup) throws Exception;
+
+    // The store assigns ids; the id of the given rows is ignored. A lookup that
+    // is already taken fails with "Credential already exists". insertAll
+    // writes every row or, when it fails, none.
+    void insert(EncryptedRow row) throws Exception;
+
+    void insertAll(List<EncryptedRow> rows) throws Exception;
+
+    // Inserts rows under the ids, versions and modification times they carry,
+    // for copying a vault between stores.
+    void insertWithIds(List<EncryptedRow> rows) throws Exception;
+
+    // Replaces data, secret and lookup of the row with the same id.
+    void update(EncryptedRow row) throws Exception;
+
+    // Like update for many rows at once, except that rows without a lookup keep
+    // none: they are duplicates indexCredentials left unindexed.
+    void updateAll(List<EncryptedRow> rows) throws Exception;
+
+    void setLookup(int id, byte[] lookup) throws Exception;
+
+    // Like update, but only if the row is still at row.version(), i.e. nothing
+    // wrote it since it was read. Returns false, changing nothing, if it was
+    // written or deleted meanwhile. Every write bumps the version, so two
+    // writers that read the same version cannot both succeed.
+    boolean compareAndUpdate(EncryptedRow row) throws Exception;
+
+    // compareAndUpdate for many rows at once. Rows that moved on are skipped
+    // rather than failing the rest; their ids are returned.
+    List<Integer> compareAndUpdateAll(List<EncryptedRow> rows) throws Exception;
+
+    // Returns whether a row with that id existed.
+    boolean delete(int id) throws Exception;
+
+    int count() throws Exception;
+
+    // Every lookup in use, for duplicate checks that would otherwise cost one
+    // query per row.
+    Set<ByteBuffer> lookups() throws Exception;
+
+    // Rows without a lookup, in id order.
+    List<EncryptedRow> unindexed() throws Exception;
+
+    // At most size rows with an id above afterId, in id order, for walking the
+    // whole vault a batch at a time while rewriting it.
+    List<EncryptedRow> page(int afterId, int size) throws Exception;
+
+    // Visits rows in id order and returns how many were visited; a negative
+    // limit means no limit. Without withSecrets the visited rows have a null
+    // secret.
+    int scan(int limit, int offset, boolean withSecrets, RowVisitor visitor) throws Exception;
+
+    ChangePosition changePosition() throws Exception;
+
+    // Ids of the rows inserted, updated or deleted after change number since,
+    // in id order.
+    List<Integer> changedSince(long since) throws Exception;
+
+    // Groups several calls into one unit that is applied or dropped as a whole.
+    void beginTransaction() throws Exception;
+
+    void commitTransaction() throws Exception;
+
+    void rollbackTransaction() throws Exception;
+
+    void close();
+}
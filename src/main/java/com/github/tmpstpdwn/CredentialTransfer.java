@@ -0,0 +1,226 @@
+package com.github.tmpstpdwn;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.json.JSONObject;
+
+// Plaintext interchange formats for --import and --export. Both are read and
+// written one record at a time so that a whole vault never sits in memory.
+//
+//   CSV:         header "target,username,password,password_changed", RFC 4180
+//                quoting
+//   JSON Lines:  one {"target": ..., "username": ..., "password": ...,
+//                "password_changed": ...} per line
+//
+// password_changed is when the password was last set, as an ISO-8601 instant
+// such as 2024-05-01T12:00:00Z. It is optional on import, where a CSV record
+// may leave it empty or out, and empty or absent on export when not known.
+class CredentialTransfer {
+
+    public enum Format {
+        CSV,
+        JSONL;
+
+        // An explicit --format wins; otherwise the file extension decides.
+        public static Format of(String name, String path) throws Exception {
+            String choice = name != null ? name : path.substring(path.lastIndexOf('.') + 1);
+            return switch (choice.toLowerCase()) {
+                case "csv" -> CSV;
+                case "jsonl", "ndjson" -> JSONL;
+                default -> throw new Exception("Unknown format '" + choice + "', use csv or jsonl");
+            };
+        }
+    }
+
+    // passwordChanged is in epoch milliseconds, 0 when the record has none.
+    public static record Entry(DataBase.CredentialData credential, long passwordChanged) {}
+
+    public interface CredentialReader {
+        // Returns null once the input is exhausted.
+        Entry next() throws Exception;
+    }
+
+    public interface CredentialWriter {
+        void write(DataBase.CredentialData cred, long passwordChanged) throws Exception;
+    }
+
+    private static final List<String> CSV_HEADER = List.of("target", "username", "password", "password_changed");
+
+    public static CredentialReader reader(Format format, Reader in) {
+        return switch (format) {
+            case CSV -> new CsvReader(in);
+            case JSONL -> new JsonLinesReader(in);
+        };
+    }
+
+    public static CredentialWriter writer(Format format, Writer out) throws IOException {
+        return switch (format) {
+            case CSV -> {
+                writeCsvRecord(out, CSV_HEADER);
+                yield (cred, passwordChanged) -> writeCsvRecord(out,
+                    List.of(cred.target(), cred.username(), cred.password(), formatTime(passwordChanged)));
+            }
+            case JSONL -> (cred, passwordChanged) -> {
+                JSONObject json = new JSONObject();
+                json.put("target", cred.target());
+                json.put("username", cred.username());
+                json.put("password", cred.password());
+                if (passwordChanged > 0) {
+                    json.put("password_changed", formatTime(passwordChanged));
+                }
+                out.write(json.toString());
+                out.write('\n');
+            };
+        };
+    }
+
+    private static class CsvReader implements CredentialReader {
+        private final Reader in;
+        private int record = 0;
+
+        CsvReader(Reader in) {
+            this.in = in;
+        }
+
+        // Files written before password_changed existed have three fields,
+        // with or without the header of that time.
+        @Override
+        public Entry next() throws Exception {
+            List<String> fields = readRecord();
+            if (fields != null && record == 1 && (fields.equals(CSV_HEADER) || fields.equals(CSV_HEADER.subList(0, 3)))) {
+                fields = readRecord();
+            }
+            if (fields == null) {
+                return null;
+            }
+
+            if (fields.size() != 3 && fields.size() != 4) {
+                throw new Exception("CSV record " + record + ": expected target, username, password and optionally password_changed");
+            }
+            long passwordChanged = fields.size() == 4 ? parseTime(fields.get(3), "CSV record " + record) : 0;
+            return new Entry(new DataBase.CredentialData(0, fields.get(0), fields.get(1), fields.get(2)), passwordChanged);
+        }
+
+        private List<String> readRecord() throws IOException {
+            int c = read();
+            while (c == '\r' || c == '\n') {
+                c = read();
+            }
+            if (c == -1) {
+                return null;
+            }
+
+            record++;
+            List<String> fields = new ArrayList<>();
+            StringBuilder field = new StringBuilder();
+            boolean quoted = false;
+
+            while (true) {
+                if (quoted) {
+                    if (c == -1) {
+                        throw new IOException("CSV record " + record + ": unterminated quoted field");
+                    }
+                    if (c == '"') {
+                        int next = read();
+                        if (next == '"') {
+                            field.append('"');
+                        } else {
+                            quoted = false;
+                            c = next;
+                            continue;
+                        }
+                    } else {
+                        field.append((char) c);
+                    }
+                } else if (c == '"' && field.length() == 0) {
+                    quoted = true;
+                } else if (c == ',') {
+                    fields.add(field.toString());
+                    field.setLength(0);
+                } else if (c == '\n' || c == '\r' || c == -1) {
+                    fields.add(field.toString());
+                    return fields;
+                } else {
+                    field.append((char) c);
+                }
+                c = read();
+            }
+        }
+
+        private int read() throws IOException {
+            return in.read();
+        }
+    }
+
+    private static class JsonLinesReader implements CredentialReader {
+        private final BufferedReader in;
+        private int line = 0;
+
+        JsonLinesReader(Reader in) {
+            this.in = in instanceof BufferedReader buffered ? buffered : new BufferedReader(in);
+        }
+
+        @Override
+        public Entry next() throws Exception {
+            String text;
+            do {
+                text = in.readLine();
+                line++;
+                if (text == null) {
+                    return null;
+                }
+            } while (text.isBlank());
+
+            JSONObject json;
+            DataBase.CredentialData cred;
+            try {
+                json = new JSONObject(text);
+                cred = new DataBase.CredentialData(
+                    0, json.getString("target"), json.getString("username"), json.getString("password"));
+            } catch (Exception e) {
+                throw new Exception("JSON line " + line + ": expected target, username and password");
+            }
+            return new Entry(cred, parseTime(json.optString("password_changed", ""), "JSON line " + line));
+        }
+    }
+
+    private static String formatTime(long millis) {
+        return millis > 0 ? Instant.ofEpochMilli(millis).toString() : "";
+    }
+
+    // where names the record in the error message.
+    private static long parseTime(String text, String where) throws Exception {
+        if (text.isBlank()) {
+            return 0;
+        }
+        try {
+            return Instant.parse(text.strip()).toEpochMilli();
+        } catch (Exception e) {
+            throw new Exception(where + ": password_changed is not an ISO-8601 time");
+        }
+    }
+
+    private static void writeCsvRecord(Writer out, List<String> fields) throws IOException {
+        for (int i = 0; i < fields.size(); i++) {
+            if (i > 0) {
+                out.write(',');
+            }
+
+            String field = fields.get(i);
+            if (field.indexOf(',') >= 0 || field.indexOf('"') >= 0 || field.indexOf('\n') >= 0 || field.indexOf('\r') >= 0) {
+                out.write('"');
+                out.write(field.replace("\"", "\"\""));
+                out.write('"');
+            } else {
+                out.write(field);
+            }
+        }
+        out.write('\n');
+    }
+}
@@ -0,0 +1,194 @@
+package com.github.tmpstpdwn;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.crypto.SecretKey;
+
+// --getpass and --search over several vaults. Each vault gets a thread and a
+// connection of its own: the vaults are opened while the master password is
+// typed, then unlocked and searched side by side, so the PBKDF2 runs overlap
+// and a lookup takes about as long as the slowest vault rather than all of
+// them together (given a core per vault). The password typed is tried on
+// every vault; only the vaults it does not open ask for theirs.
+class CrossVault {
+
+    private record Hit(String vault, SearchIndex.Match match) {}
+
+    public static void run(ArgumentParser.ParsedArg parsedArg, PrintStream out) throws Exception {
+        List<String> names = parsedArg.vaultNames().contains(ArgumentParser.ALL_VAULTS)
+            ? DataBase.vaultNames()
+            : parsedArg.vaultNames();
+        if (names.isEmpty()) {
+            throw new Exception("No vaults found");
+        }
+        for (String name : names) {
+            if (CredentialStore.Engine.detect(DataBase.vaultPath(name)) == null) {
+                throw new Exception("No vault named '" + name + "'");
+            }
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(names.size());
+        List<CompletableFuture<DataBase>> opening = new ArrayList<>();
+        try {
+            for (String name : names) {
+                opening.add(async(() -> open(name, parsedArg), pool));
+            }
+
+            String master = Authenticator.readMasterPassword();
+            List<DataBase> dbs = joinAll(opening);
+            List<SecretKey> keys = unlock(names, dbs, master, pool);
+
+            switch (parsedArg.action()) {
+                case GETPASS -> getPassword(parsedArg, names, dbs, keys, pool, out);
+                case SEARCH -> search(parsedArg, names, dbs, keys, pool, out);
+                default -> throw new Exception("Only --getpass and non-interactive --search work across vaults");
+            }
+        } finally {
+            CompletableFuture.allOf(opening.toArray(CompletableFuture[]::new)).exceptionally(e -> null).join();
+            for (CompletableFuture<DataBase> future : opening) {
+                if (!future.isCompletedExceptionally()) {
+                    future.join().close();
+                }
+            }
+            pool.shutdownNow();
+        }
+    }
+
+    private static DataBase open(String name, ArgumentParser.ParsedArg parsedArg) throws Exception {
+        DataBase db = Main.openDataBase(DataBase.vaultPath(name), parsedArg);
+        try {
+            db.connect();
+            db.upgradeSchema();
+            return db;
+        } catch (Exception e) {
+            db.close();
+            throw new Exception("Vault '" + name + "': " + e.getMessage());
+        }
+    }
+
+    // Vaults the typed password does not open ask for their own, one after the
+    // other, and are then unlocked together.
+    private static List<SecretKey> unlock(List<String> names, List<DataBase> dbs, String master, ExecutorService pool) throws Exception {
+        List<SecretKey> keys = joinAll(forEachVault(dbs.size(), pool, i -> Authenticator.tryUnlock(dbs.get(i), master)));
+
+        List<Integer> locked = new ArrayList<>();
+        List<String> passwords = new ArrayList<>();
+        for (int i = 0; i < keys.size(); i++) {
+            if (keys.get(i) == null) {
+                locked.add(i);
+                passwords.add(Authenticator.readMasterPassword("Enter the master password for vault '" + names.get(i) + "': "));
+            }
+        }
+
+        List<SecretKey> retried = joinAll(forEachVault(locked.size(), pool,
+            j -> Authenticator.tryUnlock(dbs.get(locked.get(j)), passwords.get(j))));
+        for (int j = 0; j < locked.size(); j++) {
+            if (retried.get(j) == null) {
+                throw new Exception("Wrong password for vault '" + names.get(locked.get(j)) + "'");
+            }
+            keys.set(locked.get(j), retried.get(j));
+        }
+
+        joinAll(forEachVault(dbs.size(), pool, i -> {
+            dbs.get(i).indexCredentials(keys.get(i));
+            return null;
+        }));
+        return keys;
+    }
+
+    private static void getPassword(ArgumentParser.ParsedArg parsedArg, List<String> names, List<DataBase> dbs, List<SecretKey> keys,
+                                    ExecutorService pool, PrintStream out) throws Exception {
+        DataBase.CredentialData data = parsedArg.data();
+        List<String> passwords = joinAll(forEachVault(dbs.size(), pool, i -> dbs.get(i).findPassword(data, keys.get(i))));
+        int found = 0;
+        for (int i = 0; i < names.size(); i++) {
+            if (passwords.get(i) != null) {
+                out.println(names.get(i) + "\t" + passwords.get(i));
+                found++;
+            }
+        }
+
+        if (found == 0) {
+            throw new Exception("No credential found for target '" + data.target() + "' and username '" + data.username()
+                + "' in " + names.size() + " vaults");
+        }
+    }
+
+    // Every vault returns its best limit matches; the best limit of those, by
+    // score and then in vault order, are printed.
+    private static void search(ArgumentParser.ParsedArg parsedArg, List<String> names, List<DataBase> dbs, List<SecretKey> keys,
+                               ExecutorService pool, PrintStream out) throws Exception {
+        String query = parsedArg.option(ArgumentParser.QUERY_OPTION, "");
+        int limit = parsedArg.intOption("--limit", ActionHandler.DEFAULT_SEARCH_RESULTS);
+        CredentialPrinter.Format format = CredentialPrinter.Format.of(parsedArg.option("--format", "table"));
+
+        List<List<SearchIndex.Match>> results = joinAll(forEachVault(dbs.size(), pool,
+            i -> SearchIndex.build(dbs.get(i), keys.get(i)).search(query, limit)));
+        List<Hit> hits = new ArrayList<>();
+        for (int i = 0; i < names.size(); i++) {
+            for (SearchIndex.Match match : results.get(i)) {
+                hits.add(new Hit(names.get(i), match));
+            }
+        }
+        if (hits.isEmpty()) {
+            throw new Exception("No matches");
+        }
+        // A stable sort keeps vault order, and each vault's own order, on ties.
+        hits.sort(Comparator.comparingInt((Hit hit) -> hit.match().score()).reversed());
+
+        CredentialPrinter printer = new CredentialPrinter(format, CredentialPrinter.Passwords.OMIT, out, true);
+        for (Hit hit : hits.subList(0, Math.min(limit, hits.size()))) {
+            SearchIndex.Match match = hit.match();
+            printer.visit(hit.vault(), new DataBase.CredentialData(match.id(), match.target(), match.username(), null));
+        }
+        printer.finish();
+    }
+
+    private interface VaultTask<T> {
+        T run(int vault) throws Exception;
+    }
+
+    // Runs task for vaults 0 to count - 1, each on a thread of its own.
+    private static <T> List<CompletableFuture<T>> forEachVault(int count, ExecutorService pool, VaultTask<T> task) {
+        List<CompletableFuture<T>> futures = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            int vault = i;
+            futures.add(async(() -> task.run(vault), pool));
+        }
+        return futures;
+    }
+
+    private static <T> CompletableFuture<T> async(Callable<T> task, ExecutorService pool) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return task.call();
+            } catch (Exception e) {
+                throw new CompletionException(e);
+            }
+        }, pool);
+    }
+
+    // Waits for all of them, so no vault is still being worked on when the
+    // first failure is thrown.
+    private static <T> List<T> joinAll(List<CompletableFuture<T>> futures) throws Exception {
+        try {
+            CompletableFuture.allOf(futures.toArray(CompletableFuture[]::new)).join();
+        } catch (CompletionException e) {
+            throw (Exception) e.getCause();
+        }
+
+        List<T> results = new ArrayList<>(futures.size());
+        for (CompletableFuture<T> future : futures) {
+            results.add(future.join());
+        }
+        return results;
+    }
+}
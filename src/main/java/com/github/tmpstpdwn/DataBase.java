@@ -1,225 +1,286 @@
 package com.github.tmpstpdwn;
 
-import java.sql.*;
-
-import java.io.File;
-import java.nio.file.Paths;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.Paths;
 
-import java.util.Base64;
 import javax.crypto.SecretKey;
 
+import java.util.Arrays;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Set;
+import java.util.concurrent.CompletionException;
+import java.util.stream.Stream;
 
-import org.json.JSONObject;
-
-import com.github.freva.asciitable.AsciiTable;
-import com.github.freva.asciitable.Column;
-import com.github.freva.asciitable.HorizontalAlign;
-
+// The vault operations behind every action: a CredentialStore keeps the
+// encrypted rows, RecordCipher encrypts and decrypts them, and this class
+// decides which rows to touch and groups the work into transactions.
 class DataBase {
 
-    public static record Metadata(byte[] masterKey, byte[] loginSalt, byte[] encryptionSalt) {}
+    // wrappedKey is the random data key, encrypted under the key derived from the
+    // master password. It is null for vaults that predate envelope encryption.
+    // kdf names the Vault.deriveKeys scheme and work factor that produced
+    // masterKey and the wrapping key.
+    public static record Metadata(byte[] masterKey, byte[] loginSalt, byte[] encryptionSalt, byte[] wrappedKey, Vault.KdfParams kdf) {}
     public static record CredentialData(int id, String target, String username, String password) {}
 
-    final private Path dbDirPath = Paths.get(System.getProperty("user.home"), ".hashvault");
-    final private Path dbFilePath = dbDirPath.resolve("vault.db");
+    // total is -1 when it is not known up front.
+    public interface ProgressListener {
+        void onProgress(int done, int total);
+    }
 
-    private Connection conn;
+    public interface CredentialVisitor {
+        void visit(CredentialData cred) throws Exception;
+    }
 
-    public void connect() throws Exception {
-        File dbDir = dbDirPath.toFile();
-        if (!dbDir.exists()) {
-            if (!dbDir.mkdirs()) {
-                throw new Exception("Failed to create directory: " + dbDirPath);
-            }
-        }
+    // passwordChanged is the time the password was last set, see EncryptedRow.
+    public interface CredentialMapper<T> {
+        T map(CredentialData cred, long passwordChanged) throws Exception;
+    }
+
+    public static record ImportResult(int imported, int duplicates) {}
+
+    // How many rows copyTo copied, and the change position of the vault they
+    // were copied at.
+    public static record CopyResult(int rows, CredentialStore.ChangePosition position) {}
+
+    // A credential and the version its row had when it was read, for
+    // updateCredentialsIfUnchanged.
+    public static record VersionedCredential(CredentialData credential, int version) {}
+
+    // What changesSince found: the rows written and the ids deleted after the
+    // requested change number, up to position. A full change set holds every
+    // row instead, and deleted is empty.
+    public static record ChangeSet(CredentialStore.ChangePosition position, Metadata metadata, boolean full,
+                                   List<CredentialStore.EncryptedRow> rows, List<Integer> deleted) {}
+
+    public static final Path DEFAULT_PATH = Paths.get(System.getProperty("user.home"), ".hashvault", "vault.db");
+    // Named vaults (--vault name) are separate files next to the default one,
+    // each with its own metadata, salts and engine.
+    public static final Path VAULTS_DIR = DEFAULT_PATH.resolveSibling("vaults");
+    public static final String DEFAULT_VAULT = "default";
+
+    private static final int BATCH_SIZE = 1000;
+
+    // Each retry means another writer got through, so running out of attempts
+    // takes sustained contention on that one row.
+    private static final int UPDATE_ATTEMPTS = 10;
+
+    // How often changesSince reads again because a writer got in between.
+    private static final int READ_ATTEMPTS = 10;
+
+    private final CredentialStore store;
+
+    // Set by useSnapshot; the snapshot is loaded by the first findPassword.
+    private Path snapshotFile;
+    private VaultSnapshot snapshot;
 
-        String url = "jdbc:sqlite:" + dbFilePath.toString();
-        conn = DriverManager.getConnection(url);
+    public DataBase() {
+        this(DEFAULT_PATH);
     }
 
-    public boolean metaTableExists() {
-        String sql = "SELECT name FROM sqlite_master WHERE type='table' AND name='meta_table';";
+    // Opens a vault at another location; --db and the benchmarks use this.
+    public DataBase(Path dbFilePath) {
+        this(new SqliteCredentialStore(dbFilePath));
+    }
 
-        try (Statement stmt = conn.createStatement();
-             ResultSet rs = stmt.executeQuery(sql)) {
-            return rs.next();
-        } catch (SQLException e) {
-            return false;
-        }
+    public DataBase(CredentialStore store) {
+        this.store = store;
     }
 
-    public void createTables() throws Exception {
-        String metaTableSQL = """
-            CREATE TABLE IF NOT EXISTS meta_table (
-                master_key BLOB NOT NULL,
-                login_salt BLOB NOT NULL,
-                encryption_salt BLOB NOT NULL
-            );
-        """;
-
-        String credentialTableSQL = """
-            CREATE TABLE IF NOT EXISTS credential_table (
-                id INTEGER PRIMARY KEY AUTOINCREMENT,
-                data BLOB NOT NULL
-            );
-        """;
-
-        try (Statement stmt = conn.createStatement()) {
-            stmt.executeUpdate(metaTableSQL);
-            stmt.executeUpdate(credentialTableSQL);
-        } catch (Exception e) {
-            throw new Exception("Failed to create tables", e);
+    // An existing vault is opened with the engine it was written by; engine
+    // only chooses the one for a new vault.
+    public static DataBase open(Path path, String engine, boolean readOnly) throws Exception {
+        CredentialStore.Engine detected = CredentialStore.Engine.detect(path);
+        CredentialStore store = (detected != null ? detected : CredentialStore.Engine.of(engine)).store(path);
+        if (readOnly) {
+            store = new SnapshotCredentialStore(store);
         }
+        return new DataBase(store);
     }
 
-    public void setMetadata(Metadata metadata) throws Exception {
-        String checkSql = "SELECT COUNT(*) FROM meta_table";
-        try (
-            Statement stmt = conn.createStatement();
-            ResultSet rs = stmt.executeQuery(checkSql)
-        ) {
-            rs.next();
-            boolean isEmpty = rs.getInt(1) == 0;
-
-            String sql = isEmpty
-                ? "INSERT INTO meta_table (master_key, login_salt, encryption_salt) VALUES (?, ?, ?)"
-                : "UPDATE meta_table SET master_key = ?, login_salt = ?, encryption_salt = ?";
-
-            try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
-                pstmt.setBytes(1, metadata.masterKey());
-                pstmt.setBytes(2, metadata.loginSalt());
-                pstmt.setBytes(3, metadata.encryptionSalt());
-                pstmt.executeUpdate();
-            }
-        } catch (Exception e) {
-            throw new Exception("Failed to modify meta table", e);
-        }
+    public static Path vaultPath(String name) {
+        return name.equals(DEFAULT_VAULT) ? DEFAULT_PATH : VAULTS_DIR.resolve(name + ".db");
     }
 
-    public Metadata getMetadata() throws Exception {
-        String sql = "SELECT master_key, login_salt, encryption_salt FROM meta_table LIMIT 1";
-
-        try (
-            Statement stmt = conn.createStatement();
-            ResultSet rs = stmt.executeQuery(sql)
-        ) {
-            if (rs.next()) {
-                return new Metadata(
-                    rs.getBytes("master_key"),
-                    rs.getBytes("login_salt"),
-                    rs.getBytes("encryption_salt")
-                );
-            } else {
-                return null;
+    // Every vault that exists, the default one first and the rest by name.
+    public static List<String> vaultNames() throws Exception {
+        List<String> names = new ArrayList<>();
+        if (CredentialStore.Engine.detect(DEFAULT_PATH) != null) {
+            names.add(DEFAULT_VAULT);
+        }
+        if (Files.isDirectory(VAULTS_DIR)) {
+            try (Stream<Path> files = Files.list(VAULTS_DIR)) {
+                for (Path file : files.sorted().toList()) {
+                    String fileName = file.getFileName().toString();
+                    if (fileName.endsWith(".db") && CredentialStore.Engine.detect(file) != null) {
+                        names.add(fileName.substring(0, fileName.length() - ".db".length()));
+                    }
+                }
             }
-        } catch (Exception e) {
-            throw new Exception("Failed to retrieve meta data", e);
         }
+        return names;
+    }
+
+    public void connect() throws Exception {
+        store.open();
     }
 
-    private void insertCredential(CredentialData credentialData, SecretKey key) throws Exception {
-        String sql = "INSERT INTO credential_table (data) VALUES (?)";
+    public boolean metaTableExists() {
+        return store.isInitialized();
+    }
 
-        JSONObject newJson = new JSONObject();
-        newJson.put("target", credentialData.target());
-        newJson.put("username", credentialData.username());
-        newJson.put("password", credentialData.password());
+    public void createTables() throws Exception {
+        store.initialize();
+    }
 
-        String combined = newJson.toString();
+    public void upgradeSchema() throws Exception {
+        store.upgrade();
+    }
 
-        byte[] encryptedData = Vault.encrypt(combined, key);
+    public boolean isReadOnly() {
+        return store.isReadOnly();
+    }
 
-        try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
-            pstmt.setBytes(1, encryptedData);
-            pstmt.executeUpdate();
-        } catch (Exception e) {
-            throw new Exception("Failed to insert credential", e);
+    // Fills the blind index of rows written before the lookup column existed.
+    // Should an old vault hold the same target + username twice, only the first
+    // row gets indexed; the others keep a NULL lookup (which UNIQUE allows)
+    // until they are updated or deleted. A read-only vault is left as it is.
+    public void indexCredentials(SecretKey key) throws Exception {
+        if (store.isReadOnly()) {
+            return;
         }
-    }
 
-    public void insertCredentialUnique(CredentialData credentialData, SecretKey key) throws Exception {
-        List<CredentialData> credentials = getAllCredentials(key);
+        List<CredentialStore.EncryptedRow> unindexed = store.unindexed();
+        if (unindexed.isEmpty()) {
+            return;
+        }
 
-        for (CredentialData cred : credentials) {
+        SecretKey indexKey = Vault.getIndexKey(key);
 
-            if (
-            cred.target().equals(credentialData.target()) &&
-            cred.username().equals(credentialData.username()))
-            {
-                throw new Exception("Credential already exists");
+        try (Transaction tx = transaction()) {
+            for (CredentialStore.EncryptedRow row : unindexed) {
+                byte[] lookup = RecordCipher.lookup(RecordCipher.toMetadata(row.id(), row.data(), key), indexKey);
+                if (store.findByLookup(lookup) != null) {
+                    continue;
+                }
+                store.setLookup(row.id(), lookup);
             }
+            tx.commit();
+        } catch (Exception e) {
+            throw new Exception("Failed to index credentials", e);
         }
+    }
 
-        insertCredential(credentialData, key);
+    public void setMetadata(Metadata metadata) throws Exception {
+        store.setMetadata(metadata);
     }
 
-    public void updateCredential(CredentialData updatedData, SecretKey key) throws Exception {
-        String selectSql = "SELECT data FROM credential_table WHERE id = ?";
-        String updateSql = "UPDATE credential_table SET data = ? WHERE id = ?";
+    public Metadata getMetadata() throws Exception {
+        return store.getMetadata();
+    }
 
-        try (PreparedStatement selectStmt = conn.prepareStatement(selectSql)) {
-            selectStmt.setInt(1, updatedData.id());
+    public void insertCredentialUnique(CredentialData credentialData, SecretKey key) throws Exception {
+        byte[] lookup = RecordCipher.lookup(credentialData, Vault.getIndexKey(key));
 
-            try (ResultSet rs = selectStmt.executeQuery()) {
-                if (!rs.next()) {
-                    throw new Exception("No credential found with id " + updatedData.id());
-                }
+        if (store.findByLookup(lookup) != null) {
+            throw new Exception("Credential already exists");
+        }
 
-                byte[] encryptedData = rs.getBytes("data");
-                String decryptedJson = Vault.decrypt(encryptedData, key);
+        store.insert(RecordCipher.seal(0, credentialData, lookup, key));
+    }
 
-                JSONObject json = new JSONObject(decryptedJson);
+    // Fields given as "_" keep their current value. The row is written back only
+    // if no one else wrote it since it was read; otherwise the merge is redone
+    // on top of the other change, so concurrent updates to different fields
+    // of one credential both survive.
+    public void updateCredential(CredentialData updatedData, SecretKey key) throws Exception {
+        SecretKey indexKey = Vault.getIndexKey(key);
 
-                String currentTarget = json.getString("target");
-                String currentUsername = json.getString("username");
-                String currentPassword = json.getString("password");
+        for (int attempt = 1; ; attempt++) {
+            CredentialStore.EncryptedRow row = store.get(updatedData.id());
+            if (row == null) {
+                throw new Exception("No credential found with id " + updatedData.id());
+            }
 
-                String newTarget = "_".equals(updatedData.target()) ? currentTarget : updatedData.target();
-                String newUsername = "_".equals(updatedData.username()) ? currentUsername : updatedData.username();
-                String newPassword = "_".equals(updatedData.password()) ? currentPassword : updatedData.password();
+            CredentialData current = RecordCipher.toCredential(row, key);
 
-                JSONObject newJson = new JSONObject();
-                newJson.put("target", newTarget);
-                newJson.put("username", newUsername);
-                newJson.put("password", newPassword);
+            String newTarget = "_".equals(updatedData.target()) ? current.target() : updatedData.target();
+            String newUsername = "_".equals(updatedData.username()) ? current.username() : updatedData.username();
+            String newPassword = "_".equals(updatedData.password()) ? current.password() : updatedData.password();
 
-                byte[] newEncryptedData = Vault.encrypt(newJson.toString(), key);
+            CredentialData updated = new CredentialData(updatedData.id(), newTarget, newUsername, newPassword);
+            CredentialStore.EncryptedRow sealed = RecordCipher.seal(updatedData.id(), updated, RecordCipher.lookup(updated, indexKey), key)
+                .withPasswordChanged(newPassword.equals(current.password()) ? 0 : System.currentTimeMillis());
+            if (store.compareAndUpdate(sealed.withVersion(row.version()))) {
+                return;
+            }
 
-                try (PreparedStatement updateStmt = conn.prepareStatement(updateSql)) {
-                    updateStmt.setBytes(1, newEncryptedData);
-                    updateStmt.setInt(2, updatedData.id());
-                    updateStmt.executeUpdate();
-                }
+            if (attempt == UPDATE_ATTEMPTS) {
+                throw new Exception("Credential " + updatedData.id() + " kept changing, update not applied");
             }
         }
     }
 
-    public void deleteCredential(CredentialData credentialData) throws Exception {
-        String sql = "DELETE FROM credential_table WHERE id = ?";
-        try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
-            pstmt.setInt(1, credentialData.id());
-            int deleted = pstmt.executeUpdate();
+    public VersionedCredential getCredential(int id, SecretKey key) throws Exception {
+        CredentialStore.EncryptedRow row = store.get(id);
+        if (row == null) {
+            throw new Exception("No credential found with id " + id);
+        }
+        return new VersionedCredential(RecordCipher.toCredential(row, key), row.version());
+    }
 
-            if (deleted == 0) {
-                throw new Exception("No entry with id " + credentialData.id() + " found");
-            }
+    // Writes each credential only if its row is still at the version it was
+    // read at, and returns the ids of those that changed or were deleted
+    // meanwhile; the caller re-reads and retries them. Everything is encrypted
+    // in parallel before the store is touched, so writers only hold the
+    // store's write lock for the writes themselves.
+    public List<Integer> updateCredentialsIfUnchanged(List<VersionedCredential> updates, SecretKey key) throws Exception {
+        List<CredentialData> credentials = new ArrayList<>(updates.size());
+        for (VersionedCredential update : updates) {
+            credentials.add(update.credential());
+        }
+
+        List<CredentialStore.EncryptedRow> sealed = RecordCipher.sealAll(credentials, key, Vault.getIndexKey(key));
+        List<CredentialStore.EncryptedRow> rows = new ArrayList<>(sealed.size());
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < sealed.size(); i++) {
+            VersionedCredential update = updates.get(i);
+            rows.add(sealed.get(i).withVersion(update.version())
+                .withPasswordChanged(passwordChanged(update, key) ? now : 0));
+        }
+
+        try (Transaction tx = transaction()) {
+            List<Integer> conflicts = store.compareAndUpdateAll(rows);
+            tx.commit();
+            return conflicts;
+        } catch (Exception e) {
+            throw new Exception("Failed to update credentials", e);
         }
     }
 
-    public String getPassword(CredentialData credentialData, SecretKey key) throws Exception {
-        List<CredentialData> allCredentials = getAllCredentials(key);
+    // Whether writing update changes the stored password. A row that is gone or
+    // past the version read is left alone by the write anyway.
+    private boolean passwordChanged(VersionedCredential update, SecretKey key) throws Exception {
+        CredentialStore.EncryptedRow row = store.get(update.credential().id());
+        if (row == null || row.version() != update.version()) {
+            return false;
+        }
+        return !update.credential().password().equals(RecordCipher.toCredential(row, key).password());
+    }
 
-        for (CredentialData cred : allCredentials) {
+    public void deleteCredential(CredentialData credentialData) throws Exception {
+        if (!store.delete(credentialData.id())) {
+            throw new Exception("No entry with id " + credentialData.id() + " found");
+        }
+    }
 
-            if (
-            cred.target().equals(credentialData.target()) &&
-            cred.username().equals(credentialData.username()))
-            {
-                return cred.password();
-            }
+    public String getPassword(CredentialData credentialData, SecretKey key) throws Exception {
+        String password = findPassword(credentialData, key);
+        if (password != null) {
+            return password;
         }
 
         throw new Exception(
@@ -231,81 +292,390 @@ class DataBase {
         );
     }
 
-    public void reEncryptDatabase(SecretKey oldKey, SecretKey newKey) throws Exception {
-        List<CredentialData> credentials = getAllCredentials(oldKey);
+    // Like getPassword, but null when the vault has no such credential.
+    public String findPassword(CredentialData credentialData, SecretKey key) throws Exception {
+        return findPasswords(List.of(credentialData), key).get(0);
+    }
+
+    // findPassword for each credential, in order. With a snapshot the change
+    // counter is checked once for all of them.
+    public List<String> findPasswords(List<CredentialData> credentials, SecretKey key) throws Exception {
+        List<String> passwords = new ArrayList<>(credentials.size());
+        if (snapshotFile != null) {
+            if (snapshot == null) {
+                snapshot = VaultSnapshot.load(snapshotFile, key);
+            }
+            snapshot.refresh(this);
+            for (CredentialData cred : credentials) {
+                passwords.add(snapshot.find(cred));
+            }
+            return passwords;
+        }
+
+        SecretKey indexKey = Vault.getIndexKey(key);
         for (CredentialData cred : credentials) {
-            reEncryptCredential(cred, newKey);
+            passwords.add(passwordOf(findRow(cred, indexKey), cred, key));
+        }
+        return passwords;
+    }
+
+    // Makes findPassword answer from a VaultSnapshot kept in file, for callers
+    // that look up many credentials per unlock: the agent, --batch and
+    // HashVaultClient. Loading the snapshot reads the whole table, so a single
+    // lookup is left to the blind index, which reads one row. The file is
+    // brought up to date when the vault is closed.
+    public void useSnapshot(Path file) {
+        snapshotFile = file;
+    }
+
+    // The row with the blind index of target and username, or null; nothing
+    // is decrypted.
+    public CredentialStore.EncryptedRow findRow(CredentialData credentialData, SecretKey indexKey) throws Exception {
+        return store.findByLookup(RecordCipher.lookup(credentialData, indexKey));
+    }
+
+    private static String passwordOf(CredentialStore.EncryptedRow row, CredentialData credentialData, SecretKey key) throws Exception {
+        // The metadata is checked before the password is decrypted at all.
+        if (row != null) {
+            CredentialData cred = RecordCipher.toMetadata(row.id(), row.data(), key);
+
+            if (
+            cred.target().equals(credentialData.target()) &&
+            cred.username().equals(credentialData.username()))
+            {
+                return cred.password() != null ? cred.password() : RecordCipher.openSecret(row, key);
+            }
         }
+        return null;
     }
 
-    public String getCredentialTable(SecretKey key) throws Exception {
-        List<CredentialData> credentials = getAllCredentials(key);
+    // Re-encrypts every row from oldKey to newKey and stores the given metadata,
+    // all in one transaction, so the wrapped key in meta_table always matches the
+    // rows.
+    public void reEncryptDatabase(SecretKey oldKey, SecretKey newKey, Metadata metadata, ProgressListener progress) throws Exception {
+        try (Transaction tx = transaction()) {
+            rewriteRows(oldKey, newKey, false, progress);
+            store.setMetadata(metadata);
+            tx.commit();
+        } catch (Exception e) {
+            throw new Exception("Failed to re-encrypt database", e);
+        }
+    }
 
-        if (credentials.isEmpty()) {
-            throw new Exception("Database empty");
+    // Rewrites rows that still keep the password inside the metadata blob (JSON
+    // or combined binary records) in the current split format and returns how
+    // many were converted.
+    public int migrateRecords(SecretKey key, ProgressListener progress) throws Exception {
+        try (Transaction tx = transaction()) {
+            int migrated = rewriteRows(key, key, true, progress);
+            tx.commit();
+            return migrated;
+        } catch (Exception e) {
+            throw new Exception("Failed to migrate records", e);
         }
+    }
+
+    // Reads rows in id order a batch at a time, re-encodes and re-encrypts them in
+    // parallel and writes each batch back in one go. Rows left unindexed as
+    // duplicates by indexCredentials stay unindexed. The caller owns the
+    // transaction.
+    private int rewriteRows(SecretKey oldKey, SecretKey newKey, boolean legacyOnly, ProgressListener progress) throws Exception {
+        SecretKey newIndexKey = Vault.getIndexKey(newKey);
+        int total = store.count();
+        int done = 0;
+        int rewritten = 0;
+        int lastId = 0;
+
+        while (true) {
+            List<CredentialStore.EncryptedRow> batch = store.page(lastId, BATCH_SIZE);
+            if (batch.isEmpty()) {
+                break;
+            }
 
-        String table = AsciiTable.getTable(credentials, List.of(
-            new Column().header("ID").headerAlign(HorizontalAlign.CENTER).dataAlign(HorizontalAlign.CENTER).with(cred -> String.valueOf(cred.id())),
-            new Column().header("Target").headerAlign(HorizontalAlign.CENTER).dataAlign(HorizontalAlign.CENTER).with(CredentialData::target),
-            new Column().header("Username").headerAlign(HorizontalAlign.CENTER).dataAlign(HorizontalAlign.CENTER).with(CredentialData::username),
-            new Column().header("Password").headerAlign(HorizontalAlign.CENTER).dataAlign(HorizontalAlign.CENTER).with(CredentialData::password)
-        ));
+            List<CredentialStore.EncryptedRow> sealed = RecordCipher.reSealAll(batch, oldKey, newKey, newIndexKey, legacyOnly);
+            store.updateAll(sealed);
+            rewritten += sealed.size();
 
-        return table;
+            lastId = batch.get(batch.size() - 1).id();
+            done += batch.size();
+            progress.onProgress(done, total);
+        }
+
+        return rewritten;
     }
 
-    public void close() {
-        if (conn != null) {
+    // Inserts everything the reader yields in one transaction. Duplicates, against
+    // the vault or earlier in the input, are found through the blind index held in
+    // a hash set, skipped and counted. Each batch is encrypted in parallel. A
+    // password change time given by the input is kept; the rest count as
+    // changed now.
+    public ImportResult importCredentials(CredentialTransfer.CredentialReader reader, SecretKey key, ProgressListener progress) throws Exception {
+        SecretKey indexKey = Vault.getIndexKey(key);
+        Set<ByteBuffer> lookups = store.lookups();
+
+        int imported = 0;
+        int duplicates = 0;
+
+        try (Transaction tx = transaction()) {
+            List<CredentialData> batch = new ArrayList<>(BATCH_SIZE);
+            List<Long> changed = new ArrayList<>(BATCH_SIZE);
+            boolean exhausted = false;
+
+            while (!exhausted) {
+                CredentialTransfer.Entry entry = reader.next();
+                if (entry != null) {
+                    batch.add(entry.credential());
+                    changed.add(entry.passwordChanged());
+                }
+                exhausted = entry == null;
+
+                if (batch.size() == BATCH_SIZE || (exhausted && !batch.isEmpty())) {
+                    List<CredentialStore.EncryptedRow> sealed = RecordCipher.sealAll(batch, key, indexKey);
+                    List<CredentialStore.EncryptedRow> fresh = new ArrayList<>(batch.size());
+                    for (int i = 0; i < sealed.size(); i++) {
+                        CredentialStore.EncryptedRow row = sealed.get(i);
+                        if (!lookups.add(ByteBuffer.wrap(row.lookup()))) {
+                            duplicates++;
+                            continue;
+                        }
+                        fresh.add(row.withPasswordChanged(changed.get(i)));
+                    }
+                    store.insertAll(fresh);
+                    imported += fresh.size();
+                    batch.clear();
+                    changed.clear();
+                    progress.onProgress(imported + duplicates, -1);
+                }
+            }
+
+            tx.commit();
+        } catch (Exception e) {
+            throw new Exception("Failed to import credentials", e);
+        }
+
+        return new ImportResult(imported, duplicates);
+    }
+
+    public int forEachCredential(SecretKey key, CredentialVisitor visitor) throws Exception {
+        return forEachCredential(key, -1, 0, true, visitor);
+    }
+
+    // Writes every credential, in id order, with the time its password was
+    // last set; returns how many were written.
+    public int exportCredentials(SecretKey key, CredentialTransfer.CredentialWriter writer) throws Exception {
+        return store.scan(-1, 0, true, row -> writer.write(RecordCipher.toCredential(row, key), row.passwordChanged()));
+    }
+
+    // Decrypts rows one at a time, in id order, as the store yields them, and
+    // returns how many were visited. Rows outside the page are never decrypted;
+    // a negative limit means no limit. Without withPasswords only target and
+    // username are decrypted and the password is null, except for rows not yet
+    // migrated, whose password shares a blob with the rest.
+    public int forEachCredential(SecretKey key, int limit, int offset, boolean withPasswords, CredentialVisitor visitor) throws Exception {
+        return store.scan(limit, offset, withPasswords, row -> visitor.visit(RecordCipher.toCredential(row, key)));
+    }
+
+    // Decrypts every row once and returns what mapper makes of each, in id
+    // order. Rows are read a page at a time and the rows of a page decrypted
+    // on the common ForkJoin pool, so mapper runs on several threads at once
+    // and should not keep the password around longer than it needs it.
+    public <T> List<T> mapCredentials(SecretKey key, CredentialMapper<T> mapper) throws Exception {
+        List<T> results = new ArrayList<>();
+        int lastId = 0;
+        while (true) {
+            List<CredentialStore.EncryptedRow> page = store.page(lastId, BATCH_SIZE);
+            if (page.isEmpty()) {
+                break;
+            }
             try {
-                conn.close();
-            } catch (Exception e) {
-                throw new RuntimeException("Failed to close DB connection", e);
+                results.addAll(page.parallelStream().map(row -> {
+                    try {
+                        return mapper.map(RecordCipher.toCredential(row, key), row.passwordChanged());
+                    } catch (Exception e) {
+                        throw new CompletionException(e);
+                    }
+                }).toList());
+            } catch (CompletionException e) {
+                throw (Exception) e.getCause();
             }
+            lastId = page.get(page.size() - 1).id();
         }
+        return results;
     }
 
-    private List<CredentialData> getAllCredentials(SecretKey key) throws Exception {
-        List<CredentialData> credentials = new ArrayList<>();
-        String sql = "SELECT * FROM credential_table";
+    // Up to size rows with ids above afterId, in id order, still encrypted;
+    // empty past the last one. Paging by id keeps going over rows added or
+    // deleted between pages.
+    public List<CredentialStore.EncryptedRow> page(int afterId, int size) throws Exception {
+        return store.page(afterId, size);
+    }
 
-        try (Statement stmt = conn.createStatement();
-             ResultSet rs = stmt.executeQuery(sql)) {
+    // Copies the metadata and every row, ids included, into a new empty store in
+    // one transaction. Rows are copied still encrypted, so nothing is decrypted
+    // on the way. The vault is held in a transaction of its own while it is
+    // read: writers wait for the copy, which is of one state of the vault.
+    public CopyResult copyTo(CredentialStore target, ProgressListener progress) throws Exception {
+        target.open();
+        target.initialize();
+
+        store.beginTransaction();
+        try {
+            target.beginTransaction();
+            try {
+                CredentialStore.ChangePosition position = store.changePosition();
+                target.setMetadata(store.getMetadata());
+
+                int total = store.count();
+                int copied = 0;
+                int lastId = 0;
+                while (true) {
+                    List<CredentialStore.EncryptedRow> batch = store.page(lastId, BATCH_SIZE);
+                    if (batch.isEmpty()) {
+                        break;
+                    }
+                    target.insertWithIds(batch);
+                    lastId = batch.get(batch.size() - 1).id();
+                    copied += batch.size();
+                    progress.onProgress(copied, total);
+                }
 
-            while (rs.next()) {
-                int id = rs.getInt("id");
-                byte[] encryptedData = rs.getBytes("data");
+                target.commitTransaction();
+                return new CopyResult(copied, position);
+            } catch (Exception e) {
+                target.rollbackTransaction();
+                throw new Exception("Failed to copy the vault", e);
+            }
+        } finally {
+            // Nothing was written to the vault.
+            store.rollbackTransaction();
+        }
+    }
 
-                String decryptedJson = Vault.decrypt(encryptedData, key);
+    public CredentialStore.ChangePosition changePosition() throws Exception {
+        return store.changePosition();
+    }
 
-                JSONObject json = new JSONObject(decryptedJson);
+    // The rows changed since change number since of the given lineage, still
+    // encrypted, for incremental backups and VaultSnapshot. A since below 0,
+    // another lineage, or so many changes that reading them one by one would
+    // cost more than paging through the vault all give a full change set
+    // instead.
+    //
+    // Nothing is locked: the reads are repeated if the change counter moved
+    // while they ran, so writers and readers carry on as usual.
+    public ChangeSet changesSince(byte[] lineage, long since) throws Exception {
+        for (int attempt = 0; attempt < READ_ATTEMPTS; attempt++) {
+            CredentialStore.ChangePosition position = store.changePosition();
+            ChangeSet changes = readChanges(position, lineage, since);
+            if (store.changePosition().count() == position.count()) {
+                return changes;
+            }
+        }
+        throw new Exception("Vault kept changing while its changes were read");
+    }
 
-                String target = json.getString("target");
-                String username = json.getString("username");
-                String password = json.getString("password");
+    private ChangeSet readChanges(CredentialStore.ChangePosition position, byte[] lineage, long since) throws Exception {
+        Metadata metadata = store.getMetadata();
+
+        if (since >= 0 && position.lineage() != null && Arrays.equals(position.lineage(), lineage)) {
+            List<Integer> changed = store.changedSince(since);
+            if ((long) changed.size() * 2 <= store.count()) {
+                List<CredentialStore.EncryptedRow> rows = new ArrayList<>(changed.size());
+                List<Integer> deleted = new ArrayList<>();
+                for (int id : changed) {
+                    CredentialStore.EncryptedRow row = store.get(id);
+                    if (row == null) {
+                        deleted.add(id);
+                    } else {
+                        rows.add(row);
+                    }
+                }
+                return new ChangeSet(position, metadata, false, rows, deleted);
+            }
+        }
 
-                credentials.add(new CredentialData(id, target, username, password));
+        List<CredentialStore.EncryptedRow> rows = new ArrayList<>();
+        int lastId = 0;
+        while (true) {
+            List<CredentialStore.EncryptedRow> batch = store.page(lastId, BATCH_SIZE);
+            if (batch.isEmpty()) {
+                break;
             }
+            rows.addAll(batch);
+            lastId = batch.get(batch.size() - 1).id();
         }
+        return new ChangeSet(position, metadata, true, rows, List.of());
+    }
 
-        return credentials;
+    // Fills a new, empty vault with the given metadata and rows, ids and
+    // versions included, in one transaction.
+    public void restore(Metadata metadata, List<CredentialStore.EncryptedRow> rows, ProgressListener progress) throws Exception {
+        store.initialize();
+
+        try (Transaction tx = transaction()) {
+            store.setMetadata(metadata);
+            for (int from = 0; from < rows.size(); from += BATCH_SIZE) {
+                int to = Math.min(rows.size(), from + BATCH_SIZE);
+                store.insertWithIds(rows.subList(from, to));
+                progress.onProgress(to, rows.size());
+            }
+            tx.commit();
+        } catch (Exception e) {
+            throw new Exception("Failed to restore the vault", e);
+        }
     }
 
-    private void reEncryptCredential(CredentialData credentialData, SecretKey newKey) throws Exception {
-        String sql = "UPDATE credential_table SET data = ? WHERE id = ?";
+    // Groups the statements of several calls into one transaction that only
+    // sticks once commit() is called; closing it without a commit, normally by
+    // leaving a try-with-resources block through an exception, rolls it back.
+    // The bulk operations above open their own and must not run inside one.
+    // A commit that fails leaves the transaction to be rolled back by close.
+    public class Transaction implements AutoCloseable {
+
+        private boolean finished = false;
+
+        private Transaction() {}
+
+        public void commit() throws Exception {
+            store.commitTransaction();
+            finished = true;
+        }
 
-        JSONObject json = new JSONObject();
-        json.put("target", credentialData.target());
-        json.put("username", credentialData.username());
-        json.put("password", credentialData.password());
+        // Unchecked like CredentialStore.close, so a failed rollback does not
+        // hide the exception that left the block.
+        @Override
+        public void close() {
+            if (!finished) {
+                finished = true;
+                // The change counter went back with the rows, so a snapshot
+                // refreshed inside the transaction would look current while
+                // holding what was rolled back; it is loaded from file again.
+                snapshot = null;
+                try {
+                    store.rollbackTransaction();
+                } catch (Exception e) {
+                    throw new RuntimeException("Failed to roll back the transaction", e);
+                }
+            }
+        }
+    }
 
-        byte[] encryptedData = Vault.encrypt(json.toString(), newKey);
+    public Transaction transaction() throws Exception {
+        store.beginTransaction();
+        return new Transaction();
+    }
 
-        try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
-            pstmt.setBytes(1, encryptedData);
-            pstmt.setInt(2, credentialData.id());
-            pstmt.executeUpdate();
+    public void close() {
+        // A snapshot that cannot be written only costs the next run a longer
+        // refresh.
+        if (snapshot != null && !store.isReadOnly()) {
+            try {
+                snapshot.save();
+            } catch (Exception e) {
+                // Rebuilt from the vault next time.
+            }
         }
+        store.close();
     }
 
 }
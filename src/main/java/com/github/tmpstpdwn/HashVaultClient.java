@@ -0,0 +1,324 @@
+package com.github.tmpstpdwn;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Optional;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import javax.crypto.SecretKey;
+
+// HashVault as a library, for services that would otherwise run the CLI once
+// per secret. A client holds one open, unlocked vault:
+//
+//     try (HashVaultClient vault = HashVaultClient.unlock(HashVaultClient.vaultPath("prod"), password).join()) {
+//         Map<HashVaultClient.CredentialRef, String> secrets = vault.getAll(refs).join();
+//     }
+//
+// Every operation returns a CompletableFuture and runs on a virtual thread
+// per task, or on a small pool of platform threads before Java 21. Futures
+// fail with the same exceptions and messages as the CLI, wrapped in a
+// CompletionException by join(), or with an IllegalStateException once the
+// client is closed. The store is used by one task at a time, as it is in the
+// CLI. Lookups are answered from a VaultSnapshot, loaded with the first of
+// them and kept up to date with the vault, so they cost no query or
+// decryption of their own.
+public final class HashVaultClient implements AutoCloseable {
+
+    public record CredentialRef(String target, String username) {}
+
+    public record Credential(int id, String target, String username, String password) {}
+
+    // Asked for the master password once, on a client thread, when the vault
+    // is unlocked. The array returned is cleared after the key is derived.
+    public interface KeyProvider {
+        char[] masterPassword() throws Exception;
+    }
+
+    static final int PAGE_SIZE = 1000;
+
+    // The executor of the client whose task the thread is running, including
+    // the callbacks the task's future runs when it completes, so close can
+    // tell it is called from one of its own. Closing another client from
+    // there is fine.
+    private static final ThreadLocal<ExecutorService> RUNNING = new ThreadLocal<>();
+
+    private final DataBase db;
+    private final SecretKey key;
+    private final SecretKey indexKey;
+    private final ExecutorService executor;
+    // Not synchronized: a virtual thread blocked on a monitor pins its carrier.
+    private final ReentrantLock storeLock = new ReentrantLock();
+
+    private HashVaultClient(DataBase db, SecretKey key, ExecutorService executor) throws Exception {
+        this.db = db;
+        this.key = key;
+        this.indexKey = Vault.getIndexKey(key);
+        this.executor = executor;
+    }
+
+    public static Path defaultVaultPath() {
+        return DataBase.DEFAULT_PATH;
+    }
+
+    // Where the CLI keeps the vault it opens with --vault name.
+    public static Path vaultPath(String name) {
+        return DataBase.vaultPath(name);
+    }
+
+    // Clears masterPassword once the key is derived, whether or not it was
+    // the right one.
+    public static CompletableFuture<HashVaultClient> unlock(Path vault, char[] masterPassword) {
+        return unlock(vault, () -> masterPassword);
+    }
+
+    public static CompletableFuture<HashVaultClient> unlock(Path vault, KeyProvider keyProvider) {
+        ExecutorService executor = newExecutor();
+        CompletableFuture<HashVaultClient> client = async(executor, () -> open(vault, keyProvider, executor));
+        client.whenComplete((opened, e) -> {
+            if (e != null) {
+                executor.shutdown();
+            }
+        });
+        return client;
+    }
+
+    private static HashVaultClient open(Path vault, KeyProvider keyProvider, ExecutorService executor) throws Exception {
+        char[] password = keyProvider.masterPassword();
+        try {
+            if (CredentialStore.Engine.detect(vault) == null) {
+                throw new Exception("No vault at " + vault);
+            }
+
+            DataBase db = DataBase.open(vault, "sqlite", false);
+            try {
+                db.connect();
+                db.upgradeSchema();
+
+                SecretKey key = Authenticator.tryUnlock(db, password);
+                if (key == null) {
+                    throw new Exception("Wrong password");
+                }
+
+                db.indexCredentials(key);
+                db.useSnapshot(VaultSnapshot.pathFor(vault));
+                return new HashVaultClient(db, key, executor);
+            } catch (Exception e) {
+                db.close();
+                throw e;
+            }
+        } finally {
+            Arrays.fill(password, '\0');
+        }
+    }
+
+    // Empty when the vault has no such credential.
+    public CompletableFuture<Optional<String>> get(String target, String username) {
+        return async(executor, () -> Optional.ofNullable(find(new CredentialRef(target, username))));
+    }
+
+    // Refs the vault does not hold are left out of the map, which keeps the
+    // order of refs. All of them are looked up in one task and against one
+    // state of the vault: with the snapshot loaded a lookup is a hash and a
+    // probe, cheaper than handing it to another thread.
+    public CompletableFuture<Map<CredentialRef, String>> getAll(Collection<CredentialRef> refs) {
+        List<CredentialRef> copy = List.copyOf(refs);
+        return async(executor, () -> {
+            List<DataBase.CredentialData> creds = new ArrayList<>(copy.size());
+            for (CredentialRef ref : copy) {
+                creds.add(new DataBase.CredentialData(0, ref.target(), ref.username(), null));
+            }
+            List<String> found = withStore(() -> db.findPasswords(creds, key));
+
+            Map<CredentialRef, String> passwords = new LinkedHashMap<>();
+            for (int i = 0; i < copy.size(); i++) {
+                if (found.get(i) != null) {
+                    passwords.put(copy.get(i), found.get(i));
+                }
+            }
+            return passwords;
+        });
+    }
+
+    // Adds the credential, or changes its password if the vault already has
+    // one for target and username.
+    public CompletableFuture<Void> put(String target, String username, String password) {
+        return async(executor, () -> withStore(() -> {
+            upsert(new DataBase.CredentialData(0, target, username, password));
+            return null;
+        }));
+    }
+
+    // Like put for each entry, in one transaction: either all of them are
+    // written or, if one fails, none.
+    public CompletableFuture<Void> putAll(Map<CredentialRef, String> passwords) {
+        Map<CredentialRef, String> copy = new LinkedHashMap<>(passwords);
+        return async(executor, () -> withStore(() -> {
+            try (DataBase.Transaction tx = db.transaction()) {
+                for (Map.Entry<CredentialRef, String> entry : copy.entrySet()) {
+                    upsert(new DataBase.CredentialData(0, entry.getKey().target(), entry.getKey().username(), entry.getValue()));
+                }
+                tx.commit();
+            }
+            return null;
+        }));
+    }
+
+    // Every credential, password included, in id order. Rows are read a page
+    // at a time as the iterator advances, so a vault of any size is walked in
+    // constant memory. Like the iterators of the concurrent collections it
+    // never fails on concurrent changes: credentials added or deleted
+    // meanwhile may or may not be seen. Runs on the calling thread.
+    public Iterator<Credential> iterator() {
+        return new CredentialIterator();
+    }
+
+    public Stream<Credential> stream() {
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(iterator(),
+            Spliterator.ORDERED | Spliterator.DISTINCT | Spliterator.NONNULL), false);
+    }
+
+    // Waits for the operations already started, then closes the vault. A
+    // task cannot wait for itself, so calling this from one, or from a
+    // callback that runs on the client's thread, is refused instead of hanging
+    // forever; use one of the *Async methods of CompletableFuture with another
+    // executor for that. If the waiting thread is interrupted, the vault is
+    // closed right away with its interrupt status set, and operations still
+    // running fail.
+    @Override
+    public void close() {
+        if (RUNNING.get() == executor) {
+            throw new IllegalStateException("HashVaultClient closed from one of its own tasks");
+        }
+
+        executor.shutdown();
+        try {
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        storeLock.lock();
+        try {
+            db.close();
+        } finally {
+            storeLock.unlock();
+        }
+    }
+
+    private String find(CredentialRef ref) throws Exception {
+        return withStore(() -> db.findPassword(new DataBase.CredentialData(0, ref.target(), ref.username(), null), key));
+    }
+
+    // Called with storeLock held.
+    private void upsert(DataBase.CredentialData cred) throws Exception {
+        CredentialStore.EncryptedRow row = db.findRow(cred, indexKey);
+        if (row == null) {
+            db.insertCredentialUnique(cred, key);
+        } else {
+            db.updateCredential(new DataBase.CredentialData(row.id(), "_", "_", cred.password()), key);
+        }
+    }
+
+    private <T> T withStore(Callable<T> task) throws Exception {
+        storeLock.lock();
+        try {
+            return task.call();
+        } finally {
+            storeLock.unlock();
+        }
+    }
+
+    private class CredentialIterator implements Iterator<Credential> {
+
+        private List<CredentialStore.EncryptedRow> page = List.of();
+        private int next = 0;
+        private int lastId = 0;
+        private boolean exhausted = false;
+
+        @Override
+        public boolean hasNext() {
+            if (next == page.size() && !exhausted) {
+                try {
+                    page = withStore(() -> db.page(lastId, PAGE_SIZE));
+                } catch (Exception e) {
+                    throw new CompletionException(e);
+                }
+                next = 0;
+                exhausted = page.size() < PAGE_SIZE;
+            }
+            return next < page.size();
+        }
+
+        @Override
+        public Credential next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+
+            CredentialStore.EncryptedRow row = page.get(next++);
+            lastId = row.id();
+            try {
+                DataBase.CredentialData cred = RecordCipher.toCredential(row, key);
+                return new Credential(cred.id(), cred.target(), cred.username(), cred.password());
+            } catch (Exception e) {
+                throw new CompletionException(e);
+            }
+        }
+    }
+
+    // One virtual thread per task where the JVM has them (Java 21 on). This
+    // is built for Java 17, so they are looked up at run time; before 21 a
+    // pool of platform threads, one per core, takes the tasks instead. The
+    // work is short and mostly decrypting, so more threads than cores would
+    // only queue on the store lock.
+    private static ExecutorService newExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), task -> {
+                Thread thread = new Thread(task, "hashvault-client");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    // Completes the future on the task's thread, so RUNNING also covers the
+    // callbacks that completing it runs. Once the client is closed the
+    // executor takes no more tasks, and the future fails instead.
+    private static <T> CompletableFuture<T> async(ExecutorService executor, Callable<T> task) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        try {
+            executor.execute(() -> {
+                RUNNING.set(executor);
+                try {
+                    future.complete(task.call());
+                } catch (Throwable e) {
+                    future.completeExceptionally(new CompletionException(e));
+                } finally {
+                    RUNNING.remove();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            future.completeExceptionally(new CompletionException(new IllegalStateException("HashVaultClient is closed")));
+        }
+        return future;
+    }
+}
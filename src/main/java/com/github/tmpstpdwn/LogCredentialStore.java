@@ -0,0 +1,1033 @@
+package com.github.tmpstpdwn;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.zip.CRC32;
+
+// Vault engine for large, read-mostly vaults: one append-only file of encrypted
+// records, read through a memory mapping, so a lookup is a hash probe and a
+// copy out of the page cache instead of a round trip through JDBC and SQLite.
+//
+// The file is an 8 byte header followed by frames:
+//
+//   int length, int crc32 of the body, body = byte type + fields
+//
+//   META       master key, salts, wrapped key, KDF version, algorithm,
+//              iterations, change number
+//   ROW        id, data, secret, lookup, version, modified, password changed,
+//              change number (a row replaces any earlier one with its id)
+//   TOMBSTONE  id of a deleted row, change number
+//   COMMIT     ends a transaction; nothing after the last COMMIT counts
+//   MOVED      appended to a file that compaction replaced, so processes still
+//              reading it notice without a stat of the path on every read
+//   LINEAGE    16 random bytes naming the file's change counter
+//
+// The change number, stamped by append, is the changePosition count the frame
+// was written under. Frames from before versions or change numbers existed end
+// early; the missing fields read as 0. ROW frames from before modification
+// times end with version and change number, and those from before password
+// change times lack that one field, which then reads as the modification
+// time; they are told apart by the bytes left.
+//
+// Byte arrays are written as an int length (-1 for null) and the bytes. Opening
+// the file replays it into an in-memory index of where each row's newest frame
+// starts. A crash can leave a torn or uncommitted tail, which the next writer
+// cuts off.
+//
+// Writers take an exclusive lock on "<vault>.lock" and first replay whatever
+// other processes appended, so several invocations and the agent can share a
+// vault. Superseded frames are garbage; once they outweigh the live ones the
+// file is rewritten on a background thread and swapped in atomically.
+//
+// The mapping limits a vault to 2 GiB.
+class LogCredentialStore implements CredentialStore {
+
+    private static final byte[] MAGIC = {'H', 'V', 'L', 'O', 'G', 0, 0, 1};
+    private static final int FRAME_HEADER = 8;
+
+    private static final byte META = 1;
+    private static final byte ROW = 2;
+    private static final byte TOMBSTONE = 3;
+    private static final byte COMMIT = 4;
+    private static final byte MOVED = 5;
+    private static final byte LINEAGE = 6;
+
+    // Rewriting a small file saves too little to be worth a thread.
+    private static final long MIN_COMPACT_GARBAGE = 1 << 20;
+
+    private static final int COPY_BUFFER = 1 << 20;
+
+    // Where a row's newest frame is; lookup is null for unindexed rows. The
+    // version, times and change number are kept here so compareAndUpdate,
+    // updateAll and changedSince work without reading the frame.
+    private record Entry(long offset, int size, ByteBuffer lookup, int version, long modified, long passwordChanged,
+        long change) {}
+
+    private static class Index {
+        TreeMap<Integer, Entry> rows = new TreeMap<>();
+        Map<ByteBuffer, Integer> lookups = new HashMap<>();
+        TreeSet<Integer> unindexed = new TreeSet<>();
+        // Tombstones of deleted rows. They are live frames: compaction keeps
+        // them so changedSince still reports the deletes.
+        TreeMap<Integer, Entry> deleted = new TreeMap<>();
+        DataBase.Metadata metadata;
+        long metaOffset = -1;
+        int metaSize;
+        byte[] lineage;
+        long lineageOffset = -1;
+        int lineageSize;
+        long changeCount;
+        int lastId;
+        // Bytes taken by frames that no longer count.
+        long garbage;
+    }
+
+    // What a rollback needs: the scalars as they were at begin, and every row
+    // and tombstone entry the transaction replaced (null where there was none),
+    // oldest first. Cheaper than copying the index, which would make every
+    // write O(rows).
+    private record Undo(int id, Entry previous, Entry previousTombstone) {}
+
+    private record Saved(DataBase.Metadata metadata, long metaOffset, int metaSize, byte[] lineage, long lineageOffset, int lineageSize,
+                         long changeCount, int lastId, long garbage, List<Undo> undo) {}
+
+    private final Path path;
+    private final Path lockPath;
+    private final Path compactPath;
+
+    private FileChannel channel;
+    private FileChannel lockChannel;
+    private FileLock lock;
+    private Object fileKey;
+
+    private MappedByteBuffer map;
+    private long mapped;
+
+    // end: just past the last COMMIT applied to the index; tail: end of the
+    // file, past end while a transaction of ours is open.
+    private long end;
+    private long tail;
+
+    private Index index = new Index();
+    private Saved saved;
+    private boolean inTransaction = false;
+
+    private Thread compactor;
+    private boolean closed = false;
+
+    public LogCredentialStore(Path path) {
+        this.path = path.toAbsolutePath();
+        this.lockPath = this.path.resolveSibling(this.path.getFileName() + ".lock");
+        this.compactPath = this.path.resolveSibling(this.path.getFileName() + ".compact");
+    }
+
+    // Whether the file at path starts like a log; a missing file does not.
+    public static boolean isLogFile(Path path) throws IOException {
+        if (!Files.isRegularFile(path)) {
+            return false;
+        }
+        try (InputStream in = Files.newInputStream(path)) {
+            return Arrays.equals(in.readNBytes(MAGIC.length), MAGIC);
+        }
+    }
+
+    @Override
+    public synchronized void open() throws Exception {
+        Files.createDirectories(path.getParent());
+        lockChannel = FileChannel.open(lockPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        if (Files.exists(path)) {
+            reopen();
+        }
+    }
+
+    @Override
+    public synchronized boolean isInitialized() {
+        return channel != null;
+    }
+
+    @Override
+    public synchronized void initialize() throws Exception {
+        if (channel != null) {
+            return;
+        }
+        try (FileChannel out = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            writeFully(out, ByteBuffer.wrap(MAGIC));
+            writeFully(out, frame(lineageBody(ChangePosition.newLineage())));
+            writeFully(out, frame(ByteBuffer.wrap(new byte[] {COMMIT})));
+            out.force(true);
+        }
+        reopen();
+    }
+
+    // The header carries the format version. Logs from before change tracking
+    // get a lineage; their frames count as change 0.
+    @Override
+    public synchronized void upgrade() throws Exception {
+        if (channel == null) {
+            return;
+        }
+        mutate(() -> {
+            if (index.lineage == null) {
+                append(List.of(lineageBody(ChangePosition.newLineage())));
+            }
+        });
+    }
+
+    @Override
+    public boolean isReadOnly() {
+        return false;
+    }
+
+    @Override
+    public synchronized DataBase.Metadata getMetadata() throws Exception {
+        refresh();
+        return index.metadata;
+    }
+
+    @Override
+    public synchronized void setMetadata(DataBase.Metadata metadata) throws Exception {
+        mutate(() -> append(List.of(metaBody(metadata))));
+    }
+
+    @Override
+    public synchronized EncryptedRow get(int id) throws Exception {
+        refresh();
+        Entry entry = index.rows.get(id);
+        return entry == null ? null : readRow(entry, true);
+    }
+
+    @Override
+    public synchronized EncryptedRow findByLookup(byte[] lookup) throws Exception {
+        refresh();
+        Integer id = index.lookups.get(ByteBuffer.wrap(lookup));
+        return id == null ? null : readRow(index.rows.get(id), true);
+    }
+
+    @Override
+    public synchronized void insert(EncryptedRow row) throws Exception {
+        insertAll(List.of(row));
+    }
+
+    @Override
+    public synchronized void insertAll(List<EncryptedRow> rows) throws Exception {
+        long now = System.currentTimeMillis();
+        mutate(() -> {
+            checkLookupsFree(rows);
+            List<ByteBuffer> bodies = new ArrayList<>(rows.size());
+            int id = index.lastId;
+            for (EncryptedRow row : rows) {
+                bodies.add(rowBody(new EncryptedRow(++id, row.data(), row.secret(), row.lookup(), 0, now,
+                    row.passwordChanged() > 0 ? row.passwordChanged() : now)));
+            }
+            append(bodies);
+        });
+    }
+
+    @Override
+    public synchronized void insertWithIds(List<EncryptedRow> rows) throws Exception {
+        mutate(() -> {
+            checkLookupsFree(rows);
+            List<ByteBuffer> bodies = new ArrayList<>(rows.size());
+            for (EncryptedRow row : rows) {
+                bodies.add(rowBody(row));
+            }
+            append(bodies);
+        });
+    }
+
+    @Override
+    public synchronized void update(EncryptedRow row) throws Exception {
+        mutate(() -> {
+            Entry current = index.rows.get(row.id());
+            if (current == null) {
+                return;
+            }
+            checkLookupFree(row.lookup(), row.id());
+            append(List.of(rowBody(new EncryptedRow(row.id(), row.data(), row.secret(), row.lookup(),
+                current.version() + 1, System.currentTimeMillis(),
+                row.passwordChanged() > 0 ? row.passwordChanged() : current.passwordChanged()))));
+        });
+    }
+
+    @Override
+    public synchronized void updateAll(List<EncryptedRow> rows) throws Exception {
+        mutate(() -> {
+            List<ByteBuffer> bodies = new ArrayList<>(rows.size());
+            for (EncryptedRow row : rows) {
+                Entry current = index.rows.get(row.id());
+                if (current == null) {
+                    continue;
+                }
+                bodies.add(rowBody(new EncryptedRow(row.id(), row.data(), row.secret(),
+                    current.lookup() == null ? null : row.lookup(), current.version() + 1, current.modified(),
+                    current.passwordChanged())));
+            }
+            append(bodies);
+        });
+    }
+
+    @Override
+    public synchronized void setLookup(int id, byte[] lookup) throws Exception {
+        mutate(() -> {
+            Entry entry = index.rows.get(id);
+            if (entry == null) {
+                return;
+            }
+            EncryptedRow row = readRow(entry, true);
+            checkLookupFree(lookup, id);
+            append(List.of(rowBody(new EncryptedRow(id, row.data(), row.secret(), lookup, row.version() + 1, row.modified(),
+                row.passwordChanged()))));
+        });
+    }
+
+    @Override
+    public synchronized boolean compareAndUpdate(EncryptedRow row) throws Exception {
+        return compareAndUpdateAll(List.of(row)).isEmpty();
+    }
+
+    // The versions are compared after mutate has replayed what other processes
+    // appended and while it holds the file lock, so the check and the append
+    // cannot interleave with another writer.
+    @Override
+    public synchronized List<Integer> compareAndUpdateAll(List<EncryptedRow> rows) throws Exception {
+        List<Integer> conflicts = new ArrayList<>();
+        long now = System.currentTimeMillis();
+        mutate(() -> {
+            List<EncryptedRow> matching = new ArrayList<>(rows.size());
+            Set<ByteBuffer> seen = new HashSet<>();
+            for (EncryptedRow row : rows) {
+                Entry current = index.rows.get(row.id());
+                if (current == null || current.version() != row.version()) {
+                    conflicts.add(row.id());
+                    continue;
+                }
+                checkLookupFree(row.lookup(), row.id());
+                if (row.lookup() != null && !seen.add(ByteBuffer.wrap(row.lookup()))) {
+                    throw new Exception("Credential already exists");
+                }
+                matching.add(row);
+            }
+
+            List<ByteBuffer> bodies = new ArrayList<>(matching.size());
+            for (EncryptedRow row : matching) {
+                long passwordChanged = row.passwordChanged() > 0 ? row.passwordChanged()
+                    : index.rows.get(row.id()).passwordChanged();
+                bodies.add(rowBody(new EncryptedRow(row.id(), row.data(), row.secret(), row.lookup(), row.version() + 1, now,
+                    passwordChanged)));
+            }
+            append(bodies);
+        });
+        return conflicts;
+    }
+
+    @Override
+    public synchronized boolean delete(int id) throws Exception {
+        boolean[] deleted = {false};
+        mutate(() -> {
+            if (index.rows.containsKey(id)) {
+                append(List.of(tombstoneBody(id)));
+                deleted[0] = true;
+            }
+        });
+        return deleted[0];
+    }
+
+    @Override
+    public synchronized int count() throws Exception {
+        refresh();
+        return index.rows.size();
+    }
+
+    @Override
+    public synchronized Set<ByteBuffer> lookups() throws Exception {
+        refresh();
+        return new HashSet<>(index.lookups.keySet());
+    }
+
+    @Override
+    public synchronized List<EncryptedRow> unindexed() throws Exception {
+        refresh();
+        List<EncryptedRow> rows = new ArrayList<>(index.unindexed.size());
+        for (int id : index.unindexed) {
+            rows.add(readRow(index.rows.get(id), true));
+        }
+        return rows;
+    }
+
+    @Override
+    public synchronized List<EncryptedRow> page(int afterId, int size) throws Exception {
+        refresh();
+        List<EncryptedRow> page = new ArrayList<>(Math.min(size, index.rows.size()));
+        for (Entry entry : index.rows.tailMap(afterId, false).values()) {
+            if (page.size() == size) {
+                break;
+            }
+            page.add(readRow(entry, true));
+        }
+        return page;
+    }
+
+    @Override
+    public synchronized int scan(int limit, int offset, boolean withSecrets, RowVisitor visitor) throws Exception {
+        refresh();
+        int skipped = 0;
+        int visited = 0;
+
+        for (Entry entry : index.rows.values()) {
+            if (limit >= 0 && visited == limit) {
+                break;
+            }
+            if (skipped < offset) {
+                skipped++;
+                continue;
+            }
+
+            visitor.visit(readRow(entry, withSecrets));
+            visited++;
+        }
+
+        return visited;
+    }
+
+    @Override
+    public synchronized ChangePosition changePosition() throws Exception {
+        refresh();
+        return new ChangePosition(index.lineage, index.changeCount);
+    }
+
+    @Override
+    public synchronized List<Integer> changedSince(long since) throws Exception {
+        refresh();
+        TreeSet<Integer> changed = new TreeSet<>();
+        for (Map.Entry<Integer, Entry> row : index.rows.entrySet()) {
+            if (row.getValue().change() > since) {
+                changed.add(row.getKey());
+            }
+        }
+        for (Map.Entry<Integer, Entry> tombstone : index.deleted.entrySet()) {
+            if (tombstone.getValue().change() > since) {
+                changed.add(tombstone.getKey());
+            }
+        }
+        return new ArrayList<>(changed);
+    }
+
+    // Holds the lock until commit or rollback, so other writers wait.
+    @Override
+    public synchronized void beginTransaction() throws Exception {
+        if (channel == null) {
+            throw new Exception("Vault not initialized");
+        }
+        lock = lockChannel.lock();
+        try {
+            refreshForWrite();
+            if (channel.size() > end) {
+                // Left behind by a writer that died mid-transaction.
+                channel.truncate(end);
+            }
+        } catch (Exception e) {
+            lock.release();
+            throw e;
+        }
+
+        saved = new Saved(index.metadata, index.metaOffset, index.metaSize, index.lineage, index.lineageOffset, index.lineageSize,
+            index.changeCount, index.lastId, index.garbage, new ArrayList<>());
+        tail = end;
+        inTransaction = true;
+    }
+
+    // Durable once force returns; a failure on the way rolls back instead.
+    @Override
+    public synchronized void commitTransaction() throws Exception {
+        try {
+            appendFrames(List.of(frame(ByteBuffer.wrap(new byte[] {COMMIT}))));
+            channel.force(false);
+        } catch (Exception e) {
+            rollbackTransaction();
+            throw e;
+        }
+
+        end = tail;
+        index.garbage += FRAME_HEADER + 1;
+        saved = null;
+        inTransaction = false;
+        lock.release();
+        maybeCompact();
+    }
+
+    @Override
+    public synchronized void rollbackTransaction() throws Exception {
+        if (!inTransaction) {
+            return;
+        }
+        try {
+            channel.truncate(end);
+            tail = end;
+            List<Undo> undo = saved.undo();
+            for (int i = undo.size() - 1; i >= 0; i--) {
+                Undo step = undo.get(i);
+                unlinkRow(step.id());
+                index.deleted.remove(step.id());
+                if (step.previous() != null) {
+                    linkRow(step.id(), step.previous());
+                }
+                if (step.previousTombstone() != null) {
+                    index.deleted.put(step.id(), step.previousTombstone());
+                }
+            }
+            index.metadata = saved.metadata();
+            index.metaOffset = saved.metaOffset();
+            index.metaSize = saved.metaSize();
+            index.lineage = saved.lineage();
+            index.lineageOffset = saved.lineageOffset();
+            index.lineageSize = saved.lineageSize();
+            index.changeCount = saved.changeCount();
+            index.lastId = saved.lastId();
+            index.garbage = saved.garbage();
+            // The mapping may reach past the truncated end.
+            map = null;
+            mapped = 0;
+        } finally {
+            saved = null;
+            inTransaction = false;
+            lock.release();
+        }
+    }
+
+    // Waits for a running compaction, which needs this store to finish.
+    @Override
+    public void close() {
+        Thread running;
+        synchronized (this) {
+            running = compactor;
+        }
+        if (running != null) {
+            try {
+                running.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        synchronized (this) {
+            closed = true;
+            try {
+                if (channel != null) {
+                    channel.close();
+                }
+                if (lockChannel != null) {
+                    lockChannel.close();
+                }
+            } catch (IOException e) {
+                throw new RuntimeException("Failed to close vault log", e);
+            }
+        }
+    }
+
+    private interface Mutation {
+        void run() throws Exception;
+    }
+
+    // Outside a transaction every change is a transaction of its own.
+    private void mutate(Mutation mutation) throws Exception {
+        if (inTransaction) {
+            mutation.run();
+            return;
+        }
+
+        beginTransaction();
+        try {
+            mutation.run();
+        } catch (Exception e) {
+            rollbackTransaction();
+            throw e;
+        }
+        commitTransaction();
+    }
+
+    // New rows must not collide with the vault or with each other.
+    private void checkLookupsFree(List<EncryptedRow> rows) throws Exception {
+        Set<ByteBuffer> seen = new HashSet<>();
+        for (EncryptedRow row : rows) {
+            checkLookupFree(row.lookup(), -1);
+            if (row.lookup() != null && !seen.add(ByteBuffer.wrap(row.lookup()))) {
+                throw new Exception("Credential already exists");
+            }
+        }
+    }
+
+    private void checkLookupFree(byte[] lookup, int ownerId) throws Exception {
+        if (lookup == null) {
+            return;
+        }
+        Integer owner = index.lookups.get(ByteBuffer.wrap(lookup));
+        if (owner != null && owner != ownerId) {
+            throw new Exception("Credential already exists");
+        }
+    }
+
+    // Stamps each body with the next change number, writes the frames in one go
+    // and applies them to the index right away, so the rest of the transaction
+    // sees them.
+    private void append(List<ByteBuffer> bodies) throws Exception {
+        List<ByteBuffer> frames = new ArrayList<>(bodies.size());
+        long change = index.changeCount;
+        for (ByteBuffer body : bodies) {
+            if (body.get(0) != LINEAGE) {
+                body.putLong(body.limit() - 8, ++change);
+            }
+            frames.add(frame(body));
+        }
+
+        long offset = tail;
+        appendFrames(frames);
+
+        for (int i = 0; i < bodies.size(); i++) {
+            ByteBuffer body = bodies.get(i);
+            int size = frames.get(i).limit();
+            apply(body, offset, size);
+            offset += size;
+        }
+    }
+
+    private void appendFrames(List<ByteBuffer> frames) throws IOException {
+        channel.position(tail);
+        for (ByteBuffer frame : frames) {
+            tail += writeFully(channel, frame);
+        }
+    }
+
+    private static int writeFully(FileChannel out, ByteBuffer buffer) throws IOException {
+        int written = buffer.remaining();
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+        return written;
+    }
+
+    // Catches up with frames other processes committed, or starts over when a
+    // compaction replaced the file. Our own open transaction is already applied.
+    private void refresh() throws Exception {
+        if (channel == null || inTransaction) {
+            return;
+        }
+        if (channel.size() > end && replay(end)) {
+            reopen();
+        }
+    }
+
+    // Writers also compare the file itself, in case a compaction died between
+    // swapping the file and leaving MOVED behind.
+    private void refreshForWrite() throws Exception {
+        if (!Objects.equals(currentFileKey(), fileKey)) {
+            reopen();
+        } else {
+            refresh();
+        }
+    }
+
+    private Object currentFileKey() throws IOException {
+        return Files.readAttributes(path, BasicFileAttributes.class).fileKey();
+    }
+
+    private void reopen() throws Exception {
+        if (channel != null) {
+            channel.close();
+        }
+        channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        fileKey = currentFileKey();
+        map = null;
+        mapped = 0;
+
+        ByteBuffer header = ByteBuffer.allocate(MAGIC.length);
+        channel.read(header, 0);
+        if (!Arrays.equals(header.array(), MAGIC)) {
+            throw new Exception("Not a HashVault log file: " + path);
+        }
+
+        index = new Index();
+        end = MAGIC.length;
+        replay(end);
+        tail = end;
+    }
+
+    // Applies committed transactions from the given offset on. A frame that is
+    // cut short or fails its checksum ends the replay, as does running out of
+    // frames before the next COMMIT. Returns true on finding MOVED.
+    private boolean replay(long from) throws Exception {
+        long size = channel.size();
+        ensureMapped(size);
+
+        List<long[]> pending = new ArrayList<>();
+        CRC32 crc = new CRC32();
+        long position = from;
+
+        while (position + FRAME_HEADER < size) {
+            int length = map.getInt((int) position);
+            if (length < 1 || position + FRAME_HEADER + length > size) {
+                break;
+            }
+
+            crc.reset();
+            crc.update(map.slice((int) position + FRAME_HEADER, length));
+            if ((int) crc.getValue() != map.getInt((int) position + 4)) {
+                break;
+            }
+
+            int frameSize = FRAME_HEADER + length;
+            byte type = map.get((int) position + FRAME_HEADER);
+            if (type == MOVED) {
+                return true;
+            }
+            if (type == COMMIT) {
+                for (long[] frame : pending) {
+                    apply(map.slice((int) frame[0] + FRAME_HEADER, (int) frame[1] - FRAME_HEADER), frame[0], (int) frame[1]);
+                }
+                pending.clear();
+                index.garbage += frameSize;
+                position += frameSize;
+                end = position;
+            } else {
+                pending.add(new long[] {position, frameSize});
+                position += frameSize;
+            }
+        }
+        return false;
+    }
+
+    // Updates the index for one frame whose body is given and which starts at
+    // offset in the file.
+    private void apply(ByteBuffer body, long offset, int size) throws Exception {
+        body = body.duplicate();
+        byte type = body.get();
+
+        switch (type) {
+            case META -> {
+                if (index.metaOffset >= 0) {
+                    index.garbage += index.metaSize;
+                }
+                index.metadata = readMeta(body);
+                index.metaOffset = offset;
+                index.metaSize = size;
+                countChange(body.hasRemaining() ? body.getLong() : 0);
+            }
+            case ROW -> {
+                int id = body.getInt();
+                skipBlob(body);
+                skipBlob(body);
+                byte[] lookup = readBlob(body);
+                int version = body.hasRemaining() ? body.getInt() : 0;
+                long modified = body.remaining() >= 16 ? body.getLong() : 0;
+                long passwordChanged = body.remaining() == 16 ? body.getLong() : modified;
+                long change = body.hasRemaining() ? body.getLong() : 0;
+
+                removeRow(id);
+                linkRow(id, new Entry(offset, size, lookup == null ? null : ByteBuffer.wrap(lookup), version, modified,
+                    passwordChanged, change));
+                index.lastId = Math.max(index.lastId, id);
+                countChange(change);
+            }
+            case TOMBSTONE -> {
+                int id = body.getInt();
+                long change = body.hasRemaining() ? body.getLong() : 0;
+                removeRow(id);
+                index.deleted.put(id, new Entry(offset, size, null, 0, 0, 0, change));
+                index.lastId = Math.max(index.lastId, id);
+                countChange(change);
+            }
+            case LINEAGE -> {
+                if (index.lineageOffset >= 0) {
+                    index.garbage += index.lineageSize;
+                }
+                index.lineage = new byte[16];
+                body.get(index.lineage);
+                index.lineageOffset = offset;
+                index.lineageSize = size;
+            }
+            default -> throw new Exception("Corrupt vault log at offset " + offset);
+        }
+    }
+
+    private void countChange(long change) {
+        index.changeCount = Math.max(index.changeCount, change);
+    }
+
+    // Drops the row and the tombstone with that id, whichever there is.
+    private void removeRow(int id) {
+        if (saved != null) {
+            saved.undo().add(new Undo(id, index.rows.get(id), index.deleted.get(id)));
+        }
+        Entry old = unlinkRow(id);
+        if (old != null) {
+            index.garbage += old.size();
+        }
+        Entry tombstone = index.deleted.remove(id);
+        if (tombstone != null) {
+            index.garbage += tombstone.size();
+        }
+    }
+
+    private void linkRow(int id, Entry entry) {
+        index.rows.put(id, entry);
+        if (entry.lookup() == null) {
+            index.unindexed.add(id);
+        } else {
+            index.lookups.put(entry.lookup(), id);
+        }
+    }
+
+    private Entry unlinkRow(int id) {
+        Entry old = index.rows.remove(id);
+        if (old != null) {
+            if (old.lookup() == null) {
+                index.unindexed.remove(id);
+            } else {
+                index.lookups.remove(old.lookup());
+            }
+        }
+        return old;
+    }
+
+    private EncryptedRow readRow(Entry entry, boolean withSecret) throws Exception {
+        ensureMapped(entry.offset() + entry.size());
+
+        ByteBuffer body = map.slice((int) entry.offset() + FRAME_HEADER + 1, entry.size() - FRAME_HEADER - 1);
+        int id = body.getInt();
+        byte[] data = readBlob(body);
+        byte[] secret;
+        if (withSecret) {
+            secret = readBlob(body);
+        } else {
+            skipBlob(body);
+            secret = null;
+        }
+        byte[] lookup = readBlob(body);
+        int version = body.hasRemaining() ? body.getInt() : 0;
+        long modified = body.remaining() >= 16 ? body.getLong() : 0;
+        long passwordChanged = body.remaining() == 16 ? body.getLong() : modified;
+        return new EncryptedRow(id, data, secret, lookup, version, modified, passwordChanged);
+    }
+
+    // Maps the whole file again once a read goes past the current mapping;
+    // appends alone never remap.
+    private void ensureMapped(long size) throws Exception {
+        if (map != null && size <= mapped) {
+            return;
+        }
+        long fileSize = channel.size();
+        if (fileSize > Integer.MAX_VALUE) {
+            throw new Exception("Vault log larger than 2 GiB");
+        }
+        map = channel.map(FileChannel.MapMode.READ_ONLY, 0, fileSize);
+        mapped = fileSize;
+    }
+
+    // Starts a rewrite once garbage makes up more than half of the file. It
+    // copies the live frames of the committed state as it is now; frames
+    // appended meanwhile are carried over when the new file is swapped in.
+    private void maybeCompact() throws Exception {
+        if (closed || (compactor != null && compactor.isAlive())) {
+            return;
+        }
+        if (index.garbage < MIN_COMPACT_GARBAGE || index.garbage * 2 < end) {
+            return;
+        }
+
+        ensureMapped(end);
+        // Tombstones are copied too: they keep deletes visible to changedSince
+        // and ids of deleted rows from being handed out again.
+        List<Entry> live = new ArrayList<>(index.rows.size() + index.deleted.size() + 2);
+        if (index.lineageOffset >= 0) {
+            live.add(new Entry(index.lineageOffset, index.lineageSize, null, 0, 0, 0, 0));
+        }
+        if (index.metaOffset >= 0) {
+            live.add(new Entry(index.metaOffset, index.metaSize, null, 0, 0, 0, 0));
+        }
+        live.addAll(index.rows.values());
+        live.addAll(index.deleted.values());
+        MappedByteBuffer source = map;
+        Object sourceKey = fileKey;
+        long copiedEnd = end;
+
+        compactor = new Thread(() -> compact(source, sourceKey, copiedEnd, live), "vault-compactor");
+        compactor.start();
+    }
+
+    // swapLock is only held, never read.
+    @SuppressWarnings("try")
+    private void compact(MappedByteBuffer source, Object sourceKey, long copiedEnd, List<Entry> live) {
+        try (FileChannel out = FileChannel.open(compactPath,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ByteBuffer buffer = ByteBuffer.allocate(COPY_BUFFER);
+            buffer.put(MAGIC);
+            for (Entry entry : live) {
+                buffer = copyFrame(out, buffer, source, entry.offset(), entry.size());
+            }
+            buffer = putFrame(out, buffer, frame(ByteBuffer.wrap(new byte[] {COMMIT})));
+
+            synchronized (this) {
+                if (closed || inTransaction || !Objects.equals(fileKey, sourceKey)) {
+                    Files.deleteIfExists(compactPath);
+                    return;
+                }
+
+                try (FileLock swapLock = lockChannel.lock()) {
+                    refreshForWrite();
+                    if (!Objects.equals(fileKey, sourceKey)) {
+                        Files.deleteIfExists(compactPath);
+                        return;
+                    }
+
+                    ensureMapped(end);
+                    for (long position = copiedEnd; position < end; position += COPY_BUFFER) {
+                        int length = (int) Math.min(COPY_BUFFER, end - position);
+                        buffer = putFrame(out, buffer, map.slice((int) position, length));
+                    }
+                    buffer.flip();
+                    writeFully(out, buffer);
+                    out.force(true);
+
+                    Files.move(compactPath, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                    tail = end;
+                    appendFrames(List.of(frame(ByteBuffer.wrap(new byte[] {MOVED}))));
+                    reopen();
+                }
+            }
+        } catch (Exception e) {
+            // Compaction only saves space; the vault is fine without it.
+            try {
+                Files.deleteIfExists(compactPath);
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private ByteBuffer copyFrame(FileChannel out, ByteBuffer buffer, MappedByteBuffer source, long offset, int size) throws IOException {
+        return putFrame(out, buffer, source.slice((int) offset, size));
+    }
+
+    // Adds bytes to the write buffer, flushing it to out when full.
+    private static ByteBuffer putFrame(FileChannel out, ByteBuffer buffer, ByteBuffer bytes) throws IOException {
+        if (bytes.remaining() > buffer.remaining()) {
+            buffer.flip();
+            writeFully(out, buffer);
+            buffer.clear();
+        }
+        if (bytes.remaining() > buffer.remaining()) {
+            writeFully(out, bytes.duplicate());
+            return buffer;
+        }
+        buffer.put(bytes.duplicate());
+        return buffer;
+    }
+
+    private static ByteBuffer frame(ByteBuffer body) {
+        CRC32 crc = new CRC32();
+        crc.update(body.duplicate());
+
+        ByteBuffer frame = ByteBuffer.allocate(FRAME_HEADER + body.remaining());
+        frame.putInt(body.remaining());
+        frame.putInt((int) crc.getValue());
+        frame.put(body.duplicate());
+        return frame.flip();
+    }
+
+    private static ByteBuffer rowBody(EncryptedRow row) {
+        ByteBuffer body = ByteBuffer.allocate(1 + 4 + blobSize(row.data()) + blobSize(row.secret()) + blobSize(row.lookup()) + 4 + 8 + 8 + 8);
+        body.put(ROW).putInt(row.id());
+        putBlob(body, row.data());
+        putBlob(body, row.secret());
+        putBlob(body, row.lookup());
+        body.putInt(row.version());
+        body.putLong(row.modified());
+        body.putLong(row.passwordChanged());
+        body.putLong(0);
+        return body.flip();
+    }
+
+    private static ByteBuffer tombstoneBody(int id) {
+        return ByteBuffer.allocate(1 + 4 + 8).put(TOMBSTONE).putInt(id).putLong(0).flip();
+    }
+
+    private static ByteBuffer lineageBody(byte[] lineage) {
+        return ByteBuffer.allocate(1 + lineage.length).put(LINEAGE).put(lineage).flip();
+    }
+
+    private static ByteBuffer metaBody(DataBase.Metadata metadata) {
+        byte[] algorithm = metadata.kdf().algorithm().getBytes(StandardCharsets.UTF_8);
+        ByteBuffer body = ByteBuffer.allocate(1
+            + blobSize(metadata.masterKey()) + blobSize(metadata.loginSalt()) + blobSize(metadata.encryptionSalt())
+            + blobSize(metadata.wrappedKey()) + 4 + blobSize(algorithm) + 4 + 8);
+        body.put(META);
+        putBlob(body, metadata.masterKey());
+        putBlob(body, metadata.loginSalt());
+        putBlob(body, metadata.encryptionSalt());
+        putBlob(body, metadata.wrappedKey());
+        body.putInt(metadata.kdf().version());
+        putBlob(body, algorithm);
+        body.putInt(metadata.kdf().iterations());
+        body.putLong(0);
+        return body.flip();
+    }
+
+    private static DataBase.Metadata readMeta(ByteBuffer body) {
+        byte[] masterKey = readBlob(body);
+        byte[] loginSalt = readBlob(body);
+        byte[] encryptionSalt = readBlob(body);
+        byte[] wrappedKey = readBlob(body);
+        int version = body.getInt();
+        String algorithm = new String(readBlob(body), StandardCharsets.UTF_8);
+        int iterations = body.getInt();
+        return new DataBase.Metadata(masterKey, loginSalt, encryptionSalt, wrappedKey,
+            new Vault.KdfParams(version, algorithm, iterations));
+    }
+
+    private static int blobSize(byte[] blob) {
+        return 4 + (blob == null ? 0 : blob.length);
+    }
+
+    private static void putBlob(ByteBuffer body, byte[] blob) {
+        if (blob == null) {
+            body.putInt(-1);
+        } else {
+            body.putInt(blob.length).put(blob);
+        }
+    }
+
+    private static byte[] readBlob(ByteBuffer body) {
+        int length = body.getInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] blob = new byte[length];
+        body.get(blob);
+        return blob;
+    }
+
+    private static void skipBlob(ByteBuffer body) {
+        int length = body.getInt();
+        if (length > 0) {
+            body.position(body.position() + length);
+        }
+    }
+}
@@ -1,34 +1,86 @@
 package com.github.tmpstpdwn;
 
+import java.nio.file.Path;
+
 import javax.crypto.SecretKey;
 
 public class Main {
     private static final ArgumentParser argParser = new ArgumentParser();
-    private static final DataBase db = new DataBase();
+    private static DataBase db;
 
+    @SuppressWarnings("try")
     public static void main(String[] args) {
         try {
             argParser.parseArgs(args);
-            db.connect();
+            if (argParser.getParsedArg().options().containsKey("--stats")) {
+                Stats.enable();
+            }
+            if (Stats.active()) {
+                Stats.startup();
+            }
+
+            try (Stats.Phase phase = Stats.phase("agent")) {
+                if (Agent.forward(argParser.getParsedArg(), args, System.out)) {
+                    return;
+                }
+            }
+            if (argParser.getParsedArg().acrossVaults()) {
+                try (Stats.Phase phase = Stats.phase("vaults")) {
+                    CrossVault.run(argParser.getParsedArg(), System.out);
+                }
+                return;
+            }
+            try (Stats.Phase phase = Stats.phase("connect")) {
+                db = openDataBase(argParser.getParsedArg());
+                db.connect();
+            }
             run(db);
         } catch (Exception e) {
             System.out.println("Error: " + e.getMessage() + "!");
             System.exit(1);
         } finally {
-            db.close();
+            if (db != null) {
+                db.close();
+            }
+            if (argParser.getParsedArg() != null) {
+                // Kept off stdout, which may be carrying --export or JSON output.
+                Stats.report(argParser.getParsedArg().action().name(), System.err);
+            }
         }
     }
 
+    // --db or --vault picks another vault file; --read-only works on an
+    // in-memory copy of it. The file itself says which engine it uses; --engine
+    // only matters for a vault that does not exist yet.
+    static DataBase openDataBase(ArgumentParser.ParsedArg parsedArg) throws Exception {
+        return openDataBase(parsedArg.vaultPath(), parsedArg);
+    }
+
+    static DataBase openDataBase(Path path, ArgumentParser.ParsedArg parsedArg) throws Exception {
+        return DataBase.open(path, parsedArg.option("--engine", "sqlite"), parsedArg.options().containsKey("--read-only"));
+    }
+
+    @SuppressWarnings("try")
     private static void run(DataBase db) throws Exception {
-        if (!db.metaTableExists()) {
+        // A restore creates the vault; the backup has the password to check.
+        if (argParser.getParsedArg().action() == ActionHandler.ActionType.RESTORE) {
+            ActionHandler.handleActions(argParser.getParsedArg(), db, null);
+        } else if (!db.metaTableExists()) {
             ArgumentParser.ParsedArg launchNEWPASS =
-            new ArgumentParser.ParsedArg(ActionHandler.ActionType.NEWPASS, null);
+            new ArgumentParser.ParsedArg(ActionHandler.ActionType.NEWPASS, null, argParser.getParsedArg().options());
             ActionHandler.handleActions(launchNEWPASS, db, null);
         } else {
+            try (Stats.Phase phase = Stats.phase("schema")) {
+                db.upgradeSchema();
+            }
             SecretKey AESKey = Authenticator.authenticate(db);
-            ActionHandler.handleActions(argParser.getParsedArg(), db, AESKey);
+            try (Stats.Phase phase = Stats.phase("index")) {
+                db.indexCredentials(AESKey);
+            }
+            try (Stats.Phase phase = Stats.phase("action")) {
+                ActionHandler.handleActions(argParser.getParsedArg(), db, AESKey);
+            }
         }
     }
 
 }
-    
\ No newline at end of file
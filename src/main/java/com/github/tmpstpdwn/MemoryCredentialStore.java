@@ -0,0 +1,330 @@
+package com.github.tmpstpdwn;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+// Rows in a TreeMap keyed by id, with the blind index in a hash map next to
+// it. Nothing touches the disk, so benchmarks against it measure the crypto
+// layer alone. Ids are handed out like AUTOINCREMENT and never reused. A
+// transaction keeps a copy of the maps to fall back to; rows are immutable, so
+// copying them is cheap. Like one JDBC connection, a store is used from one
+// thread at a time.
+class MemoryCredentialStore implements CredentialStore {
+
+    private TreeMap<Integer, EncryptedRow> rows = new TreeMap<>();
+    private Map<ByteBuffer, Integer> lookups = new HashMap<>();
+    private DataBase.Metadata metadata;
+    private boolean initialized = false;
+    private int lastId = 0;
+
+    // Change number of the last write to each row id, deleted ones included.
+    private final byte[] lineage = ChangePosition.newLineage();
+    private Map<Integer, Long> changes = new HashMap<>();
+    private long changeCount = 0;
+
+    private Saved saved;
+
+    private record Saved(TreeMap<Integer, EncryptedRow> rows, Map<ByteBuffer, Integer> lookups, DataBase.Metadata metadata, int lastId,
+                         Map<Integer, Long> changes, long changeCount) {}
+
+    @Override
+    public void open() throws Exception {
+    }
+
+    @Override
+    public boolean isInitialized() {
+        return initialized;
+    }
+
+    @Override
+    public void initialize() throws Exception {
+        initialized = true;
+    }
+
+    @Override
+    public void upgrade() throws Exception {
+    }
+
+    @Override
+    public boolean isReadOnly() {
+        return false;
+    }
+
+    @Override
+    public DataBase.Metadata getMetadata() throws Exception {
+        return metadata;
+    }
+
+    @Override
+    public void setMetadata(DataBase.Metadata metadata) throws Exception {
+        this.metadata = metadata;
+        changeCount++;
+    }
+
+    @Override
+    public EncryptedRow get(int id) throws Exception {
+        return rows.get(id);
+    }
+
+    @Override
+    public EncryptedRow findByLookup(byte[] lookup) throws Exception {
+        Integer id = lookups.get(ByteBuffer.wrap(lookup));
+        return id == null ? null : rows.get(id);
+    }
+
+    @Override
+    public void insert(EncryptedRow row) throws Exception {
+        checkLookupFree(row.lookup(), -1);
+        long now = System.currentTimeMillis();
+        put(new EncryptedRow(++lastId, row.data(), row.secret(), row.lookup(), 0, now,
+            row.passwordChanged() > 0 ? row.passwordChanged() : now));
+        changed(lastId);
+    }
+
+    // Checked up front, so a duplicate leaves none of the rows behind.
+    @Override
+    public void insertAll(List<EncryptedRow> rows) throws Exception {
+        Set<ByteBuffer> seen = new HashSet<>();
+        for (EncryptedRow row : rows) {
+            checkLookupFree(row.lookup(), -1);
+            if (row.lookup() != null && !seen.add(ByteBuffer.wrap(row.lookup()))) {
+                throw new Exception("Credential already exists");
+            }
+        }
+        for (EncryptedRow row : rows) {
+            insert(row);
+        }
+    }
+
+    @Override
+    public void insertWithIds(List<EncryptedRow> rows) throws Exception {
+        for (EncryptedRow row : rows) {
+            load(row);
+        }
+    }
+
+    @Override
+    public void update(EncryptedRow row) throws Exception {
+        EncryptedRow current = rows.get(row.id());
+        if (current != null) {
+            replace(current, row, System.currentTimeMillis(),
+                row.passwordChanged() > 0 ? row.passwordChanged() : current.passwordChanged());
+        }
+    }
+
+    @Override
+    public void updateAll(List<EncryptedRow> rows) throws Exception {
+        for (EncryptedRow row : rows) {
+            EncryptedRow current = this.rows.get(row.id());
+            if (current == null) {
+                continue;
+            }
+            replace(current, current.lookup() == null ? new EncryptedRow(row.id(), row.data(), row.secret(), null) : row,
+                current.modified(), current.passwordChanged());
+        }
+    }
+
+    @Override
+    public void setLookup(int id, byte[] lookup) throws Exception {
+        EncryptedRow current = rows.get(id);
+        if (current != null) {
+            replace(current, new EncryptedRow(id, current.data(), current.secret(), lookup), current.modified(),
+                current.passwordChanged());
+        }
+    }
+
+    // Puts row in the place of current with the next version.
+    private void replace(EncryptedRow current, EncryptedRow row, long modified, long passwordChanged) throws Exception {
+        checkLookupFree(row.lookup(), row.id());
+        remove(current);
+        put(new EncryptedRow(row.id(), row.data(), row.secret(), row.lookup(), current.version() + 1, modified, passwordChanged));
+        changed(row.id());
+    }
+
+    @Override
+    public boolean compareAndUpdate(EncryptedRow row) throws Exception {
+        EncryptedRow current = rows.get(row.id());
+        if (current == null || current.version() != row.version()) {
+            return false;
+        }
+        update(row);
+        return true;
+    }
+
+    // Checked up front like insertAll, so a duplicate lookup changes nothing.
+    @Override
+    public List<Integer> compareAndUpdateAll(List<EncryptedRow> rows) throws Exception {
+        List<Integer> conflicts = new ArrayList<>();
+        List<EncryptedRow> matching = new ArrayList<>(rows.size());
+        Set<ByteBuffer> seen = new HashSet<>();
+        for (EncryptedRow row : rows) {
+            EncryptedRow current = this.rows.get(row.id());
+            if (current == null || current.version() != row.version()) {
+                conflicts.add(row.id());
+                continue;
+            }
+            checkLookupFree(row.lookup(), row.id());
+            if (row.lookup() != null && !seen.add(ByteBuffer.wrap(row.lookup()))) {
+                throw new Exception("Credential already exists");
+            }
+            matching.add(row);
+        }
+        for (EncryptedRow row : matching) {
+            update(row);
+        }
+        return conflicts;
+    }
+
+    @Override
+    public boolean delete(int id) throws Exception {
+        EncryptedRow current = rows.get(id);
+        if (current == null) {
+            return false;
+        }
+        remove(current);
+        changed(id);
+        return true;
+    }
+
+    @Override
+    public int count() throws Exception {
+        return rows.size();
+    }
+
+    @Override
+    public Set<ByteBuffer> lookups() throws Exception {
+        return new HashSet<>(lookups.keySet());
+    }
+
+    @Override
+    public List<EncryptedRow> unindexed() throws Exception {
+        List<EncryptedRow> unindexed = new ArrayList<>();
+        for (EncryptedRow row : rows.values()) {
+            if (row.lookup() == null) {
+                unindexed.add(row);
+            }
+        }
+        return unindexed;
+    }
+
+    @Override
+    public List<EncryptedRow> page(int afterId, int size) throws Exception {
+        List<EncryptedRow> page = new ArrayList<>(Math.min(size, rows.size()));
+        for (EncryptedRow row : rows.tailMap(afterId, false).values()) {
+            if (page.size() == size) {
+                break;
+            }
+            page.add(row);
+        }
+        return page;
+    }
+
+    @Override
+    public int scan(int limit, int offset, boolean withSecrets, RowVisitor visitor) throws Exception {
+        int skipped = 0;
+        int visited = 0;
+
+        for (EncryptedRow row : rows.values()) {
+            if (limit >= 0 && visited == limit) {
+                break;
+            }
+            if (skipped < offset) {
+                skipped++;
+                continue;
+            }
+
+            visitor.visit(withSecrets ? row : new EncryptedRow(row.id(), row.data(), null, row.lookup(), row.version(), row.modified(),
+                row.passwordChanged()));
+            visited++;
+        }
+
+        return visited;
+    }
+
+    @Override
+    public ChangePosition changePosition() throws Exception {
+        return new ChangePosition(lineage, changeCount);
+    }
+
+    @Override
+    public List<Integer> changedSince(long since) throws Exception {
+        List<Integer> ids = new ArrayList<>();
+        for (Map.Entry<Integer, Long> change : changes.entrySet()) {
+            if (change.getValue() > since) {
+                ids.add(change.getKey());
+            }
+        }
+        Collections.sort(ids);
+        return ids;
+    }
+
+    @Override
+    public void beginTransaction() throws Exception {
+        saved = new Saved(new TreeMap<>(rows), new HashMap<>(lookups), metadata, lastId, new HashMap<>(changes), changeCount);
+    }
+
+    @Override
+    public void commitTransaction() throws Exception {
+        saved = null;
+    }
+
+    @Override
+    public void rollbackTransaction() throws Exception {
+        if (saved != null) {
+            rows = saved.rows();
+            lookups = saved.lookups();
+            metadata = saved.metadata();
+            lastId = saved.lastId();
+            changes = saved.changes();
+            changeCount = saved.changeCount();
+            saved = null;
+        }
+    }
+
+    @Override
+    public void close() {
+    }
+
+    // Adds a row under its own id, for filling a store from another one.
+    void load(EncryptedRow row) throws Exception {
+        checkLookupFree(row.lookup(), -1);
+        put(row);
+        lastId = Math.max(lastId, row.id());
+        changed(row.id());
+    }
+
+    private void changed(int id) {
+        changes.put(id, ++changeCount);
+    }
+
+    private void checkLookupFree(byte[] lookup, int ownerId) throws Exception {
+        if (lookup == null) {
+            return;
+        }
+        Integer owner = lookups.get(ByteBuffer.wrap(lookup));
+        if (owner != null && owner != ownerId) {
+            throw new Exception("Credential already exists");
+        }
+    }
+
+    private void put(EncryptedRow row) {
+        rows.put(row.id(), row);
+        if (row.lookup() != null) {
+            lookups.put(ByteBuffer.wrap(row.lookup()), row.id());
+        }
+    }
+
+    private void remove(EncryptedRow row) {
+        rows.remove(row.id());
+        if (row.lookup() != null) {
+            lookups.remove(ByteBuffer.wrap(row.lookup()));
+        }
+    }
+}
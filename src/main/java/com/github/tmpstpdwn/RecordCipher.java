@@ -0,0 +1,90 @@
+package com.github.tmpstpdwn;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CompletionException;
+
+import javax.crypto.SecretKey;
+
+// Turns credentials into the encrypted rows a CredentialStore keeps and back.
+// CredentialRecord lays out the bytes, Vault encrypts them; nothing here knows
+// where the rows end up.
+class RecordCipher {
+
+    // Only target and username; the password is filled in for rows that have
+    // not been split yet, since it is part of the same blob there.
+    public static DataBase.CredentialData toMetadata(int id, byte[] encryptedData, SecretKey key) throws Exception {
+        Stats.rowDecrypted();
+        return CredentialRecord.decode(id, Vault.decryptBytes(encryptedData, key));
+    }
+
+    // A null secret means either an unsplit row or that the password was not asked for.
+    public static DataBase.CredentialData toCredential(CredentialStore.EncryptedRow row, SecretKey key) throws Exception {
+        DataBase.CredentialData cred = toMetadata(row.id(), row.data(), key);
+        if (row.secret() == null) {
+            return cred;
+        }
+
+        return new DataBase.CredentialData(row.id(), cred.target(), cred.username(), openSecret(row, key));
+    }
+
+    // The password is authenticated together with the IV of its row's metadata
+    // blob, so a secret copied onto another row fails to decrypt instead of
+    // turning up under the wrong target.
+    public static CredentialStore.EncryptedRow seal(int id, DataBase.CredentialData cred, byte[] lookup, SecretKey key) throws Exception {
+        byte[] data = Vault.encryptBytes(CredentialRecord.encodeMetadata(cred.target(), cred.username()), key);
+        byte[] secret = Vault.encryptBytes(cred.password().getBytes(StandardCharsets.UTF_8), rowBinding(data), key);
+        return new CredentialStore.EncryptedRow(id, data, secret, lookup);
+    }
+
+    public static String openSecret(CredentialStore.EncryptedRow row, SecretKey key) throws Exception {
+        return new String(Vault.decryptBytes(row.secret(), rowBinding(row.data()), key), StandardCharsets.UTF_8);
+    }
+
+    public static byte[] lookup(DataBase.CredentialData cred, SecretKey indexKey) throws Exception {
+        return Vault.blindIndex(cred.target(), cred.username(), indexKey);
+    }
+
+    private static byte[] rowBinding(byte[] data) {
+        return Arrays.copyOf(data, Vault.BytesType.IV_BYTES.getValue());
+    }
+
+    // Rows keep the order and ids of the credentials; inserts ignore the ids.
+    public static List<CredentialStore.EncryptedRow> sealAll(List<DataBase.CredentialData> credentials, SecretKey key, SecretKey indexKey) throws Exception {
+        try {
+            return credentials.parallelStream().map(cred -> {
+                try {
+                    return seal(cred.id(), cred, lookup(cred, indexKey), key);
+                } catch (Exception e) {
+                    throw new CompletionException(e);
+                }
+            }).toList();
+        } catch (CompletionException e) {
+            throw (Exception) e.getCause();
+        }
+    }
+
+    // Runs on the common ForkJoin pool; the first failure aborts the whole batch.
+    // With legacyOnly set, rows already split into metadata and secret are left
+    // out without being decrypted.
+    public static List<CredentialStore.EncryptedRow> reSealAll(List<CredentialStore.EncryptedRow> rows, SecretKey oldKey, SecretKey newKey, SecretKey newIndexKey, boolean legacyOnly) throws Exception {
+        try {
+            return rows.parallelStream().map(row -> {
+                try {
+                    if (legacyOnly && row.secret() != null) {
+                        return null;
+                    }
+
+                    DataBase.CredentialData cred = toCredential(row, oldKey);
+                    return seal(row.id(), cred, lookup(cred, newIndexKey), newKey);
+                } catch (Exception e) {
+                    throw new CompletionException(e);
+                }
+            }).filter(Objects::nonNull).toList();
+        } catch (CompletionException e) {
+            throw (Exception) e.getCause();
+        }
+    }
+}
@@ -0,0 +1,336 @@
+package com.github.tmpstpdwn;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import javax.crypto.SecretKey;
+
+// In-memory index over the decrypted targets and usernames of a vault, built
+// once after unlock and reused for every query. Passwords are never loaded.
+//
+// Queries of three or more characters go through a trigram index: entries
+// sharing at least a third of the query's trigrams become candidates and are then
+// ranked by how well they match. Shorter queries use binary search over the
+// sorted fields, which finds every field starting with the query. Queries reuse
+// scratch arrays, so one index must not be searched from two threads at once.
+class SearchIndex {
+
+    public static record Match(int id, String target, String username, int score) {}
+
+    // Ranks, best first; a field matching in more than one way takes the best.
+    private static final int EXACT = 1000;
+    private static final int PREFIX = 800;
+    private static final int SUBSTRING = 600;
+    private static final int FUZZY = 400;
+    // Ties between the two fields go to the target.
+    private static final int TARGET_BONUS = 1;
+
+    private static final int[] NO_POSTINGS = new int[0];
+
+    private final int[] ids;
+    private final String[] targets;
+    private final String[] usernames;
+    private final String[] lowerTargets;
+    private final String[] lowerUsernames;
+
+    // Length and first char of every lowercased field, so most candidates can be
+    // ranked without dereferencing their strings.
+    private final int[] targetLengths;
+    private final int[] usernameLengths;
+    private final char[] targetFirsts;
+    private final char[] usernameFirsts;
+
+    // Trigram -> ascending entry numbers of every entry with that trigram in
+    // its target or username.
+    private final Map<Long, int[]> postings;
+
+    // Every target and username, lowercased and sorted, with the entry each one
+    // came from, for prefix lookups.
+    private final String[] sortedFields;
+    private final int[] sortedEntries;
+
+    // Per-entry trigram hit counts and the entries with a non-zero count, both
+    // reset after every query.
+    private final int[] hits;
+    private final int[] touched;
+
+    private SearchIndex(List<DataBase.CredentialData> entries) {
+        int n = entries.size();
+        ids = new int[n];
+        targets = new String[n];
+        usernames = new String[n];
+        lowerTargets = new String[n];
+        lowerUsernames = new String[n];
+        targetLengths = new int[n];
+        usernameLengths = new int[n];
+        targetFirsts = new char[n];
+        usernameFirsts = new char[n];
+        hits = new int[n];
+        touched = new int[n];
+
+        Map<Long, IntList> building = new HashMap<>();
+        for (int i = 0; i < n; i++) {
+            DataBase.CredentialData cred = entries.get(i);
+            ids[i] = cred.id();
+            targets[i] = cred.target();
+            usernames[i] = cred.username();
+            lowerTargets[i] = cred.target().toLowerCase(Locale.ROOT);
+            lowerUsernames[i] = cred.username().toLowerCase(Locale.ROOT);
+            targetLengths[i] = lowerTargets[i].length();
+            usernameLengths[i] = lowerUsernames[i].length();
+            targetFirsts[i] = lowerTargets[i].isEmpty() ? 0 : lowerTargets[i].charAt(0);
+            usernameFirsts[i] = lowerUsernames[i].isEmpty() ? 0 : lowerUsernames[i].charAt(0);
+
+            for (long trigram : trigrams(lowerTargets[i] + "\u0000" + lowerUsernames[i])) {
+                building.computeIfAbsent(trigram, k -> new IntList()).addOnce(i);
+            }
+        }
+
+        postings = new HashMap<>(building.size() * 2);
+        building.forEach((trigram, list) -> postings.put(trigram, list.toArray()));
+
+        Integer[] order = new Integer[2 * n];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, Comparator.comparing(this::field));
+
+        sortedFields = new String[order.length];
+        sortedEntries = new int[order.length];
+        for (int i = 0; i < order.length; i++) {
+            sortedFields[i] = field(order[i]);
+            sortedEntries[i] = order[i] % n;
+        }
+    }
+
+    // Decrypts the metadata of every row, in id order, into a new index.
+    public static SearchIndex build(DataBase db, SecretKey key) throws Exception {
+        List<DataBase.CredentialData> entries = new ArrayList<>();
+        db.forEachCredential(key, -1, 0, false, entries::add);
+        return new SearchIndex(entries);
+    }
+
+    public int size() {
+        return ids.length;
+    }
+
+    // Returns at most limit matches, best first; equal scores keep id order.
+    public List<Match> search(String query, int limit) {
+        String q = query.toLowerCase(Locale.ROOT).strip();
+        if (q.isEmpty() || ids.length == 0) {
+            return List.of();
+        }
+
+        TopK best = new TopK(Math.min(limit, ids.length));
+
+        if (q.length() < 3) {
+            searchPrefix(q, best);
+        } else {
+            searchTrigrams(q, best);
+        }
+
+        List<Match> matches = new ArrayList<>(best.size);
+        for (int i = 0; i < best.size; i++) {
+            int entry = best.entries[i];
+            matches.add(new Match(ids[entry], targets[entry], usernames[entry], best.scores[i]));
+        }
+        return matches;
+    }
+
+    private void searchPrefix(String q, TopK best) {
+        // A field matching the prefix can still belong to an entry seen through
+        // its other field; scoring looks at both, so seeing it twice is harmless.
+        int end = prefixEnd(q);
+        for (int i = lowerBound(q); i < end; i++) {
+            int entry = sortedEntries[i];
+            best.offer(entry, score(entry, q, 0, true, best));
+        }
+    }
+
+    private void searchTrigrams(String q, TopK best) {
+        long[] grams = trigrams(q);
+        int needed = (grams.length + 2) / 3;
+        int touchedCount = 0;
+
+        for (long gram : grams) {
+            for (int entry : postings.getOrDefault(gram, NO_POSTINGS)) {
+                if (hits[entry]++ == 0) {
+                    touched[touchedCount++] = entry;
+                }
+            }
+        }
+
+        for (int t = 0; t < touchedCount; t++) {
+            int entry = touched[t];
+            int shared = hits[entry];
+            hits[entry] = 0;
+
+            if (shared >= needed) {
+                best.offer(entry, score(entry, q, FUZZY * shared / grams.length, shared == grams.length, best));
+            }
+        }
+    }
+
+    // fuzzy is what the entry scores if neither field contains the query. Exact
+    // and prefix matches are cheap to rule out; the substring test is only run
+    // when the entry holds every trigram of the query (a precondition for
+    // containing it) and the result could still make it into best.
+    private int score(int entry, String q, int fuzzy, boolean allTrigrams, TopK best) {
+        int target = anchoredScore(lowerTargets, targetLengths, targetFirsts, entry, q, TARGET_BONUS, best);
+        int username = anchoredScore(lowerUsernames, usernameLengths, usernameFirsts, entry, q, 0, best);
+        int score = Math.max(target, username);
+
+        if (score < SUBSTRING + TARGET_BONUS && allTrigrams && best.accepts(SUBSTRING + TARGET_BONUS, entry)) {
+            if (lowerTargets[entry].contains(q)) {
+                score = SUBSTRING + TARGET_BONUS;
+            } else if (score < SUBSTRING && lowerUsernames[entry].contains(q)) {
+                score = SUBSTRING;
+            }
+        }
+
+        return Math.max(score, fuzzy);
+    }
+
+    // EXACT or PREFIX (plus bonus) when the field equals or starts with q, else 0.
+    private static int anchoredScore(String[] fields, int[] lengths, char[] firsts, int entry, String q, int bonus, TopK best) {
+        int extra = lengths[entry] - q.length();
+        if (extra < 0 || firsts[entry] != q.charAt(0)) {
+            return 0;
+        }
+
+        // Among prefix matches the closer lengths rank first.
+        int score = (extra == 0 ? EXACT : PREFIX - Math.min(extra, PREFIX - SUBSTRING - 2)) + bonus;
+        if (!best.accepts(score, entry)) {
+            return 0;
+        }
+        return fields[entry].startsWith(q) ? score : 0;
+    }
+
+    private int lowerBound(String q) {
+        int low = 0;
+        int high = sortedFields.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (sortedFields[mid].compareTo(q) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    // First index past the fields starting with q; they follow the ones sorting
+    // before q and precede everything else.
+    private int prefixEnd(String q) {
+        int low = 0;
+        int high = sortedFields.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (sortedFields[mid].compareTo(q) < 0 || sortedFields[mid].startsWith(q)) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    // Fields 0..n-1 are the targets, n..2n-1 the usernames.
+    private String field(int i) {
+        return i < ids.length ? lowerTargets[i] : lowerUsernames[i - ids.length];
+    }
+
+    // Three UTF-16 chars packed into one long, distinct values only.
+    private static long[] trigrams(String s) {
+        if (s.length() < 3) {
+            return new long[0];
+        }
+
+        long[] grams = new long[s.length() - 2];
+        for (int i = 0; i < grams.length; i++) {
+            grams[i] = ((long) s.charAt(i) << 32) | ((long) s.charAt(i + 1) << 16) | s.charAt(i + 2);
+        }
+        Arrays.sort(grams);
+        int distinct = 0;
+        for (int i = 0; i < grams.length; i++) {
+            if (i == 0 || grams[i] != grams[i - 1]) {
+                grams[distinct++] = grams[i];
+            }
+        }
+        return Arrays.copyOf(grams, distinct);
+    }
+
+    // The best entries so far, kept sorted by score, then entry number (which
+    // follows id order). limit is small, so insertion into an array beats a heap
+    // and nothing is allocated per candidate.
+    private static class TopK {
+        private final int[] entries;
+        private final int[] scores;
+        private int size;
+
+        TopK(int limit) {
+            entries = new int[limit];
+            scores = new int[limit];
+        }
+
+        boolean accepts(int score, int entry) {
+            return entries.length > 0
+                && (size < entries.length || ranksBefore(score, entry, scores[size - 1], entries[size - 1]));
+        }
+
+        void offer(int entry, int score) {
+            if (!accepts(score, entry)) {
+                return;
+            }
+
+            // Prefix search can offer an entry once per field, with the same score.
+            for (int j = 0; j < size; j++) {
+                if (entries[j] == entry) {
+                    return;
+                }
+            }
+
+            int i = size < entries.length ? size++ : size - 1;
+            while (i > 0 && ranksBefore(score, entry, scores[i - 1], entries[i - 1])) {
+                entries[i] = entries[i - 1];
+                scores[i] = scores[i - 1];
+                i--;
+            }
+            entries[i] = entry;
+            scores[i] = score;
+        }
+
+        private static boolean ranksBefore(int score, int entry, int otherScore, int otherEntry) {
+            return score > otherScore || (score == otherScore && entry < otherEntry);
+        }
+    }
+
+    private static class IntList {
+        private int[] values = new int[4];
+        private int size;
+
+        void add(int value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+
+        // Entries are added in ascending order, so a repeat can only be the last value.
+        void addOnce(int value) {
+            if (size == 0 || values[size - 1] != value) {
+                add(value);
+            }
+        }
+
+        int[] toArray() {
+            return Arrays.copyOf(values, size);
+        }
+    }
+}
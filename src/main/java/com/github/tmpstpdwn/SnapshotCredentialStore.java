@@ -0,0 +1,99 @@
+package com.github.tmpstpdwn;
+
+import java.util.List;
+
+// --read-only: copies the metadata and every row of another store into memory
+// when opened and closes the source right away. Later changes to the vault
+// file are not seen, and anything that would write fails, so a snapshot can be
+// listed, searched and exported without any chance of touching the vault.
+class SnapshotCredentialStore extends MemoryCredentialStore {
+
+    private final CredentialStore source;
+
+    public SnapshotCredentialStore(CredentialStore source) {
+        this.source = source;
+    }
+
+    // The source is not upgraded here; a vault in an older layout has to be
+    // opened once without --read-only first.
+    @Override
+    public void open() throws Exception {
+        source.open();
+        try {
+            if (!source.isInitialized()) {
+                return;
+            }
+            super.initialize();
+            super.setMetadata(source.getMetadata());
+            source.scan(-1, 0, true, this::load);
+        } catch (Exception e) {
+            throw new Exception("Failed to read the vault, open it once without --read-only", e);
+        } finally {
+            source.close();
+        }
+    }
+
+    @Override
+    public boolean isReadOnly() {
+        return true;
+    }
+
+    @Override
+    public void initialize() throws Exception {
+        throw readOnly();
+    }
+
+    @Override
+    public void setMetadata(DataBase.Metadata metadata) throws Exception {
+        throw readOnly();
+    }
+
+    @Override
+    public void insert(EncryptedRow row) throws Exception {
+        throw readOnly();
+    }
+
+    @Override
+    public void insertAll(List<EncryptedRow> rows) throws Exception {
+        throw readOnly();
+    }
+
+    @Override
+    public void insertWithIds(List<EncryptedRow> rows) throws Exception {
+        throw readOnly();
+    }
+
+    @Override
+    public void update(EncryptedRow row) throws Exception {
+        throw readOnly();
+    }
+
+    @Override
+    public void updateAll(List<EncryptedRow> rows) throws Exception {
+        throw readOnly();
+    }
+
+    @Override
+    public void setLookup(int id, byte[] lookup) throws Exception {
+        throw readOnly();
+    }
+
+    @Override
+    public boolean compareAndUpdate(EncryptedRow row) throws Exception {
+        throw readOnly();
+    }
+
+    @Override
+    public List<Integer> compareAndUpdateAll(List<EncryptedRow> rows) throws Exception {
+        throw readOnly();
+    }
+
+    @Override
+    public boolean delete(int id) throws Exception {
+        throw readOnly();
+    }
+
+    private static Exception readOnly() {
+        return new Exception("Vault is opened read-only");
+    }
+}
@@ -0,0 +1,715 @@
+package com.github.tmpstpdwn;
+
+import java.sql.*;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+import org.sqlite.SQLiteConfig;
+import org.sqlite.SQLiteErrorCode;
+import org.sqlite.SQLiteException;
+
+// The vault file. Rows live in credential_table, the single metadata row in
+// meta_table, and the layout version in PRAGMA user_version. The statements
+// the row methods run are prepared once per connection and reused.
+class SqliteCredentialStore implements CredentialStore {
+
+    // Connection pragmas. The defaults put the vault in WAL mode with
+    // synchronous=NORMAL, so a commit appends to the write-ahead log instead of
+    // syncing the database and a rollback journal; a power loss can drop the
+    // last commits but never corrupts the file. Transactions start with BEGIN
+    // IMMEDIATE and wait up to busyTimeout ms for another process's write, so
+    // two invocations at once queue up instead of failing with SQLITE_BUSY.
+    // The journal mode is stored in the file, so it is only set on a vault that
+    // has its tables; opening a path that holds no vault leaves no file behind
+    // that looks like one. cacheSize follows PRAGMA cache_size: negative
+    // values are KiB. Each value
+    // can be overridden with a hashvault.sqlite.<pragma> system property, e.g.
+    // -Dhashvault.sqlite.journal_mode=delete for a vault on a network share.
+    public static record Tuning(String journalMode, String synchronous, int cacheSize, long mmapSize, int busyTimeout) {
+
+        public static final Tuning DEFAULT = new Tuning("wal", "normal", -16384, 256L << 20, 10_000);
+
+        // What a bare connection gets, for comparing against in benchmarks.
+        public static final Tuning LEGACY = new Tuning("delete", "full", -2000, 0, 0);
+
+        public static Tuning fromProperties(Properties properties) throws Exception {
+            try {
+                return new Tuning(
+                    properties.getProperty("hashvault.sqlite.journal_mode", DEFAULT.journalMode()),
+                    properties.getProperty("hashvault.sqlite.synchronous", DEFAULT.synchronous()),
+                    Integer.parseInt(properties.getProperty("hashvault.sqlite.cache_size", String.valueOf(DEFAULT.cacheSize()))),
+                    Long.parseLong(properties.getProperty("hashvault.sqlite.mmap_size", String.valueOf(DEFAULT.mmapSize()))),
+                    Integer.parseInt(properties.getProperty("hashvault.sqlite.busy_timeout", String.valueOf(DEFAULT.busyTimeout())))
+                );
+            } catch (NumberFormatException e) {
+                throw new Exception("Invalid hashvault.sqlite setting: " + e.getMessage());
+            }
+        }
+
+        Properties toConnectionProperties() throws Exception {
+            SQLiteConfig config = new SQLiteConfig();
+            try {
+                config.setSynchronous(SQLiteConfig.SynchronousMode.valueOf(synchronous.toUpperCase()));
+            } catch (IllegalArgumentException e) {
+                throw new Exception("Invalid hashvault.sqlite.synchronous: " + synchronous);
+            }
+            config.setCacheSize(cacheSize);
+            config.setPragma(SQLiteConfig.Pragma.MMAP_SIZE, String.valueOf(mmapSize));
+            config.setBusyTimeout(busyTimeout);
+            config.setTransactionMode(SQLiteConfig.TransactionMode.IMMEDIATE);
+            return config.toProperties();
+        }
+
+        String journalModePragma() throws Exception {
+            try {
+                return "PRAGMA journal_mode = " + SQLiteConfig.JournalMode.valueOf(journalMode.toUpperCase()).getValue();
+            } catch (IllegalArgumentException e) {
+                throw new Exception("Invalid hashvault.sqlite.journal_mode: " + journalMode);
+            }
+        }
+    }
+
+    // Bumped whenever the layout of the tables changes; stored in PRAGMA user_version.
+    private static final int SCHEMA_VERSION = 9;
+
+    private static final String lookupIndexSQL =
+        "CREATE UNIQUE INDEX IF NOT EXISTS credential_lookup ON credential_table (lookup)";
+
+    // Triggers keep the change position: every write to credential_table or
+    // meta_table bumps the count in change_counter, and change_table holds,
+    // per row id, the count of the last insert, update or delete of that row.
+    // Deleted rows keep their entry, so changedSince reports them too.
+    private static final List<String> changeTrackingSQL = List.of(
+        "CREATE TABLE IF NOT EXISTS change_counter (lineage BLOB NOT NULL, count INTEGER NOT NULL)",
+        "INSERT INTO change_counter (lineage, count) SELECT randomblob(16), 0 WHERE NOT EXISTS (SELECT 1 FROM change_counter)",
+        "CREATE TABLE IF NOT EXISTS change_table (row_id INTEGER PRIMARY KEY, seq INTEGER NOT NULL)",
+        "CREATE INDEX IF NOT EXISTS change_seq ON change_table (seq)",
+        rowTrigger("credential_inserted", "INSERT", "NEW.id"),
+        rowTrigger("credential_updated", "UPDATE", "NEW.id"),
+        rowTrigger("credential_deleted", "DELETE", "OLD.id"),
+        "CREATE TRIGGER IF NOT EXISTS meta_inserted AFTER INSERT ON meta_table BEGIN UPDATE change_counter SET count = count + 1; END",
+        "CREATE TRIGGER IF NOT EXISTS meta_updated AFTER UPDATE ON meta_table BEGIN UPDATE change_counter SET count = count + 1; END"
+    );
+
+    private static String rowTrigger(String name, String event, String id) {
+        return "CREATE TRIGGER IF NOT EXISTS " + name + " AFTER " + event + " ON credential_table BEGIN "
+            + "UPDATE change_counter SET count = count + 1; "
+            + "INSERT OR REPLACE INTO change_table (row_id, seq) SELECT " + id + ", count FROM change_counter; "
+            + "END";
+    }
+
+    final private Path dbDirPath;
+    final private Path dbFilePath;
+    final private Tuning tuning;
+
+    private Connection conn;
+    private String journalModePragma;
+    private final Map<String, PreparedStatement> statements = new HashMap<>();
+
+    // Tuned from the hashvault.sqlite.* system properties, see Tuning.
+    public SqliteCredentialStore(Path dbFilePath) {
+        this(dbFilePath, null);
+    }
+
+    public SqliteCredentialStore(Path dbFilePath, Tuning tuning) {
+        this.dbFilePath = dbFilePath.toAbsolutePath();
+        this.dbDirPath = this.dbFilePath.getParent();
+        this.tuning = tuning;
+    }
+
+    @Override
+    public void open() throws Exception {
+        File dbDir = dbDirPath.toFile();
+        if (!dbDir.exists()) {
+            if (!dbDir.mkdirs()) {
+                throw new Exception("Failed to create directory: " + dbDirPath);
+            }
+        }
+
+        String url = "jdbc:sqlite:" + dbFilePath.toString();
+        Tuning settings = tuning != null ? tuning : Tuning.fromProperties(System.getProperties());
+        journalModePragma = settings.journalModePragma();
+        SqliteNativeLibrary.prepare();
+        conn = DriverManager.getConnection(url, settings.toConnectionProperties());
+        if (Stats.active()) {
+            conn = Stats.instrument(conn);
+        }
+
+        if (isInitialized()) {
+            try (Statement stmt = conn.createStatement()) {
+                stmt.execute(journalModePragma);
+            }
+        }
+    }
+
+    @Override
+    public boolean isInitialized() {
+        String sql = "SELECT name FROM sqlite_master WHERE type='table' AND name='meta_table';";
+
+        try (Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery(sql)) {
+            return rs.next();
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public void initialize() throws Exception {
+        String metaTableSQL = """
+            CREATE TABLE IF NOT EXISTS meta_table (
+                master_key BLOB NOT NULL,
+                login_salt BLOB NOT NULL,
+                encryption_salt BLOB NOT NULL,
+                wrapped_key BLOB,
+                kdf_version INTEGER NOT NULL DEFAULT 1,
+                kdf_algorithm TEXT NOT NULL DEFAULT '%s',
+                kdf_iterations INTEGER NOT NULL DEFAULT %d
+            );
+        """.formatted(Vault.KDF_ALGORITHM, Vault.ITERATIONS);
+
+        String credentialTableSQL = """
+            CREATE TABLE IF NOT EXISTS credential_table (
+                id INTEGER PRIMARY KEY AUTOINCREMENT,
+                data BLOB NOT NULL,
+                lookup BLOB,
+                secret BLOB,
+                version INTEGER NOT NULL DEFAULT 0,
+                modified INTEGER NOT NULL DEFAULT 0,
+                password_changed INTEGER NOT NULL DEFAULT 0
+            );
+        """;
+
+        try (Statement stmt = conn.createStatement()) {
+            stmt.executeUpdate(metaTableSQL);
+            stmt.executeUpdate(credentialTableSQL);
+            stmt.executeUpdate(lookupIndexSQL);
+            for (String sql : changeTrackingSQL) {
+                stmt.executeUpdate(sql);
+            }
+            setSchemaVersion(stmt, SCHEMA_VERSION);
+            stmt.execute(journalModePragma);
+        } catch (Exception e) {
+            throw new Exception("Failed to create tables", e);
+        }
+    }
+
+    // Brings a vault created by an older version up to SCHEMA_VERSION. Only the
+    // table layout changes here, so it runs before the vault is unlocked.
+    @Override
+    public void upgrade() throws Exception {
+        int version;
+        try (Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery("PRAGMA user_version")) {
+            version = rs.next() ? rs.getInt(1) : 0;
+        }
+
+        if (version >= SCHEMA_VERSION) {
+            return;
+        }
+
+        conn.setAutoCommit(false);
+        try (Statement stmt = conn.createStatement()) {
+            if (version < 1) {
+                stmt.executeUpdate("ALTER TABLE credential_table ADD COLUMN lookup BLOB");
+                stmt.executeUpdate(lookupIndexSQL);
+            }
+            if (version < 2) {
+                stmt.executeUpdate("ALTER TABLE meta_table ADD COLUMN wrapped_key BLOB");
+            }
+            if (version < 3) {
+                stmt.executeUpdate("ALTER TABLE meta_table ADD COLUMN kdf_version INTEGER NOT NULL DEFAULT 1");
+            }
+            if (version < 4) {
+                // Vaults from before this change were all derived with the old constants.
+                stmt.executeUpdate("ALTER TABLE meta_table ADD COLUMN kdf_algorithm TEXT NOT NULL DEFAULT '" + Vault.KDF_ALGORITHM + "'");
+                stmt.executeUpdate("ALTER TABLE meta_table ADD COLUMN kdf_iterations INTEGER NOT NULL DEFAULT " + Vault.ITERATIONS);
+            }
+            if (version < 5) {
+                // Existing rows keep their combined blob until --migrate splits them.
+                stmt.executeUpdate("ALTER TABLE credential_table ADD COLUMN secret BLOB");
+            }
+            if (version < 6) {
+                stmt.executeUpdate("ALTER TABLE credential_table ADD COLUMN version INTEGER NOT NULL DEFAULT 0");
+            }
+            if (version < 7) {
+                // Changes made before this version are not tracked; the first
+                // backup afterwards is a full one anyway.
+                for (String sql : changeTrackingSQL) {
+                    stmt.executeUpdate(sql);
+                }
+            }
+            if (version < 8) {
+                stmt.executeUpdate("ALTER TABLE credential_table ADD COLUMN modified INTEGER NOT NULL DEFAULT 0");
+            }
+            if (version < 9) {
+                // The last change is the best guess there is for the password.
+                // The triggers count this as a change to every row, so the
+                // next backup is a full one.
+                stmt.executeUpdate("ALTER TABLE credential_table ADD COLUMN password_changed INTEGER NOT NULL DEFAULT 0");
+                stmt.executeUpdate("UPDATE credential_table SET password_changed = modified");
+            }
+            setSchemaVersion(stmt, SCHEMA_VERSION);
+            conn.commit();
+        } catch (Exception e) {
+            conn.rollback();
+            throw new Exception("Failed to upgrade database", e);
+        } finally {
+            conn.setAutoCommit(true);
+        }
+    }
+
+    private void setSchemaVersion(Statement stmt, int version) throws SQLException {
+        stmt.executeUpdate("PRAGMA user_version = " + version);
+    }
+
+    @Override
+    public boolean isReadOnly() {
+        return false;
+    }
+
+    @Override
+    public void setMetadata(DataBase.Metadata metadata) throws Exception {
+        String checkSql = "SELECT COUNT(*) FROM meta_table";
+        try (
+            Statement stmt = conn.createStatement();
+            ResultSet rs = stmt.executeQuery(checkSql)
+        ) {
+            rs.next();
+            boolean isEmpty = rs.getInt(1) == 0;
+
+            String sql = isEmpty
+                ? "INSERT INTO meta_table (master_key, login_salt, encryption_salt, wrapped_key, kdf_version, kdf_algorithm, kdf_iterations) VALUES (?, ?, ?, ?, ?, ?, ?)"
+                : "UPDATE meta_table SET master_key = ?, login_salt = ?, encryption_salt = ?, wrapped_key = ?, kdf_version = ?, kdf_algorithm = ?, kdf_iterations = ?";
+
+            try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
+                pstmt.setBytes(1, metadata.masterKey());
+                pstmt.setBytes(2, metadata.loginSalt());
+                pstmt.setBytes(3, metadata.encryptionSalt());
+                pstmt.setBytes(4, metadata.wrappedKey());
+                pstmt.setInt(5, metadata.kdf().version());
+                pstmt.setString(6, metadata.kdf().algorithm());
+                pstmt.setInt(7, metadata.kdf().iterations());
+                pstmt.executeUpdate();
+            }
+        } catch (Exception e) {
+            throw new Exception("Failed to modify meta table", e);
+        }
+    }
+
+    @Override
+    public DataBase.Metadata getMetadata() throws Exception {
+        String sql = "SELECT master_key, login_salt, encryption_salt, wrapped_key, kdf_version, kdf_algorithm, kdf_iterations FROM meta_table LIMIT 1";
+
+        try (
+            Statement stmt = conn.createStatement();
+            ResultSet rs = stmt.executeQuery(sql)
+        ) {
+            if (rs.next()) {
+                return new DataBase.Metadata(
+                    rs.getBytes("master_key"),
+                    rs.getBytes("login_salt"),
+                    rs.getBytes("encryption_salt"),
+                    rs.getBytes("wrapped_key"),
+                    new Vault.KdfParams(
+                        rs.getInt("kdf_version"),
+                        rs.getString("kdf_algorithm"),
+                        rs.getInt("kdf_iterations")
+                    )
+                );
+            } else {
+                return null;
+            }
+        } catch (Exception e) {
+            throw new Exception("Failed to retrieve meta data", e);
+        }
+    }
+
+    @Override
+    public EncryptedRow get(int id) throws Exception {
+        String sql = "SELECT id, data, secret, lookup, version, modified, password_changed FROM credential_table WHERE id = ?";
+
+        PreparedStatement pstmt = prepare(sql);
+        pstmt.setInt(1, id);
+        try (ResultSet rs = pstmt.executeQuery()) {
+            return rs.next() ? readRow(rs) : null;
+        }
+    }
+
+    @Override
+    public EncryptedRow findByLookup(byte[] lookup) throws Exception {
+        String sql = "SELECT id, data, secret, lookup, version, modified, password_changed FROM credential_table WHERE lookup = ?";
+
+        PreparedStatement pstmt = prepare(sql);
+        pstmt.setBytes(1, lookup);
+        try (ResultSet rs = pstmt.executeQuery()) {
+            return rs.next() ? readRow(rs) : null;
+        }
+    }
+
+    @Override
+    public void insert(EncryptedRow row) throws Exception {
+        String sql = "INSERT INTO credential_table (data, secret, lookup, modified, password_changed) VALUES (?, ?, ?, ?, ?)";
+
+        try {
+            PreparedStatement pstmt = prepare(sql);
+            long now = System.currentTimeMillis();
+            pstmt.setBytes(1, row.data());
+            pstmt.setBytes(2, row.secret());
+            pstmt.setBytes(3, row.lookup());
+            pstmt.setLong(4, now);
+            pstmt.setLong(5, row.passwordChanged() > 0 ? row.passwordChanged() : now);
+            pstmt.executeUpdate();
+        } catch (SQLException e) {
+            if (isUniqueViolation(e)) {
+                throw new Exception("Credential already exists");
+            }
+            throw new Exception("Failed to insert credential", e);
+        }
+    }
+
+    @Override
+    public void insertAll(List<EncryptedRow> rows) throws Exception {
+        String sql = "INSERT INTO credential_table (data, secret, lookup, modified, password_changed) VALUES (?, ?, ?, ?, ?)";
+
+        PreparedStatement pstmt = prepare(sql);
+        long now = System.currentTimeMillis();
+        try {
+            for (EncryptedRow row : rows) {
+                pstmt.setBytes(1, row.data());
+                pstmt.setBytes(2, row.secret());
+                pstmt.setBytes(3, row.lookup());
+                pstmt.setLong(4, now);
+                pstmt.setLong(5, row.passwordChanged() > 0 ? row.passwordChanged() : now);
+                pstmt.addBatch();
+            }
+            executeBatch(pstmt);
+        } catch (SQLException e) {
+            if (isUniqueViolation(e)) {
+                throw new Exception("Credential already exists");
+            }
+            throw e;
+        } finally {
+            pstmt.clearBatch();
+        }
+    }
+
+    @Override
+    public void insertWithIds(List<EncryptedRow> rows) throws Exception {
+        String sql = "INSERT INTO credential_table (id, data, secret, lookup, version, modified, password_changed) VALUES (?, ?, ?, ?, ?, ?, ?)";
+
+        PreparedStatement pstmt = prepare(sql);
+        try {
+            for (EncryptedRow row : rows) {
+                pstmt.setInt(1, row.id());
+                pstmt.setBytes(2, row.data());
+                pstmt.setBytes(3, row.secret());
+                pstmt.setBytes(4, row.lookup());
+                pstmt.setInt(5, row.version());
+                pstmt.setLong(6, row.modified());
+                pstmt.setLong(7, row.passwordChanged());
+                pstmt.addBatch();
+            }
+            executeBatch(pstmt);
+        } finally {
+            pstmt.clearBatch();
+        }
+    }
+
+    @Override
+    public void update(EncryptedRow row) throws Exception {
+        String sql = "UPDATE credential_table SET data = ?, secret = ?, lookup = ?, version = version + 1, modified = ?, "
+            + "password_changed = COALESCE(NULLIF(?, 0), password_changed) WHERE id = ?";
+
+        try {
+            PreparedStatement pstmt = prepare(sql);
+            pstmt.setBytes(1, row.data());
+            pstmt.setBytes(2, row.secret());
+            pstmt.setBytes(3, row.lookup());
+            pstmt.setLong(4, System.currentTimeMillis());
+            pstmt.setLong(5, row.passwordChanged());
+            pstmt.setInt(6, row.id());
+            pstmt.executeUpdate();
+        } catch (SQLException e) {
+            if (isUniqueViolation(e)) {
+                throw new Exception("Credential already exists");
+            }
+            throw e;
+        }
+    }
+
+    @Override
+    public void updateAll(List<EncryptedRow> rows) throws Exception {
+        String sql = "UPDATE credential_table SET data = ?, secret = ?, lookup = CASE WHEN lookup IS NULL THEN NULL ELSE ? END, version = version + 1 WHERE id = ?";
+
+        PreparedStatement pstmt = prepare(sql);
+        try {
+            for (EncryptedRow row : rows) {
+                pstmt.setBytes(1, row.data());
+                pstmt.setBytes(2, row.secret());
+                pstmt.setBytes(3, row.lookup());
+                pstmt.setInt(4, row.id());
+                pstmt.addBatch();
+            }
+            executeBatch(pstmt);
+        } finally {
+            pstmt.clearBatch();
+        }
+    }
+
+    @Override
+    public void setLookup(int id, byte[] lookup) throws Exception {
+        String sql = "UPDATE credential_table SET lookup = ?, version = version + 1 WHERE id = ?";
+
+        PreparedStatement pstmt = prepare(sql);
+        pstmt.setBytes(1, lookup);
+        pstmt.setInt(2, id);
+        pstmt.executeUpdate();
+    }
+
+    @Override
+    public boolean compareAndUpdate(EncryptedRow row) throws Exception {
+        return compareAndUpdateAll(List.of(row)).isEmpty();
+    }
+
+    // One statement per row, so the check and the write are atomic without any
+    // lock beyond SQLite's own write lock.
+    @Override
+    public List<Integer> compareAndUpdateAll(List<EncryptedRow> rows) throws Exception {
+        String sql = "UPDATE credential_table SET data = ?, secret = ?, lookup = ?, version = version + 1, modified = ?, "
+            + "password_changed = COALESCE(NULLIF(?, 0), password_changed) WHERE id = ? AND version = ?";
+
+        PreparedStatement pstmt = prepare(sql);
+        long now = System.currentTimeMillis();
+        try {
+            for (EncryptedRow row : rows) {
+                pstmt.setBytes(1, row.data());
+                pstmt.setBytes(2, row.secret());
+                pstmt.setBytes(3, row.lookup());
+                pstmt.setLong(4, now);
+                pstmt.setLong(5, row.passwordChanged());
+                pstmt.setInt(6, row.id());
+                pstmt.setInt(7, row.version());
+                pstmt.addBatch();
+            }
+
+            int[] counts = executeBatch(pstmt);
+            List<Integer> conflicts = new ArrayList<>();
+            for (int i = 0; i < counts.length; i++) {
+                if (counts[i] == 0) {
+                    conflicts.add(rows.get(i).id());
+                }
+            }
+            return conflicts;
+        } catch (SQLException e) {
+            if (isUniqueViolation(e)) {
+                throw new Exception("Credential already exists");
+            }
+            throw e;
+        } finally {
+            pstmt.clearBatch();
+        }
+    }
+
+    @Override
+    public boolean delete(int id) throws Exception {
+        String sql = "DELETE FROM credential_table WHERE id = ?";
+
+        PreparedStatement pstmt = prepare(sql);
+        pstmt.setInt(1, id);
+        return pstmt.executeUpdate() > 0;
+    }
+
+    @Override
+    public int count() throws Exception {
+        try (ResultSet rs = prepare("SELECT COUNT(*) FROM credential_table").executeQuery()) {
+            rs.next();
+            return rs.getInt(1);
+        }
+    }
+
+    @Override
+    public Set<ByteBuffer> lookups() throws Exception {
+        Set<ByteBuffer> lookups = new HashSet<>();
+        try (Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT lookup FROM credential_table WHERE lookup IS NOT NULL")) {
+            while (rs.next()) {
+                lookups.add(ByteBuffer.wrap(rs.getBytes(1)));
+            }
+        }
+        return lookups;
+    }
+
+    @Override
+    public List<EncryptedRow> unindexed() throws Exception {
+        String sql = "SELECT id, data, secret, lookup, version, modified, password_changed FROM credential_table WHERE lookup IS NULL ORDER BY id";
+        return readRows(sql);
+    }
+
+    @Override
+    public List<EncryptedRow> page(int afterId, int size) throws Exception {
+        String sql = "SELECT id, data, secret, lookup, version, modified, password_changed FROM credential_table WHERE id > ? ORDER BY id LIMIT ?";
+        List<EncryptedRow> rows = new ArrayList<>();
+
+        PreparedStatement pstmt = prepare(sql);
+        pstmt.setInt(1, afterId);
+        pstmt.setInt(2, size);
+        try (ResultSet rs = pstmt.executeQuery()) {
+            while (rs.next()) {
+                rows.add(readRow(rs));
+            }
+        }
+        return rows;
+    }
+
+    // Streams straight from the cursor, one row at a time. Leaving the secret
+    // out of the query keeps SQLite from reading those blobs at all.
+    @Override
+    public int scan(int limit, int offset, boolean withSecrets, RowVisitor visitor) throws Exception {
+        String sql = withSecrets
+            ? "SELECT id, data, secret, lookup, version, modified, password_changed FROM credential_table ORDER BY id LIMIT ? OFFSET ?"
+            : "SELECT id, data, NULL AS secret, lookup, version, modified, password_changed FROM credential_table ORDER BY id LIMIT ? OFFSET ?";
+        int visited = 0;
+
+        PreparedStatement pstmt = prepare(sql);
+        pstmt.setInt(1, limit);
+        pstmt.setInt(2, offset);
+
+        try (ResultSet rs = pstmt.executeQuery()) {
+            while (rs.next()) {
+                visitor.visit(readRow(rs));
+                visited++;
+            }
+        }
+
+        return visited;
+    }
+
+    @Override
+    public ChangePosition changePosition() throws Exception {
+        try (ResultSet rs = prepare("SELECT lineage, count FROM change_counter").executeQuery()) {
+            rs.next();
+            return new ChangePosition(rs.getBytes(1), rs.getLong(2));
+        }
+    }
+
+    @Override
+    public List<Integer> changedSince(long since) throws Exception {
+        PreparedStatement pstmt = prepare("SELECT row_id FROM change_table WHERE seq > ? ORDER BY row_id");
+        pstmt.setLong(1, since);
+
+        List<Integer> ids = new ArrayList<>();
+        try (ResultSet rs = pstmt.executeQuery()) {
+            while (rs.next()) {
+                ids.add(rs.getInt(1));
+            }
+        }
+        return ids;
+    }
+
+    @Override
+    public void beginTransaction() throws Exception {
+        conn.setAutoCommit(false);
+    }
+
+    // A commit that fails rolls back instead, like the log engine's.
+    @Override
+    public void commitTransaction() throws Exception {
+        try {
+            conn.commit();
+        } catch (SQLException e) {
+            conn.rollback();
+            throw e;
+        } finally {
+            conn.setAutoCommit(true);
+        }
+    }
+
+    // Nothing to do when no transaction is open, e.g. after a failed commit.
+    @Override
+    public void rollbackTransaction() throws Exception {
+        if (conn.getAutoCommit()) {
+            return;
+        }
+        try {
+            conn.rollback();
+        } finally {
+            conn.setAutoCommit(true);
+        }
+    }
+
+    @Override
+    public void close() {
+        if (conn != null) {
+            try {
+                for (PreparedStatement pstmt : statements.values()) {
+                    pstmt.close();
+                }
+                statements.clear();
+                conn.close();
+            } catch (Exception e) {
+                throw new RuntimeException("Failed to close DB connection", e);
+            }
+        }
+    }
+
+    private PreparedStatement prepare(String sql) throws SQLException {
+        PreparedStatement pstmt = statements.get(sql);
+        if (pstmt == null) {
+            pstmt = conn.prepareStatement(sql);
+            statements.put(sql, pstmt);
+        }
+        return pstmt;
+    }
+
+    // Outside a transaction every statement of a batch commits on its own, so
+    // one failing halfway would leave the rows before it behind.
+    private int[] executeBatch(PreparedStatement pstmt) throws SQLException {
+        if (!conn.getAutoCommit()) {
+            return pstmt.executeBatch();
+        }
+
+        conn.setAutoCommit(false);
+        try {
+            int[] counts = pstmt.executeBatch();
+            conn.commit();
+            return counts;
+        } catch (SQLException e) {
+            conn.rollback();
+            throw e;
+        } finally {
+            conn.setAutoCommit(true);
+        }
+    }
+
+    private List<EncryptedRow> readRows(String sql) throws Exception {
+        List<EncryptedRow> rows = new ArrayList<>();
+        try (Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery(sql)) {
+            while (rs.next()) {
+                rows.add(readRow(rs));
+            }
+        }
+        return rows;
+    }
+
+    private static EncryptedRow readRow(ResultSet rs) throws SQLException {
+        return new EncryptedRow(rs.getInt("id"), rs.getBytes("data"), rs.getBytes("secret"), rs.getBytes("lookup"), rs.getInt("version"),
+            rs.getLong("modified"), rs.getLong("password_changed"));
+    }
+
+    private static boolean isUniqueViolation(SQLException e) {
+        return e instanceof SQLiteException sqliteException
+            && sqliteException.getResultCode() == SQLiteErrorCode.SQLITE_CONSTRAINT_UNIQUE;
+    }
+}
@@ -0,0 +1,82 @@
+package com.github.tmpstpdwn;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+
+import org.sqlite.SQLiteJDBCLoader;
+import org.sqlite.util.LibraryLoaderUtil;
+
+// The SQLite driver ships its native library inside the jar and, left to
+// itself, copies it out to a fresh temp file, reads it back to compare and
+// deletes it again on every run: a fifth of a second of each invocation. The
+// copy is kept under ~/.hashvault/native instead, one per driver version and
+// platform, and the driver pointed at it with org.sqlite.lib.path. The driver
+// falls back to its own extraction when that copy fails to load, so anything
+// going wrong here only costs the time it saved.
+class SqliteNativeLibrary {
+
+    private static final Path cacheDir = Paths.get(System.getProperty("user.home"), ".hashvault", "native");
+    private static final String RESOURCE_ROOT = "/org/sqlite/native/";
+
+    private static boolean prepared = false;
+
+    // Must run before the driver loads its library, which is the first
+    // connection in this JVM.
+    public static synchronized void prepare() {
+        if (prepared) {
+            return;
+        }
+        prepared = true;
+
+        // Someone already chose a library for the driver.
+        if (System.getProperty("org.sqlite.lib.path") != null) {
+            return;
+        }
+
+        String resourceDir = LibraryLoaderUtil.getNativeLibResourcePath();
+        String name = LibraryLoaderUtil.getNativeLibName();
+        if (!resourceDir.startsWith(RESOURCE_ROOT)) {
+            return;
+        }
+
+        Path dir = cacheDir.resolve(SQLiteJDBCLoader.getVersion()).resolve(resourceDir.substring(RESOURCE_ROOT.length()));
+        try {
+            if (!Files.exists(dir.resolve(name)) && !extract(resourceDir + "/" + name, dir, name)) {
+                return;
+            }
+        } catch (Exception e) {
+            return;
+        }
+
+        System.setProperty("org.sqlite.lib.path", dir.toString());
+        System.setProperty("org.sqlite.lib.name", name);
+    }
+
+    // Written to a temp file next to the library and moved into place, so a
+    // crash or a second invocation never sees half a library.
+    private static boolean extract(String resource, Path dir, String name) throws Exception {
+        try (InputStream in = SQLiteJDBCLoader.class.getResourceAsStream(resource)) {
+            if (in == null) {
+                return false;
+            }
+
+            Files.createDirectories(dir);
+            Files.setPosixFilePermissions(cacheDir.getParent(), PosixFilePermissions.fromString("rwx------"));
+            Path partial = Files.createTempFile(dir, name, ".partial");
+            try {
+                try (OutputStream out = Files.newOutputStream(partial)) {
+                    in.transferTo(out);
+                }
+                Files.move(partial, dir.resolve(name), StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(partial);
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package com.github.tmpstpdwn;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+import javax.crypto.SecretKey;
+
+// Training run for the AppCDS archive built by the cds profile: runs the
+// everyday actions the way Main does, against throwaway vaults of both
+// engines, so -XX:ArchiveClassesAtExit records every class they load. Main
+// asks for the password on the console; this unlocks with a fixed one and a
+// token work factor instead, which loads the same classes.
+class StartupTraining {
+
+    private static final String MASTER = "startup-training";
+    private static final Vault.KdfParams KDF = new Vault.KdfParams(Vault.KDF_VERSION, Vault.KDF_ALGORITHM, 1_000);
+
+    private static final List<List<String>> COMMANDS = List.of(
+        List.of("--add", "example.com", "alice", "correct horse"),
+        List.of("--add", "example.org", "bob", "battery staple"),
+        List.of("--getpass", "example.com", "alice"),
+        List.of("--update", "2", "_", "_", "correct horse"),
+        List.of("--list"),
+        List.of("--list", "--format", "tsv", "--mask"),
+        List.of("--list", "--format", "jsonl", "--limit", "1"),
+        List.of("--search", "exam"),
+        List.of("--search", "exam", "--format", "jsonl"),
+        List.of("--audit"),
+        List.of("--audit", "--format", "json"),
+        List.of("--delete", "2")
+    );
+
+    public static void main(String[] args) throws Exception {
+        PrintStream out = new PrintStream(OutputStream.nullOutputStream());
+        Path dir = Files.createTempDirectory("hashvault-training");
+        try {
+            for (CredentialStore.Engine engine : CredentialStore.Engine.values()) {
+                Path vault = dir.resolve("vault-" + engine.name().toLowerCase());
+                for (List<String> command : COMMANDS) {
+                    List<String> line = new ArrayList<>(command);
+                    line.addAll(List.of("--db", vault.toString(), "--engine", engine.name().toLowerCase()));
+                    run(line.toArray(String[]::new), out);
+                }
+            }
+        } finally {
+            try (Stream<Path> paths = Files.walk(dir)) {
+                for (Path path : paths.sorted(Comparator.reverseOrder()).toList()) {
+                    Files.delete(path);
+                }
+            }
+        }
+    }
+
+    private static void run(String[] args, PrintStream out) throws Exception {
+        ArgumentParser argParser = new ArgumentParser();
+        argParser.parseArgs(args);
+        ArgumentParser.ParsedArg parsedArg = argParser.getParsedArg();
+        Agent.forward(parsedArg, args, out);
+
+        DataBase db = Main.openDataBase(parsedArg);
+        try {
+            db.connect();
+            if (!db.metaTableExists()) {
+                db.createTables();
+                db.setMetadata(Authenticator.createMetadata(MASTER, Vault.generateKey(), KDF));
+            }
+            db.upgradeSchema();
+            SecretKey key = Authenticator.unlock(MASTER, db.getMetadata());
+            db.indexCredentials(key);
+            ActionHandler.handleActions(parsedArg, db, key, out);
+        } finally {
+            db.close();
+        }
+    }
+}
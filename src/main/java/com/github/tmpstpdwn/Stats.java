@@ -0,0 +1,255 @@
+package com.github.tmpstpdwn;
+
+import java.io.PrintStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+// Where the time of one invocation goes. Phases are timed wall-clock and also
+// emitted as JDK Flight Recorder events, so a recording started with
+// -XX:StartFlightRecording shows them next to GC and I/O. Counters cover rows
+// read from SQLite, rows and bytes decrypted and SQL statements executed; they
+// are printed with --stats and sent as one summary event at exit.
+//
+// Loading the first event class initialises JFR, which costs hundreds of
+// milliseconds, so events are only created once a recording has started JFR
+// anyway. Everything that touches them lives in the Jfr class below.
+class Stats {
+
+    @Name("com.github.tmpstpdwn.Phase")
+    @Label("Phase")
+    @Category("HashVault")
+    @Description("One step of a HashVault invocation")
+    static class PhaseEvent extends Event {
+        @Label("Phase")
+        String phase;
+    }
+
+    @Name("com.github.tmpstpdwn.Kdf")
+    @Label("Key Derivation")
+    @Category("HashVault")
+    static class KdfEvent extends Event {
+        @Label("Algorithm")
+        String algorithm;
+
+        @Label("Iterations")
+        int iterations;
+    }
+
+    @Name("com.github.tmpstpdwn.Summary")
+    @Label("Invocation Summary")
+    @Category("HashVault")
+    static class SummaryEvent extends Event {
+        @Label("Action")
+        String action;
+
+        @Label("Rows Scanned")
+        long rowsScanned;
+
+        @Label("Rows Decrypted")
+        long rowsDecrypted;
+
+        @Label("Bytes Decrypted")
+        @DataAmount
+        long bytesDecrypted;
+
+        @Label("SQL Statements")
+        long sqlStatements;
+    }
+
+    private static class Jfr {
+        static Object phase() {
+            PhaseEvent event = new PhaseEvent();
+            event.begin();
+            return event;
+        }
+
+        static Object kdf(String algorithm, int iterations) {
+            KdfEvent event = new KdfEvent();
+            event.algorithm = algorithm;
+            event.iterations = iterations;
+            event.begin();
+            return event;
+        }
+
+        static void commit(Object event, String name) {
+            if (event instanceof PhaseEvent phase) {
+                phase.phase = name;
+            }
+            ((Event) event).commit();
+        }
+
+        static void summary(String action) {
+            SummaryEvent event = new SummaryEvent();
+            event.action = action;
+            event.rowsScanned = rowsScanned.sum();
+            event.rowsDecrypted = rowsDecrypted.sum();
+            event.bytesDecrypted = bytesDecrypted.sum();
+            event.sqlStatements = sqlStatements.sum();
+            event.commit();
+        }
+    }
+
+    // Closing a phase records it; phases with the same name add up. Spans
+    // without a name only go to JFR. The resource is never read inside the
+    // try block, so methods opening one carry @SuppressWarnings("try").
+    public static class Phase implements AutoCloseable {
+        private final String name;
+        private final long start = System.nanoTime();
+        private final Object event;
+
+        private Phase(String name, Object event) {
+            this.name = name;
+            this.event = event;
+        }
+
+        @Override
+        public void close() {
+            long elapsed = System.nanoTime() - start;
+            if (event != null) {
+                Jfr.commit(event, name);
+            }
+
+            if (name != null) {
+                synchronized (phases) {
+                    phases.merge(name, elapsed, Long::sum);
+                }
+            }
+        }
+    }
+
+    private static final Map<String, Long> phases = new LinkedHashMap<>();
+
+    private static final LongAdder rowsScanned = new LongAdder();
+    private static final LongAdder rowsDecrypted = new LongAdder();
+    private static final LongAdder bytesDecrypted = new LongAdder();
+    private static final LongAdder sqlStatements = new LongAdder();
+
+    private static volatile boolean enabled = false;
+
+    public static void enable() {
+        enabled = true;
+    }
+
+    // Whether anyone looks at the counters; the JDBC wrapper is only worth its
+    // overhead then.
+    public static boolean active() {
+        return enabled || FlightRecorder.isInitialized();
+    }
+
+    public static Phase phase(String name) {
+        return new Phase(name, FlightRecorder.isInitialized() ? Jfr.phase() : null);
+    }
+
+    // One PBKDF2 run, reported to JFR only; the caller times the whole unlock.
+    public static Phase kdf(String algorithm, int iterations) {
+        return new Phase(null, FlightRecorder.isInitialized() ? Jfr.kdf(algorithm, iterations) : null);
+    }
+
+    // Time between the JVM starting and main(), recorded as the first phase.
+    public static void startup() {
+        ProcessHandle.current().info().startInstant().ifPresent(started -> {
+            synchronized (phases) {
+                phases.put("startup", Duration.between(started, Instant.now()).toNanos());
+            }
+        });
+    }
+
+    public static void rowDecrypted() {
+        rowsDecrypted.increment();
+    }
+
+    public static void bytesDecrypted(int bytes) {
+        bytesDecrypted.add(bytes);
+    }
+
+    // Sends the summary event and, with --stats, prints the breakdown.
+    public static void report(String action, PrintStream out) {
+        if (FlightRecorder.isInitialized()) {
+            Jfr.summary(action);
+        }
+
+        if (!enabled) {
+            return;
+        }
+
+        long total = 0;
+        out.println("Phase              ms");
+        synchronized (phases) {
+            for (Map.Entry<String, Long> phase : phases.entrySet()) {
+                out.printf("%-12s %10.2f%n", phase.getKey(), phase.getValue() / 1e6);
+                total += phase.getValue();
+            }
+        }
+        out.printf("%-12s %10.2f%n", "total", total / 1e6);
+        out.println();
+        out.println("Rows scanned:     " + rowsScanned.sum());
+        out.println("Rows decrypted:   " + rowsDecrypted.sum());
+        out.println("Bytes decrypted:  " + bytesDecrypted.sum());
+        out.println("SQL statements:   " + sqlStatements.sum());
+    }
+
+    // Wraps the connection so that every statement executed and every row
+    // fetched through it is counted.
+    public static Connection instrument(Connection conn) {
+        return wrap(conn, Connection.class);
+    }
+
+    private static <T> T wrap(T target, Class<T> type) {
+        InvocationHandler handler = (proxy, method, args) -> {
+            Object result;
+            try {
+                result = method.invoke(target, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+            count(method, result);
+            return wrapResult(result);
+        };
+        return type.cast(Proxy.newProxyInstance(Stats.class.getClassLoader(), new Class<?>[] {type}, handler));
+    }
+
+    private static void count(Method method, Object result) {
+        switch (method.getName()) {
+            case "execute", "executeQuery", "executeUpdate", "executeLargeUpdate" -> sqlStatements.increment();
+            case "executeBatch" -> sqlStatements.add(((int[]) result).length);
+            case "next" -> {
+                if (Boolean.TRUE.equals(result)) {
+                    rowsScanned.increment();
+                }
+            }
+            default -> {}
+        }
+    }
+
+    private static Object wrapResult(Object result) {
+        if (result instanceof PreparedStatement statement) {
+            return wrap(statement, PreparedStatement.class);
+        }
+        if (result instanceof Statement statement) {
+            return wrap(statement, Statement.class);
+        }
+        if (result instanceof ResultSet rs) {
+            return wrap(rs, ResultSet.class);
+        }
+        return result;
+    }
+}
@@ -2,7 +2,11 @@ package com.github.tmpstpdwn;
 
 import java.security.MessageDigest;
 import java.security.SecureRandom;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
 import javax.crypto.SecretKeyFactory;
 import javax.crypto.spec.PBEKeySpec;
@@ -10,13 +14,15 @@ import javax.crypto.SecretKey;
 import javax.crypto.spec.SecretKeySpec;
 
 import javax.crypto.Cipher;
+import javax.crypto.Mac;
 import javax.crypto.spec.GCMParameterSpec;
 
 class Vault {
 
     public enum BytesType {
         SALT_BYTES(16),
-        IV_BYTES(12);
+        IV_BYTES(12),
+        KEY_BYTES(32);
 
         private final int value;
 
@@ -29,12 +35,59 @@ class Vault {
         }
     }
 
+    // Key derivation schemes, stored per vault in meta_table.kdf_version.
+    //  1: verifier = PBKDF2(password, loginSalt), wrapping key = PBKDF2(password, encryptionSalt)
+    //  2: one PBKDF2(password, loginSalt), split into verifier and wrapping key with
+    //     HKDF-SHA256 (salt = encryptionSalt), so unlocking costs a single PBKDF2 run
+    public static final int KDF_LEGACY = 1;
+    public static final int KDF_HKDF = 2;
+    public static final int KDF_VERSION = KDF_HKDF;
+
+    // Default work factor; vaults store their own in meta_table and may be
+    // calibrated to the machine they run on.
+    public static final String KDF_ALGORITHM = "PBKDF2WithHmacSHA256";
+    public static final int ITERATIONS = 696_969;
+
+    public static record KdfParams(int version, String algorithm, int iterations) {}
+    public static record DerivedKeys(byte[] verifier, SecretKey wrappingKey) {}
+
+    public static final KdfParams DEFAULT_KDF = new KdfParams(KDF_VERSION, KDF_ALGORITHM, ITERATIONS);
+
+    // Calibration never goes below this, however slow the machine is.
+    private static final int MIN_ITERATIONS = 100_000;
+    private static final int CALIBRATION_ITERATIONS = 50_000;
+
+    private static final String VERIFIER_LABEL = "hashvault-verifier";
+    private static final String WRAPPING_KEY_LABEL = "hashvault-wrapping-key";
+
     private static final int GCM_TAG_LENGTH = 128;
-    private static final int ITERATIONS = 696_969;
     private static final int KEYLENGTH = 256;
+    private static final String INDEX_KEY_LABEL = "hashvault-blind-index";
+    private static final String BACKUP_KEY_LABEL = "hashvault-backup";
+    private static final String FINGERPRINT_LABEL = "hashvault-key-fingerprint";
+    private static final String AUDIT_KEY_LABEL = "hashvault-audit";
+    private static final String SNAPSHOT_KEY_LABEL = "hashvault-snapshot";
 
     private static final SecureRandom secureRandom = new SecureRandom();
 
+    // Cipher and Mac lookups go through the provider framework on every
+    // getInstance call; re-initialising one instance per thread is much cheaper.
+    private static final ThreadLocal<Cipher> CIPHER = ThreadLocal.withInitial(() -> {
+        try {
+            return Cipher.getInstance("AES/GCM/NoPadding");
+        } catch (Exception e) {
+            throw new IllegalStateException("AES/GCM unavailable", e);
+        }
+    });
+
+    private static final ThreadLocal<Mac> MAC = ThreadLocal.withInitial(() -> {
+        try {
+            return Mac.getInstance("HmacSHA256");
+        } catch (Exception e) {
+            throw new IllegalStateException("HmacSHA256 unavailable", e);
+        }
+    });
+
     public static byte[] generateBytes(BytesType bytesType) {
         byte[] bytes = new byte[bytesType.getValue()];
         secureRandom.nextBytes(bytes);
@@ -42,11 +95,30 @@ class Vault {
     }
 
     public static byte[] getKeyBytes(String password, byte[] salt) throws Exception {
+        return getKeyBytes(password, salt, KDF_ALGORITHM, ITERATIONS);
+    }
+
+    public static byte[] getKeyBytes(String password, byte[] salt, String algorithm, int iterations) throws Exception {
+        char[] chars = password.toCharArray();
         try {
-            PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, ITERATIONS, KEYLENGTH);
-            SecretKeyFactory factory = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256");
-            byte[] hash = factory.generateSecret(spec).getEncoded();
-            return hash;
+            return getKeyBytes(chars, salt, algorithm, iterations);
+        } finally {
+            Arrays.fill(chars, '\0');
+        }
+    }
+
+    // PBEKeySpec works on a copy of password, which is cleared here; the
+    // caller's array is left alone.
+    @SuppressWarnings("try")
+    public static byte[] getKeyBytes(char[] password, byte[] salt, String algorithm, int iterations) throws Exception {
+        try (Stats.Phase phase = Stats.kdf(algorithm, iterations)) {
+            PBEKeySpec spec = new PBEKeySpec(password, salt, iterations, KEYLENGTH);
+            try {
+                SecretKeyFactory factory = SecretKeyFactory.getInstance(algorithm);
+                return factory.generateSecret(spec).getEncoded();
+            } finally {
+                spec.clearPassword();
+            }
         } catch (Exception e) {
             throw new Exception("Failed to generate key");
         }
@@ -57,19 +129,202 @@ class Vault {
         return new SecretKeySpec(keyBytes, "AES");
     }
 
+    public static DerivedKeys deriveKeys(String password, byte[] loginSalt, byte[] encryptionSalt, KdfParams kdf) throws Exception {
+        char[] chars = password.toCharArray();
+        try {
+            return deriveKeys(chars, loginSalt, encryptionSalt, kdf);
+        } finally {
+            Arrays.fill(chars, '\0');
+        }
+    }
+
+    public static DerivedKeys deriveKeys(char[] password, byte[] loginSalt, byte[] encryptionSalt, KdfParams kdf) throws Exception {
+        return switch (kdf.version()) {
+            case KDF_LEGACY -> deriveLegacyKeys(password, loginSalt, encryptionSalt, kdf);
+            case KDF_HKDF -> deriveHkdfKeys(password, loginSalt, encryptionSalt, kdf);
+            default -> throw new Exception("Unsupported key derivation scheme " + kdf.version());
+        };
+    }
+
+    // The two derivations are independent, so they run side by side.
+    private static DerivedKeys deriveLegacyKeys(char[] password, byte[] loginSalt, byte[] encryptionSalt, KdfParams kdf) throws Exception {
+        CompletableFuture<byte[]> verifier = CompletableFuture.supplyAsync(() -> {
+            try {
+                return getKeyBytes(password, loginSalt, kdf.algorithm(), kdf.iterations());
+            } catch (Exception e) {
+                throw new CompletionException(e);
+            }
+        });
+        byte[] keyBytes = getKeyBytes(password, encryptionSalt, kdf.algorithm(), kdf.iterations());
+
+        try {
+            return new DerivedKeys(verifier.join(), new SecretKeySpec(keyBytes, "AES"));
+        } catch (CompletionException e) {
+            throw (Exception) e.getCause();
+        }
+    }
+
+    private static DerivedKeys deriveHkdfKeys(char[] password, byte[] loginSalt, byte[] encryptionSalt, KdfParams kdf) throws Exception {
+        byte[] masterBytes = getKeyBytes(password, loginSalt, kdf.algorithm(), kdf.iterations());
+        byte[] prk = hmac(new SecretKeySpec(encryptionSalt, "HmacSHA256"), masterBytes);
+
+        return new DerivedKeys(
+            hkdfExpand(prk, VERIFIER_LABEL),
+            new SecretKeySpec(hkdfExpand(prk, WRAPPING_KEY_LABEL), "AES")
+        );
+    }
+
+    // Picks the iteration count that makes one unlock (a single PBKDF2 run under
+    // the current scheme) take about targetMillis on this machine.
+    public static KdfParams calibrate(long targetMillis) throws Exception {
+        byte[] salt = generateBytes(BytesType.SALT_BYTES);
+
+        // The first runs include JIT compilation; keep the fastest of a few.
+        long fastest = Long.MAX_VALUE;
+        for (int run = 0; run < 4; run++) {
+            long start = System.nanoTime();
+            getKeyBytes("calibration", salt, KDF_ALGORITHM, CALIBRATION_ITERATIONS);
+            fastest = Math.min(fastest, System.nanoTime() - start);
+        }
+
+        long iterations = CALIBRATION_ITERATIONS * (targetMillis * 1_000_000L) / Math.max(fastest, 1);
+        iterations = Math.max(MIN_ITERATIONS, Math.min(Integer.MAX_VALUE, iterations));
+
+        return new KdfParams(KDF_VERSION, KDF_ALGORITHM, (int) iterations);
+    }
+
+    // HKDF-Expand (RFC 5869) for a single 32-byte output block.
+    private static byte[] hkdfExpand(byte[] prk, String info) throws Exception {
+        byte[] infoBytes = info.getBytes(StandardCharsets.UTF_8);
+        byte[] message = Arrays.copyOf(infoBytes, infoBytes.length + 1);
+        message[infoBytes.length] = 1;
+        return hmac(new SecretKeySpec(prk, "HmacSHA256"), message);
+    }
+
+    // Random key that encrypts the credentials. It never changes with the master
+    // password; only its wrapped form in meta_table does.
+    public static SecretKey generateKey() {
+        return new SecretKeySpec(generateBytes(BytesType.KEY_BYTES), "AES");
+    }
+
+    public static byte[] wrapKey(SecretKey dataKey, SecretKey wrappingKey) throws Exception {
+        return encryptBytes(dataKey.getEncoded(), wrappingKey);
+    }
+
+    public static SecretKey unwrapKey(byte[] wrappedKey, SecretKey wrappingKey) throws Exception {
+        try {
+            return new SecretKeySpec(decryptBytes(wrappedKey, wrappingKey), "AES");
+        } catch (Exception e) {
+            throw new Exception("Failed to unwrap the data key");
+        }
+    }
+
+    public static SecretKey getIndexKey(SecretKey key) throws Exception {
+        byte[] keyBytes = hmac(key, INDEX_KEY_LABEL.getBytes(StandardCharsets.UTF_8));
+        return new SecretKeySpec(keyBytes, "HmacSHA256");
+    }
+
+    // Encrypts backup segments. Derived from the data key, so a backup is
+    // opened with the master password of the vault it was taken from.
+    public static SecretKey getBackupKey(SecretKey key) throws Exception {
+        return new SecretKeySpec(hmac(key, BACKUP_KEY_LABEL.getBytes(StandardCharsets.UTF_8)), "AES");
+    }
+
+    // Encrypts the VaultSnapshot file, which holds every password of the vault
+    // decrypted; a new data key leaves the old file unreadable.
+    public static SecretKey getSnapshotKey(SecretKey key) throws Exception {
+        return new SecretKeySpec(hmac(key, SNAPSHOT_KEY_LABEL.getBytes(StandardCharsets.UTF_8)), "AES");
+    }
+
+    // Keys the password hashes --audit compares, so they are worthless once the
+    // audit is over and never match anything outside the vault.
+    public static SecretKey getAuditKey(SecretKey key) throws Exception {
+        return new SecretKeySpec(hmac(key, AUDIT_KEY_LABEL.getBytes(StandardCharsets.UTF_8)), "HmacSHA256");
+    }
+
+    public static byte[] passwordTag(String password, SecretKey auditKey) throws Exception {
+        return hmac(auditKey, password.getBytes(StandardCharsets.UTF_8));
+    }
+
+    // Tells whether two keys are the same without revealing either.
+    public static byte[] keyFingerprint(SecretKey key) throws Exception {
+        return Arrays.copyOf(hmac(key, FINGERPRINT_LABEL.getBytes(StandardCharsets.UTF_8)), 16);
+    }
+
+    // Keyed hash of (target, username) used to look rows up without decrypting them.
+    // Both fields are length-prefixed so that ("ab", "c") and ("a", "bc") never collide.
+    public static byte[] blindIndex(String target, String username, SecretKey indexKey) throws Exception {
+        byte[] targetBytes = target.getBytes(StandardCharsets.UTF_8);
+        byte[] usernameBytes = username.getBytes(StandardCharsets.UTF_8);
+
+        ByteBuffer buffer = ByteBuffer.allocate(8 + targetBytes.length + usernameBytes.length);
+        buffer.putInt(targetBytes.length).put(targetBytes);
+        buffer.putInt(usernameBytes.length).put(usernameBytes);
+
+        return hmac(indexKey, buffer.array());
+    }
+
+    private static byte[] hmac(SecretKey key, byte[] message) throws Exception {
+        try {
+            Mac mac = MAC.get();
+            mac.init(new SecretKeySpec(key.getEncoded(), "HmacSHA256"));
+            return mac.doFinal(message);
+        } catch (Exception e) {
+            throw new Exception("Failed to compute HMAC");
+        }
+    }
+
     public static byte[] encrypt(String plaintext, SecretKey key) throws Exception {
+        byte[] plaintextBytes = plaintext.getBytes(StandardCharsets.UTF_8);
+        return encryptBytes(plaintextBytes, 0, plaintextBytes.length, key);
+    }
+
+    public static String decrypt(byte[] combined, SecretKey key) throws Exception {
+        return new String(decryptBytes(combined, 0, combined.length, key), StandardCharsets.UTF_8);
+    }
+
+    public static byte[] encryptBytes(byte[] plaintext, SecretKey key) throws Exception {
+        return encryptBytes(plaintext, 0, plaintext.length, key);
+    }
+
+    public static byte[] decryptBytes(byte[] combined, SecretKey key) throws Exception {
+        return decryptBytes(combined, 0, combined.length, key);
+    }
+
+    // aad is authenticated but not encrypted; decryption fails unless the same
+    // bytes are passed again. It ties a ciphertext to the context it belongs in.
+    public static byte[] encryptBytes(byte[] plaintext, byte[] aad, SecretKey key) throws Exception {
+        return encryptBytes(plaintext, 0, plaintext.length, aad, key);
+    }
+
+    public static byte[] decryptBytes(byte[] combined, byte[] aad, SecretKey key) throws Exception {
+        return decryptBytes(combined, 0, combined.length, aad, key);
+    }
+
+    public static byte[] encryptBytes(byte[] plaintext, int offset, int length, SecretKey key) throws Exception {
+        return encryptBytes(plaintext, offset, length, null, key);
+    }
+
+    public static byte[] decryptBytes(byte[] combined, int offset, int length, SecretKey key) throws Exception {
+        return decryptBytes(combined, offset, length, null, key);
+    }
+
+    // Output layout is IV || ciphertext || tag. The cipher writes straight into
+    // the result array behind the IV, so nothing is copied afterwards.
+    public static byte[] encryptBytes(byte[] plaintext, int offset, int length, byte[] aad, SecretKey key) throws Exception {
         try {
+            int ivLength = BytesType.IV_BYTES.getValue();
             byte[] iv = generateBytes(BytesType.IV_BYTES);
 
-            GCMParameterSpec spec = new GCMParameterSpec(GCM_TAG_LENGTH, iv);
-            Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
-            cipher.init(Cipher.ENCRYPT_MODE, key, spec);
+            Cipher cipher = CIPHER.get();
+            cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(GCM_TAG_LENGTH, iv));
+            if (aad != null) {
+                cipher.updateAAD(aad);
+            }
 
-            byte[] ciphertext = cipher.doFinal(plaintext.getBytes(StandardCharsets.UTF_8));
-
-            byte[] result = new byte[iv.length + ciphertext.length];
-            System.arraycopy(iv, 0, result, 0, iv.length);
-            System.arraycopy(ciphertext, 0, result, iv.length, ciphertext.length);
+            byte[] result = new byte[ivLength + cipher.getOutputSize(length)];
+            System.arraycopy(iv, 0, result, 0, ivLength);
+            cipher.doFinal(plaintext, offset, length, result, ivLength);
 
             return result;
         } catch (Exception e) {
@@ -77,19 +332,21 @@ class Vault {
         }
     }
 
-    public static String decrypt(byte[] combined, SecretKey key) throws Exception {
+    // Decrypts the IV || ciphertext || tag blob found at combined[offset, offset + length)
+    // in place, reading the IV from the same array instead of copying it out.
+    public static byte[] decryptBytes(byte[] combined, int offset, int length, byte[] aad, SecretKey key) throws Exception {
         try {
-            byte[] iv = new byte[BytesType.IV_BYTES.getValue()];
-            byte[] ciphertext = new byte[combined.length - iv.length];
+            int ivLength = BytesType.IV_BYTES.getValue();
 
-            System.arraycopy(combined, 0, iv, 0, iv.length);
-            System.arraycopy(combined, iv.length, ciphertext, 0, ciphertext.length);
+            Cipher cipher = CIPHER.get();
+            cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(GCM_TAG_LENGTH, combined, offset, ivLength));
+            if (aad != null) {
+                cipher.updateAAD(aad);
+            }
 
-            GCMParameterSpec spec = new GCMParameterSpec(GCM_TAG_LENGTH, iv);
-            Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
-            cipher.init(Cipher.DECRYPT_MODE, key, spec);
-            byte[] decrypted = cipher.doFinal(ciphertext);
-            return new String(decrypted, StandardCharsets.UTF_8);
+            byte[] plaintext = cipher.doFinal(combined, offset + ivLength, length - ivLength);
+            Stats.bytesDecrypted(plaintext.length);
+            return plaintext;
         } catch (Exception e) {
             throw new Exception("Decryption failed: Invalid ciphertext or key");
         }
@@ -0,0 +1,229 @@
+package com.github.tmpstpdwn;
+
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import javax.crypto.SecretKey;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import com.github.freva.asciitable.AsciiTable;
+import com.github.freva.asciitable.Column;
+import com.github.freva.asciitable.HorizontalAlign;
+
+// Health report over the whole vault, from a single decrypting pass. Each
+// password is reduced to an HMAC under a key derived for the audit and an
+// entropy estimate as soon as it is decrypted, so no password outlives its
+// row. Equal HMACs mean equal passwords; grouping them in a hash map finds
+// reuse in one pass however large the vault is.
+class VaultAudit {
+
+    // Below this a password is flagged as weak: about what an offline attacker
+    // with a few GPUs gets through in a day against a fast hash.
+    public static final int WEAK_BITS = 50;
+    public static final int DEFAULT_STALE_DAYS = 365;
+
+    public enum Issue {
+        REUSED,
+        WEAK,
+        STALE;
+
+        String label() {
+            return name().toLowerCase();
+        }
+    }
+
+    // reuseGroup numbers the passwords shared by more than one credential,
+    // from 1; it is 0 for passwords used once. passwordChanged is 0 when
+    // unknown.
+    public record Finding(int id, String target, String username, Set<Issue> issues, int entropyBits, long passwordChanged,
+                          int reuseGroup) {}
+
+    public record Report(int checked, int unknownAge, List<Finding> findings, List<List<Integer>> reuseGroups) {
+
+        public long count(Issue issue) {
+            return findings.stream().filter(finding -> finding.issues().contains(issue)).count();
+        }
+    }
+
+    private record Entry(int id, String target, String username, ByteBuffer tag, int entropyBits, long passwordChanged) {}
+
+    private static final int POOL_LOWER = 26;
+    private static final int POOL_UPPER = 26;
+    private static final int POOL_DIGITS = 10;
+    private static final int POOL_SYMBOLS = 33;
+    // Anything outside printable ASCII; a rough guess at how many of those
+    // a person actually types.
+    private static final int POOL_OTHER = 100;
+
+    public static Report run(DataBase db, SecretKey key, int staleDays) throws Exception {
+        SecretKey auditKey = Vault.getAuditKey(key);
+        List<Entry> entries = db.mapCredentials(key, (cred, passwordChanged) -> new Entry(cred.id(), cred.target(), cred.username(),
+            ByteBuffer.wrap(Vault.passwordTag(cred.password(), auditKey)), entropyBits(cred.password()), passwordChanged));
+
+        Map<ByteBuffer, List<Integer>> byPassword = new HashMap<>();
+        for (Entry entry : entries) {
+            byPassword.computeIfAbsent(entry.tag(), tag -> new ArrayList<>(1)).add(entry.id());
+        }
+
+        // Groups are numbered in the order of their lowest id, so the same
+        // vault always gives the same report.
+        List<List<Integer>> reuseGroups = new ArrayList<>();
+        Map<ByteBuffer, Integer> groupNumbers = new HashMap<>();
+        for (Entry entry : entries) {
+            List<Integer> ids = byPassword.get(entry.tag());
+            if (ids.size() > 1 && !groupNumbers.containsKey(entry.tag())) {
+                reuseGroups.add(ids);
+                groupNumbers.put(entry.tag(), reuseGroups.size());
+            }
+        }
+
+        long staleBefore = System.currentTimeMillis() - TimeUnit.DAYS.toMillis(staleDays);
+        List<Finding> findings = new ArrayList<>();
+        int unknownAge = 0;
+        for (Entry entry : entries) {
+            Set<Issue> issues = EnumSet.noneOf(Issue.class);
+            int group = groupNumbers.getOrDefault(entry.tag(), 0);
+            if (group != 0) {
+                issues.add(Issue.REUSED);
+            }
+            if (entry.entropyBits() < WEAK_BITS) {
+                issues.add(Issue.WEAK);
+            }
+            // Only a new password makes a credential fresh again; renames do
+            // not. Rows written before the vault kept change times are not
+            // called stale; the summary counts them instead.
+            if (entry.passwordChanged() == 0) {
+                unknownAge++;
+            } else if (entry.passwordChanged() < staleBefore) {
+                issues.add(Issue.STALE);
+            }
+
+            if (!issues.isEmpty()) {
+                findings.add(new Finding(entry.id(), entry.target(), entry.username(), issues, entry.entropyBits(),
+                    entry.passwordChanged(), group));
+            }
+        }
+
+        return new Report(entries.size(), unknownAge, findings, reuseGroups);
+    }
+
+    // Length times the bits of the smallest character pool the password draws
+    // from, with a character that repeats or continues a run (aa, ab, ba)
+    // counting a single bit. Dictionary words are not recognised, so this is
+    // an upper bound for passwords made of them.
+    static int entropyBits(String password) {
+        int pool = 0;
+        boolean lower = false, upper = false, digits = false, symbols = false, other = false;
+        for (int i = 0; i < password.length(); ) {
+            int c = password.codePointAt(i);
+            i += Character.charCount(c);
+            if (c >= 'a' && c <= 'z') {
+                lower = true;
+            } else if (c >= 'A' && c <= 'Z') {
+                upper = true;
+            } else if (c >= '0' && c <= '9') {
+                digits = true;
+            } else if (c >= 0x20 && c < 0x7f) {
+                symbols = true;
+            } else {
+                other = true;
+            }
+        }
+        pool += lower ? POOL_LOWER : 0;
+        pool += upper ? POOL_UPPER : 0;
+        pool += digits ? POOL_DIGITS : 0;
+        pool += symbols ? POOL_SYMBOLS : 0;
+        pool += other ? POOL_OTHER : 0;
+        if (pool == 0) {
+            return 0;
+        }
+
+        double perChar = Math.log(pool) / Math.log(2);
+        double bits = 0;
+        int previous = -1;
+        for (int i = 0; i < password.length(); ) {
+            int c = password.codePointAt(i);
+            i += Character.charCount(c);
+            bits += previous >= 0 && Math.abs(c - previous) <= 1 ? 1 : perChar;
+            previous = c;
+        }
+        return (int) bits;
+    }
+
+    public static void printTable(Report report, int staleDays, PrintStream out) {
+        if (!report.findings().isEmpty()) {
+            out.println(AsciiTable.getTable(report.findings(), List.of(
+                new Column().header("ID").headerAlign(HorizontalAlign.CENTER).dataAlign(HorizontalAlign.CENTER).with(finding -> String.valueOf(finding.id())),
+                new Column().header("Target").headerAlign(HorizontalAlign.CENTER).dataAlign(HorizontalAlign.CENTER).with(Finding::target),
+                new Column().header("Username").headerAlign(HorizontalAlign.CENTER).dataAlign(HorizontalAlign.CENTER).with(Finding::username),
+                new Column().header("Issues").headerAlign(HorizontalAlign.CENTER).dataAlign(HorizontalAlign.CENTER).with(finding -> issues(finding)),
+                new Column().header("Bits").headerAlign(HorizontalAlign.CENTER).dataAlign(HorizontalAlign.CENTER).with(finding -> String.valueOf(finding.entropyBits())),
+                new Column().header("Password changed").headerAlign(HorizontalAlign.CENTER).dataAlign(HorizontalAlign.CENTER).with(finding -> date(finding.passwordChanged())),
+                new Column().header("Reuse group").headerAlign(HorizontalAlign.CENTER).dataAlign(HorizontalAlign.CENTER).with(finding -> reuseGroup(report, finding))
+            )));
+        }
+
+        out.println("Checked " + report.checked() + " credentials: "
+            + report.count(Issue.REUSED) + " reuse a password (" + report.reuseGroups().size() + " reuse groups), "
+            + report.count(Issue.WEAK) + " weak (under " + WEAK_BITS + " bits), "
+            + report.count(Issue.STALE) + " unchanged for over " + staleDays + " days");
+        if (report.unknownAge() > 0) {
+            out.println(report.unknownAge() + " credentials had their password set before the vault kept change times");
+        }
+    }
+
+    // One object; hashes and passwords are never part of it.
+    public static JSONObject toJson(Report report, int staleDays) {
+        JSONArray findings = new JSONArray();
+        for (Finding finding : report.findings()) {
+            JSONObject json = new JSONObject();
+            json.put("id", finding.id());
+            json.put("target", finding.target());
+            json.put("username", finding.username());
+            json.put("issues", new JSONArray(finding.issues().stream().map(Issue::label).toList()));
+            json.put("entropyBits", finding.entropyBits());
+            json.put("passwordChanged", finding.passwordChanged() == 0 ? JSONObject.NULL : Instant.ofEpochMilli(finding.passwordChanged()).toString());
+            json.put("reuseGroup", finding.reuseGroup() == 0 ? JSONObject.NULL : finding.reuseGroup());
+            findings.put(json);
+        }
+
+        return new JSONObject()
+            .put("checked", report.checked())
+            .put("reused", report.count(Issue.REUSED))
+            .put("weak", report.count(Issue.WEAK))
+            .put("stale", report.count(Issue.STALE))
+            .put("unknownAge", report.unknownAge())
+            .put("weakBelowBits", WEAK_BITS)
+            .put("staleAfterDays", staleDays)
+            .put("reuseGroups", new JSONArray(report.reuseGroups()))
+            .put("findings", findings);
+    }
+
+    private static String issues(Finding finding) {
+        return finding.issues().stream().map(Issue::label).collect(Collectors.joining(", "));
+    }
+
+    private static String date(long millis) {
+        return millis == 0 ? "unknown" : LocalDate.ofInstant(Instant.ofEpochMilli(millis), ZoneId.systemDefault()).toString();
+    }
+
+    private static String reuseGroup(Report report, Finding finding) {
+        if (finding.reuseGroup() == 0) {
+            return "";
+        }
+        return "#" + finding.reuseGroup() + " (" + report.reuseGroups().get(finding.reuseGroup() - 1).size() + " credentials)";
+    }
+}
@@ -0,0 +1,266 @@
+package com.github.tmpstpdwn;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletionException;
+
+import javax.crypto.SecretKey;
+
+// Every credential of a vault, decrypted, in a hash table keyed by blind
+// index, so a lookup costs one HMAC and a probe instead of a query and a row
+// to decrypt. Between runs the table is kept in a file next to the vault
+// (vault.db.snapshot), sorted by blind index and AES-GCM encrypted as a whole
+// under a key derived from the data key: loading it is one read and one
+// decrypt.
+//
+// The file records the change position of the vault it was taken at. When
+// the vault has moved on since, only the rows written or deleted after that
+// position are read and decrypted again; a vault file that was replaced, or a
+// data key that changed, makes for a full rebuild. The file is only derived
+// data: one that is missing, damaged or from another key is rebuilt, never an
+// error.
+//
+// File layout, big-endian:
+//
+//   header   magic, lineage, change count
+//   payload  the rest of the file, AES-GCM encrypted with the header as
+//            associated data: the number of entries, then per entry, in
+//            blind index order, the blind index, id, target, username and
+//            password
+class VaultSnapshot {
+
+    private record Entry(int id, ByteBuffer lookup, String target, String username, String password) {}
+
+    // The last byte of the magic is the format.
+    private static final byte[] MAGIC = {'H', 'V', 'S', 'N', 'A', 'P', 0, 1};
+    private static final int LINEAGE_BYTES = 16;
+    private static final int HEADER_BYTES = MAGIC.length + LINEAGE_BYTES + Long.BYTES;
+
+    private final Path file;
+    private final SecretKey key;
+    private final SecretKey snapshotKey;
+    private final SecretKey indexKey;
+
+    private final Map<ByteBuffer, Entry> byLookup = new HashMap<>();
+    private final Map<Integer, Entry> byId = new HashMap<>();
+    // Where the table stands; count is -1 until it holds anything.
+    private byte[] lineage = new byte[LINEAGE_BYTES];
+    private long count = -1;
+    // Whether the table moved past what the file holds.
+    private boolean dirty = false;
+
+    private VaultSnapshot(Path file, SecretKey key) throws Exception {
+        this.file = file;
+        this.key = key;
+        this.snapshotKey = Vault.getSnapshotKey(key);
+        this.indexKey = Vault.getIndexKey(key);
+    }
+
+    public static Path pathFor(Path vault) {
+        return vault.resolveSibling(vault.getFileName() + ".snapshot");
+    }
+
+    // An empty table when the file cannot be used; refresh fills it.
+    public static VaultSnapshot load(Path file, SecretKey key) throws Exception {
+        VaultSnapshot snapshot = new VaultSnapshot(file, key);
+        try {
+            snapshot.read();
+        } catch (Exception e) {
+            snapshot.clear();
+        }
+        return snapshot;
+    }
+
+    // Brings the table up to the current change position of db.
+    public void refresh(DataBase db) throws Exception {
+        CredentialStore.ChangePosition position = db.changePosition();
+        if (count >= 0 && position.count() == count && Arrays.equals(lineageOf(position), lineage)) {
+            return;
+        }
+
+        DataBase.ChangeSet changes = db.changesSince(lineage, count);
+        if (changes.full()) {
+            clear();
+        }
+        for (int id : changes.deleted()) {
+            remove(id);
+        }
+        for (Entry entry : decryptAll(changes.rows())) {
+            remove(entry.id());
+            // A row without a lookup cannot be found by findPassword either;
+            // it comes back once indexCredentials writes one, which is a
+            // change too.
+            if (entry.lookup() != null) {
+                byLookup.put(entry.lookup(), entry);
+                byId.put(entry.id(), entry);
+            }
+        }
+
+        lineage = lineageOf(changes.position());
+        count = changes.position().count();
+        dirty = true;
+    }
+
+    // null when the vault has no such credential.
+    public String find(DataBase.CredentialData cred) throws Exception {
+        Entry entry = byLookup.get(ByteBuffer.wrap(RecordCipher.lookup(cred, indexKey)));
+        if (entry == null || !entry.target().equals(cred.target()) || !entry.username().equals(cred.username())) {
+            return null;
+        }
+        return entry.password();
+    }
+
+    public int size() {
+        return byId.size();
+    }
+
+    // Only the owner can read the file, and it only appears under its name
+    // once complete.
+    public void save() throws Exception {
+        if (!dirty) {
+            return;
+        }
+
+        byte[] header = header();
+        byte[] payload = Vault.encryptBytes(payload(), header, snapshotKey);
+
+        Path partial = file.resolveSibling(file.getFileName() + ".partial");
+        Files.deleteIfExists(partial);
+        Files.createFile(partial, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+        try {
+            try (FileChannel out = FileChannel.open(partial, StandardOpenOption.WRITE)) {
+                for (byte[] part : List.of(header, payload)) {
+                    ByteBuffer buffer = ByteBuffer.wrap(part);
+                    while (buffer.hasRemaining()) {
+                        out.write(buffer);
+                    }
+                }
+            }
+            Files.move(partial, file, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(partial);
+        }
+        dirty = false;
+    }
+
+    private void read() throws Exception {
+        if (!Files.exists(file)) {
+            return;
+        }
+
+        byte[] bytes = Files.readAllBytes(file);
+        if (bytes.length < HEADER_BYTES || !Arrays.equals(bytes, 0, MAGIC.length, MAGIC, 0, MAGIC.length)) {
+            throw new Exception("Not a vault snapshot");
+        }
+        ByteBuffer header = ByteBuffer.wrap(bytes, MAGIC.length, LINEAGE_BYTES + Long.BYTES);
+        byte[] fileLineage = new byte[LINEAGE_BYTES];
+        header.get(fileLineage);
+        long fileCount = header.getLong();
+
+        byte[] plain = Vault.decryptBytes(bytes, HEADER_BYTES, bytes.length - HEADER_BYTES,
+            Arrays.copyOf(bytes, HEADER_BYTES), snapshotKey);
+        ByteBuffer in = ByteBuffer.wrap(plain);
+        int entries = in.getInt();
+        for (int i = 0; i < entries; i++) {
+            ByteBuffer lookup = ByteBuffer.wrap(readBlob(in));
+            int id = in.getInt();
+            Entry entry = new Entry(id, lookup, readString(in), readString(in), readString(in));
+            byLookup.put(lookup, entry);
+            byId.put(id, entry);
+        }
+
+        lineage = fileLineage;
+        count = fileCount;
+    }
+
+    private byte[] header() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(HEADER_BYTES);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.write(MAGIC);
+        out.write(lineage);
+        out.writeLong(count);
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private byte[] payload() throws IOException {
+        List<Entry> entries = new ArrayList<>(byLookup.values());
+        entries.sort((a, b) -> Arrays.compareUnsigned(a.lookup().array(), b.lookup().array()));
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(entries.size());
+        for (Entry entry : entries) {
+            writeBlob(out, entry.lookup().array());
+            out.writeInt(entry.id());
+            writeBlob(out, entry.target().getBytes(StandardCharsets.UTF_8));
+            writeBlob(out, entry.username().getBytes(StandardCharsets.UTF_8));
+            writeBlob(out, entry.password().getBytes(StandardCharsets.UTF_8));
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    // In parallel, as a full rebuild decrypts every row.
+    private List<Entry> decryptAll(List<CredentialStore.EncryptedRow> rows) throws Exception {
+        try {
+            return rows.parallelStream().map(row -> {
+                try {
+                    DataBase.CredentialData cred = RecordCipher.toCredential(row, key);
+                    ByteBuffer lookup = row.lookup() == null ? null : ByteBuffer.wrap(row.lookup());
+                    return new Entry(cred.id(), lookup, cred.target(), cred.username(), cred.password());
+                } catch (Exception e) {
+                    throw new CompletionException(e);
+                }
+            }).toList();
+        } catch (CompletionException e) {
+            throw (Exception) e.getCause();
+        }
+    }
+
+    private void remove(int id) {
+        Entry entry = byId.remove(id);
+        if (entry != null) {
+            byLookup.remove(entry.lookup());
+        }
+    }
+
+    private void clear() {
+        byLookup.clear();
+        byId.clear();
+    }
+
+    // Stores without a lineage are written as zeros, which no vault file has.
+    private static byte[] lineageOf(CredentialStore.ChangePosition position) {
+        return position.lineage() == null ? new byte[LINEAGE_BYTES] : position.lineage();
+    }
+
+    private static void writeBlob(DataOutputStream out, byte[] blob) throws IOException {
+        out.writeInt(blob.length);
+        out.write(blob);
+    }
+
+    private static byte[] readBlob(ByteBuffer in) {
+        byte[] blob = new byte[in.getInt()];
+        in.get(blob);
+        return blob;
+    }
+
+    private static String readString(ByteBuffer in) {
+        return new String(readBlob(in), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,146 @@
+package com.github.tmpstpdwn;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+import javax.crypto.SecretKey;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class BackupTest {
+
+    @TempDir
+    Path dir;
+
+    private SecretKey key;
+    private DataBase db;
+    private Path backups;
+
+    @BeforeEach
+    void createVault() throws Exception {
+        key = Vault.generateKey();
+        db = TestVaults.vault(new SqliteCredentialStore(dir.resolve("vault.db")), key);
+        for (int i = 1; i <= 8; i++) {
+            db.insertCredentialUnique(new DataBase.CredentialData(0, "host-" + i, "user", "pw-" + i), key);
+        }
+        backups = dir.resolve("backups");
+    }
+
+    @AfterEach
+    void closeVault() {
+        db.close();
+    }
+
+    @Test
+    void restoresBaseAndDeltas() throws Exception {
+        Backup.Result base = Backup.backup(db, key, backups);
+        assertTrue(base.full());
+        assertEquals(8, base.rows());
+        assertNull(Backup.backup(db, key, backups));
+
+        int second = db.page(0, 100).get(1).id();
+        int third = db.page(0, 100).get(2).id();
+        db.updateCredential(new DataBase.CredentialData(second, "_", "_", "changed"), key);
+        db.deleteCredential(new DataBase.CredentialData(third, null, null, null));
+        db.insertCredentialUnique(new DataBase.CredentialData(0, "host-9", "user", "pw-4"), key);
+
+        // Few enough changes for a delta rather than another base.
+        Backup.Result delta = Backup.backup(db, key, backups);
+        assertFalse(delta.full());
+        assertEquals(2, delta.rows());
+        assertEquals(1, delta.deleted());
+
+        Backup.Snapshot restored = Backup.restore(backups, () -> "pw");
+        assertEquals(2, restored.segments());
+        TestVaults.assertRowsEqual(db.page(0, 100), restored.rows());
+        TestVaults.assertMetadataEqual(db.getMetadata(), restored.metadata());
+
+        Exception e = assertThrows(Exception.class, () -> Backup.restore(backups, () -> "wrong"));
+        assertEquals("Wrong password", e.getMessage());
+    }
+
+    @Test
+    void restoreRejectsADamagedSegment() throws Exception {
+        Backup.backup(db, key, backups);
+        db.insertCredentialUnique(new DataBase.CredentialData(0, "host-9", "user", "pw-4"), key);
+        Path delta = Backup.backup(db, key, backups).segment();
+
+        byte[] bytes = Files.readAllBytes(delta);
+        // In the payload, just before the trailer; the header is read on its
+        // own to find the chain and fails earlier.
+        bytes[bytes.length - 32 - 10] ^= 1;
+        Files.write(delta, bytes);
+
+        Exception e = assertThrows(Exception.class, () -> Backup.restore(backups, () -> "pw"));
+        assertEquals("Backup segment " + delta.getFileName() + " fails its checksum", e.getMessage());
+    }
+
+    @Test
+    void restoreRejectsABrokenChain() throws Exception {
+        Backup.backup(db, key, backups);
+        db.insertCredentialUnique(new DataBase.CredentialData(0, "host-9", "user", "pw-4"), key);
+        Path second = Backup.backup(db, key, backups).segment();
+        db.insertCredentialUnique(new DataBase.CredentialData(0, "host-10", "user", "pw-5"), key);
+        Path third = Backup.backup(db, key, backups).segment();
+
+        // Losing a delta must not go unnoticed, even with the files renumbered.
+        Files.move(third, second, StandardCopyOption.REPLACE_EXISTING);
+
+        Exception e = assertThrows(Exception.class, () -> Backup.restore(backups, () -> "pw"));
+        assertEquals("Backup segment " + second.getFileName() + " does not follow the one before it", e.getMessage());
+    }
+
+    @Test
+    void restoreRejectsASegmentOfAnotherKey() throws Exception {
+        Path base = Backup.backup(db, key, backups).segment();
+
+        // The fingerprint of another data key, with a checksum that matches, as
+        // a segment of another vault with the same master password would have.
+        byte[] bytes = Files.readAllBytes(base);
+        byte[] fingerprint = Vault.keyFingerprint(key);
+        int at = indexOf(bytes, fingerprint);
+        System.arraycopy(Vault.keyFingerprint(Vault.generateKey()), 0, bytes, at, fingerprint.length);
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        digest.update(bytes, 0, bytes.length - 32);
+        System.arraycopy(digest.digest(), 0, bytes, bytes.length - 32, 32);
+        Files.write(base, bytes);
+
+        Exception e = assertThrows(Exception.class, () -> Backup.restore(backups, () -> "pw"));
+        assertEquals("Backup segment " + base.getFileName() + " belongs to another data key", e.getMessage());
+    }
+
+    @Test
+    void newKeyStartsANewBase() throws Exception {
+        Backup.backup(db, key, backups);
+
+        SecretKey rotated = Vault.generateKey();
+        db.reEncryptDatabase(key, rotated, Authenticator.createMetadata("pw", rotated, TestVaults.FAST_KDF), (done, total) -> {});
+
+        Backup.Result result = Backup.backup(db, rotated, backups);
+        assertTrue(result.full());
+        Backup.Snapshot restored = Backup.restore(backups, () -> "pw");
+        assertEquals(1, restored.segments());
+        TestVaults.assertRowsEqual(db.page(0, 100), restored.rows());
+    }
+
+    private static int indexOf(byte[] bytes, byte[] part) {
+        for (int i = 0; i + part.length <= bytes.length; i++) {
+            if (Arrays.equals(bytes, i, i + part.length, part, 0, part.length)) {
+                return i;
+            }
+        }
+        throw new AssertionError("not found");
+    }
+}
@@ -0,0 +1,71 @@
+package com.github.tmpstpdwn;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HexFormat;
+import java.util.List;
+
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+class BreachCorpusTest {
+
+    @TempDir
+    Path dir;
+
+    @ParameterizedTest
+    @ValueSource(booleans = {true, false})
+    void mergesDuplicatesAndFindsEveryListedHash(boolean withBloom) throws Exception {
+        Path corpus = dir.resolve("pwned.txt");
+        Files.writeString(corpus, String.join("\n",
+            hash("hunter2") + ":3",
+            hash("letmein"),
+            "",
+            hash("hunter2").toLowerCase() + ":4\r",
+            hash("empty-count") + ":",
+            hash("zero-count") + ":0",
+            hash("padded") + ":12  ") + "\n");
+
+        assertTrue(BreachCorpus.needsConversion(corpus));
+        BreachCorpus.convert(corpus, withBloom, (done, total) -> {});
+        assertFalse(BreachCorpus.needsConversion(corpus));
+
+        try (BreachCorpus breaches = BreachCorpus.open(corpus)) {
+            assertEquals(5, breaches.size());
+            assertEquals(7, breaches.occurrences(BreachCorpus.sha1("hunter2")));
+            assertEquals(1, breaches.occurrences(BreachCorpus.sha1("letmein")));
+            assertEquals(1, breaches.occurrences(BreachCorpus.sha1("empty-count")));
+            assertEquals(1, breaches.occurrences(BreachCorpus.sha1("zero-count")));
+            assertEquals(12, breaches.occurrences(BreachCorpus.sha1("padded")));
+            assertEquals(0, breaches.occurrences(BreachCorpus.sha1("correct horse battery staple")));
+
+            List<BreachCorpus.Hit> hits = breaches.check(List.of(
+                new DataBase.CredentialData(1, "a", "u", "safe-" + System.nanoTime()),
+                new DataBase.CredentialData(2, "b", "u", "empty-count"),
+                new DataBase.CredentialData(3, "c", "u", "hunter2")));
+            assertEquals(List.of(2, 3), hits.stream().map(hit -> hit.credential().id()).toList());
+            assertEquals(7, hits.get(1).count());
+        }
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"not a hash", "0123", ":5", "GGGGGGGGGGGGGGGGGGGGGGGGGGGGGGGGGGGGGGGG"})
+    void rejectsLinesThatAreNoHash(String line) throws Exception {
+        Path corpus = dir.resolve("pwned.txt");
+        Files.writeString(corpus, hash("hunter2") + "\n" + line + "\n");
+
+        Exception e = assertThrows(Exception.class, () -> BreachCorpus.convert(corpus, true, (done, total) -> {}));
+        assertEquals("Invalid hash on line 2 of " + corpus, e.getMessage());
+        assertFalse(Files.exists(BreachCorpus.convertedPath(corpus)));
+    }
+
+    private static String hash(String password) {
+        return HexFormat.of().withUpperCase().formatHex(BreachCorpus.sha1(password));
+    }
+}
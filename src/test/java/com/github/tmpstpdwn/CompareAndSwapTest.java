@@ -0,0 +1,63 @@
+package com.github.tmpstpdwn;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.file.Path;
+import java.util.List;
+
+import javax.crypto.SecretKey;
+
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+// Two writers on one vault file, as two invocations would be: both read a
+// credential at the same version, and only the first to write it wins.
+class CompareAndSwapTest {
+
+    @TempDir
+    Path dir;
+
+    @ParameterizedTest
+    @ValueSource(strings = {"sqlite", "log"})
+    void secondWriterOfTheSameVersionIsRejected(String engine) throws Exception {
+        SecretKey key = Vault.generateKey();
+        CredentialStore firstStore = TestVaults.open(engine, dir, List.of());
+        CredentialStore secondStore = TestVaults.store(engine, dir);
+        secondStore.open();
+        DataBase first = new DataBase(firstStore);
+        DataBase second = new DataBase(secondStore);
+        try {
+            first.insertCredentialUnique(new DataBase.CredentialData(0, "host", "user", "old"), key);
+            int id = first.findRow(new DataBase.CredentialData(0, "host", "user", null), Vault.getIndexKey(key)).id();
+
+            DataBase.VersionedCredential readByFirst = first.getCredential(id, key);
+            DataBase.VersionedCredential readBySecond = second.getCredential(id, key);
+            assertEquals(readByFirst.version(), readBySecond.version());
+
+            assertEquals(List.of(), first.updateCredentialsIfUnchanged(List.of(changed(readByFirst, "first")), key));
+            assertEquals(List.of(id), second.updateCredentialsIfUnchanged(List.of(changed(readBySecond, "second")), key));
+
+            DataBase.VersionedCredential stored = second.getCredential(id, key);
+            assertEquals("first", stored.credential().password());
+            assertEquals(readByFirst.version() + 1, stored.version());
+
+            // The same at the store level, for a single row.
+            CredentialStore.EncryptedRow row = secondStore.get(id);
+            assertTrue(firstStore.compareAndUpdate(row));
+            assertFalse(secondStore.compareAndUpdate(row));
+            assertEquals(row.version() + 1, secondStore.get(id).version());
+        } finally {
+            first.close();
+            second.close();
+        }
+    }
+
+    private static DataBase.VersionedCredential changed(DataBase.VersionedCredential read, String password) {
+        DataBase.CredentialData cred = read.credential();
+        return new DataBase.VersionedCredential(
+            new DataBase.CredentialData(cred.id(), cred.target(), cred.username(), password), read.version());
+    }
+}
@@ -0,0 +1,203 @@
+package com.github.tmpstpdwn;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeFalse;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.MethodSource;
+
+// What DataBase relies on from every CredentialStore. Stores that cannot
+// write (--read-only) are checked to read the same as the others and to
+// refuse every write.
+class CredentialStoreContractTest {
+
+    @TempDir
+    Path dir;
+
+    private CredentialStore store;
+
+    static List<String> engines() {
+        return TestVaults.ENGINES;
+    }
+
+    @AfterEach
+    void close() {
+        if (store != null) {
+            store.close();
+        }
+    }
+
+    @ParameterizedTest
+    @MethodSource("engines")
+    void findsRowsByIdAndLookup(String engine) throws Exception {
+        store = TestVaults.open(engine, dir, TestVaults.rows(3));
+
+        assertTrue(store.isInitialized());
+        assertNotNull(store.getMetadata());
+        assertEquals(3, store.count());
+        CredentialStore.EncryptedRow row = store.findByLookup(TestVaults.lookup(2));
+        assertNotNull(row);
+        assertEquals("data-2", TestVaults.text(row.data()));
+        assertEquals("secret-2", TestVaults.text(row.secret()));
+        assertEquals("data-2", TestVaults.text(store.get(row.id()).data()));
+        assertNull(store.findByLookup(TestVaults.lookup(4)));
+        assertNull(store.get(row.id() + 100));
+    }
+
+    @ParameterizedTest
+    @MethodSource("engines")
+    void insertAssignsIdsAndRejectsTakenLookups(String engine) throws Exception {
+        store = TestVaults.open(engine, dir, List.of());
+        assumeFalse(store.isReadOnly());
+
+        store.insert(TestVaults.row(1));
+        store.insertAll(List.of(TestVaults.row(2), TestVaults.row(3)));
+
+        List<Integer> ids = ids(store.page(0, 10));
+        assertEquals(3, ids.size());
+        assertTrue(ids.get(0) < ids.get(1) && ids.get(1) < ids.get(2));
+        Exception e = assertThrows(Exception.class, () -> store.insert(TestVaults.row(2)));
+        assertEquals("Credential already exists", e.getMessage());
+        assertThrows(Exception.class, () -> store.insertAll(List.of(TestVaults.row(4), TestVaults.row(4))));
+        assertEquals(3, store.count());
+        assertNull(store.findByLookup(TestVaults.lookup(4)));
+    }
+
+    @ParameterizedTest
+    @MethodSource("engines")
+    void updateReplacesAndDeleteRemoves(String engine) throws Exception {
+        store = TestVaults.open(engine, dir, TestVaults.rows(2));
+        assumeFalse(store.isReadOnly());
+        CredentialStore.EncryptedRow first = store.findByLookup(TestVaults.lookup(1));
+
+        store.update(new CredentialStore.EncryptedRow(first.id(), TestVaults.bytes("data-new"), TestVaults.bytes("secret-new"),
+            TestVaults.lookup(9)));
+
+        CredentialStore.EncryptedRow updated = store.get(first.id());
+        assertEquals("secret-new", TestVaults.text(updated.secret()));
+        assertEquals(first.version() + 1, updated.version());
+        assertNull(store.findByLookup(TestVaults.lookup(1)));
+        assertEquals(first.id(), store.findByLookup(TestVaults.lookup(9)).id());
+
+        assertTrue(store.delete(first.id()));
+        assertFalse(store.delete(first.id()));
+        assertNull(store.get(first.id()));
+        assertNull(store.findByLookup(TestVaults.lookup(9)));
+        assertEquals(1, store.count());
+    }
+
+    @ParameterizedTest
+    @MethodSource("engines")
+    void pagesWalkEveryRowInIdOrder(String engine) throws Exception {
+        store = TestVaults.open(engine, dir, TestVaults.rows(7));
+
+        List<Integer> walked = new ArrayList<>();
+        int lastId = 0;
+        List<CredentialStore.EncryptedRow> page;
+        do {
+            page = store.page(lastId, 3);
+            assertTrue(page.size() <= 3);
+            for (CredentialStore.EncryptedRow row : page) {
+                walked.add(row.id());
+                lastId = row.id();
+            }
+        } while (page.size() == 3);
+
+        List<Integer> scanned = new ArrayList<>();
+        assertEquals(7, store.scan(-1, 0, true, row -> scanned.add(row.id())));
+        assertEquals(scanned, walked);
+        assertEquals(walked.stream().sorted().toList(), walked);
+
+        List<Integer> limited = new ArrayList<>();
+        assertEquals(2, store.scan(2, 3, false, row -> {
+            assertNull(row.secret());
+            limited.add(row.id());
+        }));
+        assertEquals(walked.subList(3, 5), limited);
+    }
+
+    @ParameterizedTest
+    @MethodSource("engines")
+    void changedSinceListsWrittenAndDeletedRows(String engine) throws Exception {
+        store = TestVaults.open(engine, dir, TestVaults.rows(3));
+        CredentialStore.ChangePosition start = store.changePosition();
+        assertEquals(ids(store.page(0, 10)), store.changedSince(0));
+        assertEquals(List.of(), store.changedSince(start.count()));
+        assumeFalse(store.isReadOnly());
+
+        CredentialStore.EncryptedRow second = store.findByLookup(TestVaults.lookup(2));
+        CredentialStore.EncryptedRow third = store.findByLookup(TestVaults.lookup(3));
+        store.update(new CredentialStore.EncryptedRow(second.id(), second.data(), TestVaults.bytes("secret-new"), second.lookup()));
+        store.delete(third.id());
+
+        CredentialStore.ChangePosition now = store.changePosition();
+        assertArrayEquals(start.lineage(), now.lineage());
+        assertTrue(now.count() > start.count());
+        assertEquals(List.of(second.id(), third.id()), store.changedSince(start.count()));
+        assertEquals(List.of(), store.changedSince(now.count()));
+    }
+
+    @ParameterizedTest
+    @MethodSource("engines")
+    void rollbackDropsAndCommitKeepsATransaction(String engine) throws Exception {
+        store = TestVaults.open(engine, dir, TestVaults.rows(1));
+        assumeFalse(store.isReadOnly());
+        CredentialStore.ChangePosition start = store.changePosition();
+        CredentialStore.EncryptedRow first = store.findByLookup(TestVaults.lookup(1));
+
+        store.beginTransaction();
+        store.insert(TestVaults.row(2));
+        store.delete(first.id());
+        store.rollbackTransaction();
+
+        assertEquals(1, store.count());
+        assertNotNull(store.get(first.id()));
+        assertNull(store.findByLookup(TestVaults.lookup(2)));
+        assertEquals(start.count(), store.changePosition().count());
+
+        store.beginTransaction();
+        store.insert(TestVaults.row(2));
+        store.delete(first.id());
+        store.commitTransaction();
+
+        assertEquals(1, store.count());
+        assertNull(store.get(first.id()));
+        assertNotNull(store.findByLookup(TestVaults.lookup(2)));
+    }
+
+    @ParameterizedTest
+    @MethodSource("engines")
+    void readOnlyStoresRefuseEveryWrite(String engine) throws Exception {
+        store = TestVaults.open(engine, dir, TestVaults.rows(1));
+        if (!store.isReadOnly()) {
+            return;
+        }
+        int id = store.findByLookup(TestVaults.lookup(1)).id();
+        CredentialStore.EncryptedRow row = store.get(id);
+
+        assertThrows(Exception.class, () -> store.insert(TestVaults.row(2)));
+        assertThrows(Exception.class, () -> store.insertAll(List.of(TestVaults.row(2))));
+        assertThrows(Exception.class, () -> store.update(row));
+        assertThrows(Exception.class, () -> store.compareAndUpdate(row));
+        assertThrows(Exception.class, () -> store.setLookup(id, null));
+        assertThrows(Exception.class, () -> store.delete(id));
+        assertThrows(Exception.class, () -> store.setMetadata(store.getMetadata()));
+        assertEquals(1, store.count());
+    }
+
+    private static List<Integer> ids(List<CredentialStore.EncryptedRow> rows) {
+        return rows.stream().map(CredentialStore.EncryptedRow::id).toList();
+    }
+}
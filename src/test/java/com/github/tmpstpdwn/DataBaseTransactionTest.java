@@ -0,0 +1,59 @@
+package com.github.tmpstpdwn;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import org.junit.jupiter.api.Test;
+
+class DataBaseTransactionTest {
+
+    // Fails the first commit, as a full disk or a busy vault would.
+    private static class FailingStore extends MemoryCredentialStore {
+
+        boolean failCommit = true;
+
+        @Override
+        public void commitTransaction() throws Exception {
+            if (failCommit) {
+                failCommit = false;
+                throw new Exception("Disk full");
+            }
+            super.commitTransaction();
+        }
+    }
+
+    @Test
+    void failedCommitIsRolledBackOnClose() throws Exception {
+        FailingStore store = new FailingStore();
+        store.initialize();
+        DataBase db = new DataBase(store);
+
+        Exception e = assertThrows(Exception.class, () -> {
+            try (DataBase.Transaction tx = db.transaction()) {
+                store.insert(TestVaults.row(1));
+                tx.commit();
+            }
+        });
+        assertEquals("Disk full", e.getMessage());
+        assertEquals(0, store.count());
+
+        try (DataBase.Transaction tx = db.transaction()) {
+            store.insert(TestVaults.row(1));
+            tx.commit();
+        }
+        assertEquals(1, store.count());
+    }
+
+    @Test
+    @SuppressWarnings("try")
+    void closeWithoutCommitRollsBack() throws Exception {
+        MemoryCredentialStore store = new MemoryCredentialStore();
+        store.initialize();
+        DataBase db = new DataBase(store);
+
+        try (DataBase.Transaction tx = db.transaction()) {
+            store.insert(TestVaults.row(1));
+        }
+        assertEquals(0, store.count());
+    }
+}
@@ -0,0 +1,273 @@
+package com.github.tmpstpdwn;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
+
+import javax.crypto.SecretKey;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class HashVaultClientTest {
+
+    @TempDir
+    Path dir;
+
+    private Path file;
+    private SecretKey key;
+
+    @BeforeEach
+    void createVault() throws Exception {
+        file = dir.resolve("vault.db");
+        key = Vault.generateKey();
+        DataBase db = TestVaults.vault(new SqliteCredentialStore(file), key);
+        db.close();
+    }
+
+    @Test
+    void unlockClearsThePassword() {
+        char[] password = "pw".toCharArray();
+        HashVaultClient vault = HashVaultClient.unlock(file, password).join();
+        assertArrayEquals(new char[2], password);
+        vault.close();
+
+        char[] wrong = "wrong".toCharArray();
+        CompletionException e = assertThrows(CompletionException.class, () -> HashVaultClient.unlock(file, wrong).join());
+        assertEquals("Wrong password", e.getCause().getMessage());
+        assertArrayEquals(new char[5], wrong);
+    }
+
+    @Test
+    void getAllKeepsTheOrderOfTheRefsFound() {
+        try (HashVaultClient vault = unlock()) {
+            vault.put("a", "user", "pw-a").join();
+            vault.put("b", "user", "pw-b").join();
+            vault.put("c", "user", "pw-c").join();
+
+            Map<HashVaultClient.CredentialRef, String> found = vault.getAll(List.of(
+                ref("c"), ref("missing"), ref("a"), new HashVaultClient.CredentialRef("b", "other"))).join();
+            assertEquals(List.of(ref("c"), ref("a")), new ArrayList<>(found.keySet()));
+            assertEquals(List.of("pw-c", "pw-a"), new ArrayList<>(found.values()));
+        }
+    }
+
+    @Test
+    void putChangesThePasswordOfAnExistingCredential() {
+        try (HashVaultClient vault = unlock()) {
+            vault.put("a", "user", "old").join();
+            vault.put("a", "user", "new").join();
+            assertEquals(Optional.of("new"), vault.get("a", "user").join());
+            assertEquals(1, vault.stream().count());
+        }
+    }
+
+    @Test
+    void putAllWritesNothingWhenAnEntryFails() {
+        try (HashVaultClient vault = unlock()) {
+            vault.put("existing", "user", "old").join();
+
+            // A null password cannot be encrypted, so the last entry fails
+            // after the first two were written inside the transaction.
+            Map<HashVaultClient.CredentialRef, String> passwords = new LinkedHashMap<>();
+            passwords.put(ref("existing"), "new");
+            passwords.put(ref("fresh"), "pw");
+            passwords.put(ref("broken"), null);
+            assertThrows(CompletionException.class, () -> vault.putAll(passwords).join());
+
+            assertEquals(Optional.of("old"), vault.get("existing", "user").join());
+            assertEquals(Optional.empty(), vault.get("fresh", "user").join());
+            assertEquals(1, vault.stream().count());
+
+            passwords.remove(ref("broken"));
+            vault.putAll(passwords).join();
+            assertEquals(Optional.of("new"), vault.get("existing", "user").join());
+            assertEquals(Optional.of("pw"), vault.get("fresh", "user").join());
+        }
+    }
+
+    @Test
+    void iteratorWalksEveryPage() throws Exception {
+        int count = 2 * HashVaultClient.PAGE_SIZE + 5;
+        seed(count);
+
+        try (HashVaultClient vault = unlock()) {
+            List<HashVaultClient.Credential> all = vault.stream().toList();
+            assertEquals(count, all.size());
+            for (int i = 0; i < count; i++) {
+                HashVaultClient.Credential cred = all.get(i);
+                assertEquals(i + 1, cred.id());
+                assertEquals("host-" + i, cred.target());
+                assertEquals("pw-" + i, cred.password());
+            }
+        }
+    }
+
+    // Rows deleted from pages not read yet are skipped, without an error.
+    @Test
+    void iteratorSkipsRowsDeletedWhileIterating() throws Exception {
+        int count = 2 * HashVaultClient.PAGE_SIZE + 5;
+        seed(count);
+
+        try (HashVaultClient vault = unlock()) {
+            Iterator<HashVaultClient.Credential> iterator = vault.iterator();
+            assertEquals(1, iterator.next().id());
+
+            DataBase other = new DataBase(new SqliteCredentialStore(file));
+            other.connect();
+            List<Integer> deleted = List.of(HashVaultClient.PAGE_SIZE + 1, HashVaultClient.PAGE_SIZE + 500, count);
+            try {
+                for (int id : deleted) {
+                    other.deleteCredential(new DataBase.CredentialData(id, null, null, null));
+                }
+            } finally {
+                other.close();
+            }
+
+            int seen = 1;
+            int lastId = 1;
+            while (iterator.hasNext()) {
+                HashVaultClient.Credential cred = iterator.next();
+                assertTrue(cred.id() > lastId);
+                assertFalse(deleted.contains(cred.id()));
+                lastId = cred.id();
+                seen++;
+            }
+            assertEquals(count - deleted.size(), seen);
+        }
+    }
+
+    @Test
+    void manyGetsInFlightAtOnce() throws Exception {
+        int count = 200;
+        seed(count);
+
+        try (HashVaultClient vault = unlock()) {
+            List<CompletableFuture<Optional<String>>> futures = new ArrayList<>();
+            for (int i = 0; i < count; i++) {
+                futures.add(vault.get("host-" + i, "user-" + i));
+            }
+            futures.add(vault.get("host-missing", "user"));
+            CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).join();
+
+            for (int i = 0; i < count; i++) {
+                assertEquals(Optional.of("pw-" + i), futures.get(i).join());
+            }
+            assertEquals(Optional.empty(), futures.get(count).join());
+        }
+    }
+
+    // Closing waits for the client's tasks, so one of them, or a callback on
+    // its thread, must not close it.
+    @Test
+    void closeFromItsOwnTaskIsRefused() throws Exception {
+        // Holds the unlock task until the callback is attached, so the
+        // callback runs on the task's thread as it completes.
+        CountDownLatch attached = new CountDownLatch(1);
+        CompletableFuture<HashVaultClient> unlocked = HashVaultClient.unlock(file, () -> {
+            attached.await();
+            return "pw".toCharArray();
+        });
+        CompletableFuture<Void> closed = unlocked.thenAccept(HashVaultClient::close);
+        attached.countDown();
+
+        CompletionException e = assertThrows(CompletionException.class, closed::join);
+        assertInstanceOf(IllegalStateException.class, e.getCause());
+
+        HashVaultClient vault = unlocked.join();
+        vault.put("host", "user", "secret").join();
+        assertEquals(Optional.of("secret"), vault.get("host", "user").join());
+        vault.close();
+    }
+
+    // Only a client's own tasks are refused; waiting for another client's
+    // tasks from there cannot deadlock.
+    @Test
+    void closeOfAnotherClientFromATaskIsAllowed() throws Exception {
+        HashVaultClient second = unlock();
+
+        CountDownLatch attached = new CountDownLatch(1);
+        CompletableFuture<HashVaultClient> unlocked = HashVaultClient.unlock(file, () -> {
+            attached.await();
+            return "pw".toCharArray();
+        });
+        CompletableFuture<Void> closed = unlocked.thenAccept(first -> second.close());
+        attached.countDown();
+
+        closed.join();
+        assertClosed(second);
+        unlocked.join().close();
+    }
+
+    @Test
+    void closedClientFailsItsFutures() {
+        HashVaultClient vault = unlock();
+        vault.close();
+
+        assertClosed(vault);
+        CompletionException e = assertThrows(CompletionException.class, () -> vault.getAll(List.of(ref("a"))).join());
+        assertInstanceOf(IllegalStateException.class, e.getCause());
+        e = assertThrows(CompletionException.class, () -> vault.put("a", "user", "pw").join());
+        assertInstanceOf(IllegalStateException.class, e.getCause());
+        e = assertThrows(CompletionException.class, () -> vault.putAll(Map.of(ref("a"), "pw")).join());
+        assertInstanceOf(IllegalStateException.class, e.getCause());
+    }
+
+    @Test
+    void interruptedCloseStillClosesTheVault() {
+        HashVaultClient vault = unlock();
+        Thread.currentThread().interrupt();
+        try {
+            vault.close();
+            assertTrue(Thread.currentThread().isInterrupted());
+        } finally {
+            Thread.interrupted();
+        }
+        assertClosed(vault);
+    }
+
+    private static void assertClosed(HashVaultClient vault) {
+        CompletableFuture<Optional<String>> future = vault.get("host", "user");
+        CompletionException e = assertThrows(CompletionException.class, future::join);
+        assertInstanceOf(IllegalStateException.class, e.getCause());
+        assertEquals("HashVaultClient is closed", e.getCause().getMessage());
+    }
+
+    private HashVaultClient unlock() {
+        return HashVaultClient.unlock(file, "pw".toCharArray()).join();
+    }
+
+    // Credentials host-i, user-i, pw-i with ids i + 1, written before any
+    // client opens the vault.
+    private void seed(int count) throws Exception {
+        DataBase db = new DataBase(new SqliteCredentialStore(file));
+        db.connect();
+        try {
+            int[] next = {0};
+            db.importCredentials(() -> next[0] < count
+                ? new CredentialTransfer.Entry(new DataBase.CredentialData(0, "host-" + next[0], "user-" + next[0], "pw-" + next[0]++), 0)
+                : null, key, (done, total) -> {});
+        } finally {
+            db.close();
+        }
+    }
+
+    private static HashVaultClient.CredentialRef ref(String target) {
+        return new HashVaultClient.CredentialRef(target, "user");
+    }
+}
@@ -0,0 +1,195 @@
+package com.github.tmpstpdwn;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+// Recovery, transactions and compaction of the log engine, checked by opening
+// the file again the way the next invocation would.
+class LogCredentialStoreTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void tornTailIsCutOff() throws Exception {
+        long committed = writeThreeRows();
+        Path file = dir.resolve("vault.log");
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.truncate(Files.size(file) - 3);
+        }
+
+        assertTailDropped(committed);
+    }
+
+    @Test
+    void corruptedTailIsCutOff() throws Exception {
+        long committed = writeThreeRows();
+        Path file = dir.resolve("vault.log");
+        byte[] bytes = Files.readAllBytes(file);
+        // Inside the body of the last row frame, so its checksum fails.
+        bytes[(int) committed + 12] ^= 0x55;
+        Files.write(file, bytes);
+
+        assertTailDropped(committed);
+    }
+
+    @Test
+    void rolledBackTransactionIsGoneAfterReopen() throws Exception {
+        LogCredentialStore store = open("vault.log");
+        store.insert(TestVaults.row(1));
+        store.beginTransaction();
+        store.insert(TestVaults.row(2));
+        store.rollbackTransaction();
+        store.close();
+
+        store = open("vault.log");
+        assertEquals(1, store.count());
+        assertNull(store.findByLookup(TestVaults.lookup(2)));
+        store.close();
+    }
+
+    @Test
+    void uncommittedTransactionIsNotReadByOthers() throws Exception {
+        LogCredentialStore store = open("vault.log");
+        store.insert(TestVaults.row(1));
+        store.beginTransaction();
+        store.insert(TestVaults.row(2));
+        // What a crash before the commit leaves on disk.
+        Files.copy(dir.resolve("vault.log"), dir.resolve("crashed.log"));
+        store.rollbackTransaction();
+        store.close();
+
+        LogCredentialStore crashed = open("crashed.log");
+        assertEquals(1, crashed.count());
+        assertNull(crashed.findByLookup(TestVaults.lookup(2)));
+        crashed.insert(TestVaults.row(3));
+        crashed.close();
+
+        crashed = open("crashed.log");
+        assertEquals(2, crashed.count());
+        assertNull(crashed.findByLookup(TestVaults.lookup(2)));
+        assertNotNull(crashed.findByLookup(TestVaults.lookup(3)));
+        crashed.close();
+    }
+
+    @Test
+    void compactionKeepsLiveRowsAndTombstones() throws Exception {
+        LogCredentialStore store = open("vault.log");
+        store.insertAll(TestVaults.rows(3));
+        int kept = store.findByLookup(TestVaults.lookup(1)).id();
+        int deleted = store.findByLookup(TestVaults.lookup(2)).id();
+        int rewritten = store.findByLookup(TestVaults.lookup(3)).id();
+        long beforeDelete = store.changePosition().count();
+        store.delete(deleted);
+
+        // Enough superseded frames to pass the 1 MiB threshold for compacting.
+        byte[] large = new byte[64 * 1024];
+        for (int i = 0; i < 24; i++) {
+            large[0] = (byte) i;
+            store.update(new CredentialStore.EncryptedRow(rewritten, large, TestVaults.bytes("secret-" + i), TestVaults.lookup(3)));
+        }
+        CredentialStore.ChangePosition position = store.changePosition();
+        // Waits for the compaction the last commit started.
+        store.close();
+        // Less than half of what was written, so a compaction ran.
+        assertTrue(Files.size(dir.resolve("vault.log")) < 12 * large.length);
+
+        store = open("vault.log");
+        assertEquals(2, store.count());
+        assertEquals("data-1", TestVaults.text(store.get(kept).data()));
+        assertNull(store.get(deleted));
+        CredentialStore.EncryptedRow last = store.get(rewritten);
+        assertEquals(23, last.data()[0]);
+        assertEquals("secret-23", TestVaults.text(last.secret()));
+        assertEquals(24, last.version());
+        assertArrayEquals(position.lineage(), store.changePosition().lineage());
+        assertEquals(position.count(), store.changePosition().count());
+        assertEquals(List.of(deleted, rewritten), store.changedSince(beforeDelete));
+
+        // The tombstone also keeps the id of the deleted row from coming back.
+        store.insert(TestVaults.row(4));
+        assertTrue(store.findByLookup(TestVaults.lookup(4)).id() > rewritten);
+        store.close();
+    }
+
+    @Test
+    void conversionRoundTrips() throws Exception {
+        CredentialStore sqlite = TestVaults.open("sqlite", dir, TestVaults.rows(5));
+        CredentialStore.EncryptedRow second = sqlite.findByLookup(TestVaults.lookup(2));
+        sqlite.update(new CredentialStore.EncryptedRow(second.id(), second.data(), TestVaults.bytes("secret-new"), second.lookup()));
+        sqlite.delete(sqlite.findByLookup(TestVaults.lookup(4)).id());
+        sqlite.setLookup(sqlite.findByLookup(TestVaults.lookup(5)).id(), null);
+        List<CredentialStore.EncryptedRow> original = sqlite.page(0, 10);
+        DataBase.Metadata metadata = sqlite.getMetadata();
+
+        DataBase source = new DataBase(sqlite);
+        LogCredentialStore log = new LogCredentialStore(dir.resolve("converted.log"));
+        DataBase.CopyResult toLog = source.copyTo(log, (done, total) -> {});
+        assertEquals(4, toLog.rows());
+        assertEquals(sqlite.changePosition().count(), toLog.position().count());
+        source.close();
+        log.close();
+
+        log = open("converted.log");
+        SqliteCredentialStore back = new SqliteCredentialStore(dir.resolve("back.db"));
+        assertEquals(4, new DataBase(log).copyTo(back, (done, total) -> {}).rows());
+        log.close();
+        back.close();
+
+        back = new SqliteCredentialStore(dir.resolve("back.db"));
+        back.open();
+        TestVaults.assertRowsEqual(original, back.page(0, 10));
+        TestVaults.assertMetadataEqual(metadata, back.getMetadata());
+        back.close();
+    }
+
+    // Three rows, each committed on its own; returns the size of the file
+    // after the second, where the third begins.
+    private long writeThreeRows() throws Exception {
+        LogCredentialStore store = open("vault.log");
+        store.insert(TestVaults.row(1));
+        store.insert(TestVaults.row(2));
+        long committed = Files.size(dir.resolve("vault.log"));
+        store.insert(TestVaults.row(3));
+        store.close();
+        return committed;
+    }
+
+    private void assertTailDropped(long committed) throws Exception {
+        LogCredentialStore store = open("vault.log");
+        assertEquals(2, store.count());
+        assertNull(store.findByLookup(TestVaults.lookup(3)));
+
+        // The next write cuts the tail off and lands after the last commit.
+        store.insert(TestVaults.row(4));
+        store.close();
+        store = open("vault.log");
+        assertEquals(3, store.count());
+        assertNotNull(store.findByLookup(TestVaults.lookup(4)));
+        assertNull(store.findByLookup(TestVaults.lookup(3)));
+        assertTrue(Files.size(dir.resolve("vault.log")) > committed);
+        store.close();
+    }
+
+    private LogCredentialStore open(String name) throws Exception {
+        LogCredentialStore store = new LogCredentialStore(dir.resolve(name));
+        store.open();
+        if (!store.isInitialized()) {
+            store.initialize();
+            store.setMetadata(TestVaults.metadata());
+        }
+        return store;
+    }
+}
@@ -0,0 +1,147 @@
+package com.github.tmpstpdwn;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.Statement;
+import java.time.Instant;
+import java.util.List;
+import java.util.Set;
+
+import javax.crypto.SecretKey;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+// The audit calls a password stale by when it was last set, so only a new
+// password may move that time: renames and re-saving the same password keep
+// it, and an import keeps the time the source gives.
+class PasswordChangedTest {
+
+    private static final String LONG_AGO = "2020-01-02T03:04:05Z";
+
+    @TempDir
+    Path dir;
+
+    @ParameterizedTest
+    @ValueSource(strings = {"sqlite", "log", "memory"})
+    void onlyANewPasswordCountsAsAChange(String engine) throws Exception {
+        SecretKey key = Vault.generateKey();
+        DataBase db = TestVaults.vault(TestVaults.store(engine, dir), key);
+        try {
+            db.importCredentials(CredentialTransfer.reader(CredentialTransfer.Format.CSV, new StringReader(
+                "target,username,password,password_changed\nold,user,hunter2," + LONG_AGO + "\nnew,user,s3cret\n")),
+                key, (done, total) -> {});
+            int old = id(db, key, "old");
+            long longAgo = Instant.parse(LONG_AGO).toEpochMilli();
+            assertEquals(longAgo, row(db, old).passwordChanged());
+            assertTrue(row(db, id(db, key, "new")).passwordChanged() > longAgo);
+            assertEquals(Set.of(VaultAudit.Issue.STALE, VaultAudit.Issue.WEAK), issues(db, key, old));
+
+            db.updateCredential(new DataBase.CredentialData(old, "renamed", "_", "_"), key);
+            db.updateCredential(new DataBase.CredentialData(old, "_", "_", "hunter2"), key);
+            CredentialStore.EncryptedRow renamed = row(db, old);
+            assertEquals(longAgo, renamed.passwordChanged());
+            assertTrue(renamed.modified() > longAgo);
+            assertTrue(issues(db, key, old).contains(VaultAudit.Issue.STALE));
+
+            DataBase.VersionedCredential read = db.getCredential(old, key);
+            assertEquals(List.of(), db.updateCredentialsIfUnchanged(List.of(read), key));
+            assertEquals(longAgo, row(db, old).passwordChanged());
+
+            db.updateCredential(new DataBase.CredentialData(old, "_", "_", "hunter3"), key);
+            assertTrue(row(db, old).passwordChanged() > longAgo);
+            assertEquals(Set.of(VaultAudit.Issue.WEAK), issues(db, key, old));
+        } finally {
+            db.close();
+        }
+    }
+
+    @Test
+    void survivesReopeningALogVault() throws Exception {
+        SecretKey key = Vault.generateKey();
+        DataBase db = TestVaults.vault(TestVaults.store("log", dir), key);
+        db.importCredentials(CredentialTransfer.reader(CredentialTransfer.Format.JSONL, new StringReader(
+            "{\"target\":\"old\",\"username\":\"user\",\"password\":\"pw\",\"password_changed\":\"" + LONG_AGO + "\"}\n")),
+            key, (done, total) -> {});
+        int id = id(db, key, "old");
+        db.updateCredential(new DataBase.CredentialData(id, "renamed", "_", "_"), key);
+        db.close();
+
+        db = new DataBase(TestVaults.store("log", dir));
+        db.connect();
+        try {
+            assertEquals(Instant.parse(LONG_AGO).toEpochMilli(), row(db, id).passwordChanged());
+        } finally {
+            db.close();
+        }
+    }
+
+    @Test
+    void exportWritesWhatImportReads() throws Exception {
+        SecretKey key = Vault.generateKey();
+        DataBase db = TestVaults.vault(TestVaults.store("memory", dir), key);
+        db.importCredentials(CredentialTransfer.reader(CredentialTransfer.Format.CSV, new StringReader(
+            "old,user,pw," + LONG_AGO + "\n")), key, (done, total) -> {});
+
+        for (CredentialTransfer.Format format : CredentialTransfer.Format.values()) {
+            StringWriter out = new StringWriter();
+            assertEquals(1, db.exportCredentials(key, CredentialTransfer.writer(format, out)));
+            assertTrue(out.toString().contains(LONG_AGO), out.toString());
+
+            CredentialTransfer.Entry entry = CredentialTransfer.reader(format, new StringReader(out.toString())).next();
+            assertEquals(new DataBase.CredentialData(0, "old", "user", "pw"), entry.credential());
+            assertEquals(Instant.parse(LONG_AGO).toEpochMilli(), entry.passwordChanged());
+        }
+        db.close();
+    }
+
+    // A vault of schema version 8 takes the modification time of each row as
+    // its password change time.
+    @Test
+    void upgradeStartsFromTheModificationTime() throws Exception {
+        SecretKey key = Vault.generateKey();
+        Path file = dir.resolve("vault.db");
+        DataBase db = TestVaults.vault(new SqliteCredentialStore(file), key);
+        db.insertCredentialUnique(new DataBase.CredentialData(0, "host", "user", "pw"), key);
+        int id = id(db, key, "host");
+        long modified = row(db, id).modified();
+        db.close();
+
+        try (Connection conn = DriverManager.getConnection("jdbc:sqlite:" + file);
+             Statement stmt = conn.createStatement()) {
+            stmt.executeUpdate("ALTER TABLE credential_table DROP COLUMN password_changed");
+            stmt.executeUpdate("PRAGMA user_version = 8");
+        }
+
+        db = new DataBase(new SqliteCredentialStore(file));
+        db.connect();
+        try {
+            db.upgradeSchema();
+            assertEquals(modified, row(db, id).passwordChanged());
+        } finally {
+            db.close();
+        }
+    }
+
+    private static int id(DataBase db, SecretKey key, String target) throws Exception {
+        return db.findRow(new DataBase.CredentialData(0, target, "user", null), Vault.getIndexKey(key)).id();
+    }
+
+    private static CredentialStore.EncryptedRow row(DataBase db, int id) throws Exception {
+        return db.page(id - 1, 1).get(0);
+    }
+
+    private static Set<VaultAudit.Issue> issues(DataBase db, SecretKey key, int id) throws Exception {
+        return VaultAudit.run(db, key, 365).findings().stream()
+            .filter(finding -> finding.id() == id)
+            .findFirst().map(VaultAudit.Finding::issues).orElse(Set.of());
+    }
+}
@@ -0,0 +1,123 @@
+package com.github.tmpstpdwn;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.crypto.SecretKey;
+
+// Stores and rows for the tests. Stores only ever see blobs, so row n is
+// made of recognisable bytes rather than encrypted fields: data "data-n",
+// secret "secret-n" and a 32 byte lookup derived from n.
+class TestVaults {
+
+    static final List<String> ENGINES = List.of("sqlite", "log", "memory", "snapshot");
+
+    // Far below what a vault gets, so unlocking in tests is quick.
+    static final Vault.KdfParams FAST_KDF = new Vault.KdfParams(Vault.KDF_VERSION, Vault.KDF_ALGORITHM, 1000);
+
+    // An initialized vault with real metadata for master password "pw" and
+    // data key key, holding no credentials.
+    static DataBase vault(CredentialStore store, SecretKey key) throws Exception {
+        DataBase db = new DataBase(store);
+        db.connect();
+        db.createTables();
+        db.setMetadata(Authenticator.createMetadata("pw", key, FAST_KDF));
+        return db;
+    }
+
+    // An empty, initialized store, or for "snapshot" one copied from an
+    // SQLite vault holding seed.
+    static CredentialStore open(String engine, Path dir, List<CredentialStore.EncryptedRow> seed) throws Exception {
+        if (engine.equals("snapshot")) {
+            CredentialStore source = open("sqlite", dir, seed);
+            source.close();
+            CredentialStore snapshot = new SnapshotCredentialStore(store("sqlite", dir));
+            snapshot.open();
+            return snapshot;
+        }
+
+        CredentialStore store = store(engine, dir);
+        store.open();
+        if (!store.isInitialized()) {
+            store.initialize();
+            store.setMetadata(metadata());
+        }
+        if (!seed.isEmpty()) {
+            store.insertAll(seed);
+        }
+        return store;
+    }
+
+    static CredentialStore store(String engine, Path dir) {
+        return switch (engine) {
+            case "sqlite" -> new SqliteCredentialStore(dir.resolve("vault.db"));
+            case "log" -> new LogCredentialStore(dir.resolve("vault.log"));
+            case "memory" -> new MemoryCredentialStore();
+            default -> throw new IllegalArgumentException("Unknown store " + engine);
+        };
+    }
+
+    static CredentialStore.EncryptedRow row(int n) {
+        return new CredentialStore.EncryptedRow(0, bytes("data-" + n), bytes("secret-" + n), lookup(n));
+    }
+
+    static List<CredentialStore.EncryptedRow> rows(int count) {
+        List<CredentialStore.EncryptedRow> rows = new ArrayList<>(count);
+        for (int n = 1; n <= count; n++) {
+            rows.add(row(n));
+        }
+        return rows;
+    }
+
+    static byte[] lookup(int n) {
+        byte[] lookup = Arrays.copyOf(bytes("lookup-" + n), 32);
+        lookup[31] = (byte) n;
+        return lookup;
+    }
+
+    static byte[] bytes(String text) {
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+
+    static String text(byte[] bytes) {
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // Random bytes in the shape of real metadata; nothing here is ever unlocked.
+    static DataBase.Metadata metadata() throws Exception {
+        return new DataBase.Metadata(
+            Vault.generateBytes(Vault.BytesType.KEY_BYTES),
+            Vault.generateBytes(Vault.BytesType.SALT_BYTES),
+            Vault.generateBytes(Vault.BytesType.SALT_BYTES),
+            Vault.wrapKey(Vault.generateKey(), Vault.generateKey()),
+            Vault.DEFAULT_KDF
+        );
+    }
+
+    static void assertRowsEqual(List<CredentialStore.EncryptedRow> expected, List<CredentialStore.EncryptedRow> actual) {
+        assertEquals(describe(expected), describe(actual));
+    }
+
+    static void assertMetadataEqual(DataBase.Metadata expected, DataBase.Metadata actual) {
+        assertArrayEquals(expected.masterKey(), actual.masterKey());
+        assertArrayEquals(expected.loginSalt(), actual.loginSalt());
+        assertArrayEquals(expected.encryptionSalt(), actual.encryptionSalt());
+        assertArrayEquals(expected.wrappedKey(), actual.wrappedKey());
+        assertEquals(expected.kdf(), actual.kdf());
+    }
+
+    private static List<String> describe(List<CredentialStore.EncryptedRow> rows) {
+        List<String> described = new ArrayList<>();
+        for (CredentialStore.EncryptedRow row : rows) {
+            described.add(row.id() + " " + Arrays.toString(row.data()) + " " + Arrays.toString(row.secret()) + " "
+                + Arrays.toString(row.lookup()) + " v" + row.version() + " @" + row.modified() + " pw@" + row.passwordChanged());
+        }
+        return described;
+    }
+}
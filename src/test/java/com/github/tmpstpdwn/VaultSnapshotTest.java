@@ -0,0 +1,149 @@
+package com.github.tmpstpdwn;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+
+import javax.crypto.SecretKey;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+// The snapshot file is derived data: whatever state it is found in, a
+// refresh has to end with exactly what the vault holds.
+class VaultSnapshotTest {
+
+    @TempDir
+    Path dir;
+
+    private SecretKey key;
+    private DataBase db;
+    private Path file;
+
+    @BeforeEach
+    void createVault() throws Exception {
+        key = Vault.generateKey();
+        db = TestVaults.vault(new SqliteCredentialStore(dir.resolve("vault.db")), key);
+        for (int i = 1; i <= 3; i++) {
+            db.insertCredentialUnique(credential("host-" + i, "pw-" + i), key);
+        }
+        file = VaultSnapshot.pathFor(dir.resolve("vault.db"));
+    }
+
+    @AfterEach
+    void closeVault() {
+        db.close();
+    }
+
+    @Test
+    void savedTableLoadsWithoutTheVault() throws Exception {
+        VaultSnapshot snapshot = VaultSnapshot.load(file, key);
+        assertEquals(0, snapshot.size());
+        snapshot.refresh(db);
+        snapshot.save();
+        assertEquals("rw-------", PosixFilePermissions.toString(Files.getPosixFilePermissions(file)));
+
+        VaultSnapshot loaded = VaultSnapshot.load(file, key);
+        assertEquals(3, loaded.size());
+        assertEquals("pw-2", loaded.find(credential("host-2", null)));
+        assertNull(loaded.find(credential("host-4", null)));
+    }
+
+    @Test
+    void refreshAppliesWritesMadeSinceTheSave() throws Exception {
+        saveSnapshot();
+        db.updateCredential(new DataBase.CredentialData(id("host-1"), "_", "_", "changed"), key);
+        db.deleteCredential(new DataBase.CredentialData(id("host-2"), null, null, null));
+        db.updateCredential(new DataBase.CredentialData(id("host-3"), "renamed", "_", "_"), key);
+        db.insertCredentialUnique(credential("host-4", "pw-4"), key);
+
+        VaultSnapshot snapshot = VaultSnapshot.load(file, key);
+        assertEquals("pw-2", snapshot.find(credential("host-2", null)));
+        snapshot.refresh(db);
+
+        assertEquals(3, snapshot.size());
+        assertEquals("changed", snapshot.find(credential("host-1", null)));
+        assertNull(snapshot.find(credential("host-2", null)));
+        // The entry moves to its new blind index rather than staying under both.
+        assertNull(snapshot.find(credential("host-3", null)));
+        assertEquals("pw-3", snapshot.find(credential("renamed", null)));
+        assertEquals("pw-4", snapshot.find(credential("host-4", null)));
+    }
+
+    // A vault file of another lineage shares no change numbers with the one
+    // the snapshot was taken of, so nothing of the old table may survive.
+    @Test
+    void anotherVaultFileIsARebuild() throws Exception {
+        saveSnapshot();
+        DataBase other = TestVaults.vault(new SqliteCredentialStore(dir.resolve("other.db")), key);
+        try {
+            other.insertCredentialUnique(credential("elsewhere", "pw-x"), key);
+
+            VaultSnapshot snapshot = VaultSnapshot.load(file, key);
+            snapshot.refresh(other);
+            assertEquals(1, snapshot.size());
+            assertNull(snapshot.find(credential("host-1", null)));
+            assertEquals("pw-x", snapshot.find(credential("elsewhere", null)));
+        } finally {
+            other.close();
+        }
+    }
+
+    @Test
+    void damagedFileIsRebuilt() throws Exception {
+        saveSnapshot();
+        byte[] bytes = Files.readAllBytes(file);
+        bytes[bytes.length - 5] ^= 1;
+        Files.write(file, bytes);
+
+        assertRebuilt(VaultSnapshot.load(file, key));
+    }
+
+    // As after --rotate: the vault file and its change count stay, the key
+    // does not.
+    @Test
+    void fileOfAnotherKeyIsRebuilt() throws Exception {
+        saveSnapshot();
+        SecretKey rotated = Vault.generateKey();
+        db.reEncryptDatabase(key, rotated, Authenticator.createMetadata("pw", rotated, TestVaults.FAST_KDF), (done, total) -> {});
+        key = rotated;
+
+        assertRebuilt(VaultSnapshot.load(file, key));
+    }
+
+    @Test
+    void fileThatIsNoSnapshotIsRebuilt() throws Exception {
+        Files.writeString(file, "not a snapshot");
+
+        assertRebuilt(VaultSnapshot.load(file, key));
+    }
+
+    // Loaded from a file it could not use, so nothing carries over.
+    private void assertRebuilt(VaultSnapshot snapshot) throws Exception {
+        assertEquals(0, snapshot.size());
+        snapshot.refresh(db);
+        assertEquals(3, snapshot.size());
+        assertEquals("pw-1", snapshot.find(credential("host-1", null)));
+        snapshot.save();
+        assertEquals(3, VaultSnapshot.load(file, key).size());
+    }
+
+    private void saveSnapshot() throws Exception {
+        VaultSnapshot snapshot = VaultSnapshot.load(file, key);
+        snapshot.refresh(db);
+        snapshot.save();
+    }
+
+    private int id(String target) throws Exception {
+        return db.findRow(credential(target, null), Vault.getIndexKey(key)).id();
+    }
+
+    private static DataBase.CredentialData credential(String target, String password) {
+        return new DataBase.CredentialData(0, target, "user", password);
+    }
+}